@@ -0,0 +1,143 @@
+/**
+ * A histogram of latencies in microseconds with a fixed relative precision, in the style of an HdrHistogram. Values
+ * below 64 have a bucket each; above that, every power of two is split into 32 buckets, so a bucket is never wider
+ * than about 3% of the values it holds and the whole range up to several days fits in about a thousand counters.
+ *
+ * Not thread safe: each client records into its own histogram, and the histograms are added together once the run is
+ * over.
+ */
+public class LatencyHistogram {
+    static final int EXACT = 64;
+    static final int SUB_BUCKETS = 32;
+    static final int MAX_MAGNITUDE = 40;
+
+    long[] counts;
+    long total;
+    long sum;
+    long max;
+
+    /**
+     * LatencyHistogram constructor
+     */
+    public LatencyHistogram(){
+        counts = new long[EXACT + (MAX_MAGNITUDE - 5) * SUB_BUCKETS];
+    }
+
+    /**
+     * Records a latency
+     *
+     * @param micros the latency in microseconds; negative values are recorded as 0
+     */
+    public void record(long micros){
+        long value = Math.min(Math.max(micros, 0), (1L << MAX_MAGNITUDE) - 1);
+
+        counts[index(value)]++;
+        total++;
+        sum += value;
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Adds the counts of another histogram to this one
+     *
+     * @param other the histogram to add
+     */
+    public void add(LatencyHistogram other){
+        for(int i = 0; i < counts.length; i++){
+            counts[i] += other.counts[i];
+        }
+        total += other.total;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * @return the number of latencies recorded
+     */
+    public long count(){
+        return total;
+    }
+
+    /**
+     * @return the largest latency recorded, in microseconds
+     */
+    public long max(){
+        return max;
+    }
+
+    /**
+     * @return the mean latency in microseconds, or 0 if nothing was recorded
+     */
+    public double mean(){
+        return total == 0 ? 0 : (double) sum / total;
+    }
+
+    /**
+     * Finds the latency below which the given share of the recorded latencies fall. The upper bound of the bucket is
+     * returned, so a percentile is never reported lower than it was.
+     *
+     * @param percent the percentile, between 0 and 100
+     * @return the percentile in microseconds, or 0 if nothing was recorded
+     */
+    public long percentile(double percent){
+        if(total == 0){
+            return 0;
+        }
+
+        long target = Math.max(1, (long) Math.ceil(percent / 100 * total));
+        long seen = 0;
+        for(int i = 0; i < counts.length; i++){
+            seen += counts[i];
+            if(seen >= target){
+                return Math.min(upperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Number of buckets, for walking the histogram with bucketCount and upperBound
+     *
+     * @return the number of buckets
+     */
+    public int buckets(){
+        return counts.length;
+    }
+
+    /**
+     * @param bucket the bucket index
+     * @return the number of latencies recorded in the bucket
+     */
+    public long bucketCount(int bucket){
+        return counts[bucket];
+    }
+
+    /**
+     * @param bucket the bucket index
+     * @return the largest latency, in microseconds, that falls in the bucket
+     */
+    public static long upperBound(int bucket){
+        if(bucket < EXACT){
+            return bucket;
+        }
+        int magnitude = (bucket - EXACT) / SUB_BUCKETS + 6;
+        long sub = (bucket - EXACT) % SUB_BUCKETS + SUB_BUCKETS;
+        int shift = magnitude - 5;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * Finds the bucket of a latency
+     *
+     * @param value the latency in microseconds, between 0 and 2^MAX_MAGNITUDE - 1
+     * @return the bucket index
+     */
+    private static int index(long value){
+        if(value < EXACT){
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - 5;
+        return EXACT + (magnitude - 6) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+}
@@ -0,0 +1,472 @@
+import Model.ChatConnection;
+import org.w3c.dom.Document;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Headless load generator for a chat server. Opens a number of simulated clients with the same handshake as the GUI
+ * client, has each of them send chat messages at a fixed rate, and measures how long every broadcast takes to reach
+ * every client that receives it. Latencies are summarized as percentiles and a histogram, along with throughput and
+ * connection errors, on the console and in a JSON file, so that runs against different server builds or settings can
+ * be compared.
+ *
+ * Run from the MercuryClient directory, with the server already running:
+ *
+ * javac -d out/bench src/Model/ChatConnection.java src/Model/AddressRace.java bench/*.java
+ * java -cp out/bench LoadGenerator clients=200 rate=2 size=100 duration=30
+ *
+ * Settings are given as name=value:
+ * <ul>
+ *     <li>host, port: the server, default localhost:14471</li>
+ *     <li>clients: the number of simulated clients, default 50</li>
+ *     <li>rate: the messages each client sends per second, default 1</li>
+ *     <li>size: the length of each message in characters, default 100</li>
+ *     <li>rooms: spread the clients over this many rooms, or 0 to keep them all in the lobby, default 0</li>
+ *     <li>warmup, duration: seconds of sending before measuring starts, and seconds measured, default 5 and 30</li>
+ *     <li>drain: seconds to wait for messages still in flight once sending stops, default 2</li>
+ *     <li>frames: whether to offer the frame protocol, compression and sessions, or use plain lines, default true</li>
+ *     <li>senders: the number of threads sending for all clients, default 4</li>
+ *     <li>label: a name for the run, written to the results, default empty</li>
+ *     <li>out: the results file, default load-results.json</li>
+ * </ul>
+ *
+ * Every message carries the time it was due to be sent, as the simulated clients all live in this JVM and share its
+ * clock. The due time is used rather than the time the message was actually written, so that a server that pushes
+ * back on its senders shows up as latency instead of quietly lowering the rate the clients send at. Only messages due
+ * within the measured window are counted.
+ */
+public class LoadGenerator {
+    static final String MARKER = "load ";
+
+    static String host = "localhost";
+    static int port = 14471;
+    static int clients = 50;
+    static double rate = 1;
+    static int size = 100;
+    static int rooms = 0;
+    static int warmup = 5;
+    static int duration = 30;
+    static int drain = 2;
+    static boolean frames = true;
+    static int senders = 4;
+    static String label = "";
+    static String out = "load-results.json";
+
+    static volatile long measureStart = Long.MAX_VALUE;
+    static volatile long measureEnd = Long.MAX_VALUE;
+    static AtomicLong sent = new AtomicLong();
+    static AtomicLong connectErrors = new AtomicLong();
+    static AtomicLong refused = new AtomicLong();
+    static AtomicLong sendErrors = new AtomicLong();
+    static AtomicLong lostConnections = new AtomicLong();
+
+    public static void main(String[] args) throws Exception{
+        for(String arg : args){
+            parse(arg);
+        }
+        String accepted = readAccepted();
+        String prefix = "ld" + Integer.toString(new Random().nextInt(36 * 36), 36);
+
+        System.out.println("Connecting " + clients + " clients to " + host + ":" + port);
+        long connectStart = System.nanoTime();
+        List<SimulatedClient> connected = new ArrayList<SimulatedClient>();
+        for(int i = 0; i < clients; i++){
+            SimulatedClient client = connect(prefix + i, accepted, i);
+            if(client != null){
+                connected.add(client);
+            }
+        }
+        long connectMillis = (System.nanoTime() - connectStart) / 1000000;
+        System.out.println("Connected " + connected.size() + " of " + clients + " in " + connectMillis + " ms");
+        if(connected.isEmpty()){
+            return;
+        }
+
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(Math.max(1, senders), new ThreadFactory(){
+            @Override
+            public Thread newThread(Runnable r){
+                Thread thread = new Thread(r, "load-sender");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long period = Math.max(1, (long) (1000000000 / rate));
+        Random random = new Random();
+        long firstDue = System.nanoTime() + 100000000;
+        measureStart = firstDue + warmup * 1000000000L;
+        measureEnd = measureStart + duration * 1000000000L;
+        for(SimulatedClient client : connected){
+            //Spread the clients over the period so they do not all send at the same instant
+            long due = firstDue + (long) (random.nextDouble() * period);
+            client.startSending(scheduler, due, period);
+        }
+
+        System.out.println("Warming up for " + warmup + " s, then measuring for " + duration + " s");
+        sleepUntil(measureEnd);
+        scheduler.shutdownNow();
+        scheduler.awaitTermination(5, TimeUnit.SECONDS);
+        Thread.sleep(drain * 1000L);
+
+        LatencyHistogram latencies = new LatencyHistogram();
+        long received = 0;
+        boolean compressed = connected.get(0).connection.usesCompression();
+        for(SimulatedClient client : connected){
+            client.stop();
+        }
+        for(SimulatedClient client : connected){
+            client.reader.join(1000);
+            latencies.add(client.latencies);
+            received += client.received;
+        }
+
+        String results = results(connected.size(), connectMillis, compressed, received, latencies);
+        Writer writer = new FileWriter(out);
+        try{
+            writer.write(results);
+        }finally{
+            writer.close();
+        }
+        printSummary(received, latencies);
+        System.out.println("Results written to " + new File(out).getAbsolutePath());
+    }
+
+    /**
+     * Applies a name=value setting from the command line
+     *
+     * @param arg the setting
+     */
+    private static void parse(String arg){
+        int split = arg.indexOf('=');
+        if(split < 0){
+            throw new IllegalArgumentException("Expected name=value: " + arg);
+        }
+        String name = arg.substring(0, split);
+        String value = arg.substring(split + 1);
+
+        if(name.equals("host")){
+            host = value;
+        }else if(name.equals("port")){
+            port = Integer.parseInt(value);
+        }else if(name.equals("clients")){
+            clients = Integer.parseInt(value);
+        }else if(name.equals("rate")){
+            rate = Double.parseDouble(value);
+        }else if(name.equals("size")){
+            size = Integer.parseInt(value);
+        }else if(name.equals("rooms")){
+            rooms = Integer.parseInt(value);
+        }else if(name.equals("warmup")){
+            warmup = Integer.parseInt(value);
+        }else if(name.equals("duration")){
+            duration = Integer.parseInt(value);
+        }else if(name.equals("drain")){
+            drain = Integer.parseInt(value);
+        }else if(name.equals("frames")){
+            frames = Boolean.parseBoolean(value);
+        }else if(name.equals("senders")){
+            senders = Integer.parseInt(value);
+        }else if(name.equals("label")){
+            label = value;
+        }else if(name.equals("out")){
+            out = value;
+        }else{
+            throw new IllegalArgumentException("Unknown setting: " + name);
+        }
+    }
+
+    /**
+     * Reads the acceptance message from Protocol.xml, as the GUI client does, falling back on the default message if
+     * the file cannot be read
+     *
+     * @return the message the server accepts a connection with
+     */
+    private static String readAccepted(){
+        try{
+            Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new File("Protocol.xml"));
+            return doc.getElementsByTagName("connectionSuccess").item(0).getTextContent();
+        }catch(Exception e){
+            return "Connection accepted.";
+        }
+    }
+
+    /**
+     * Connects a simulated client and moves it to its room
+     *
+     * @param userName the client's username
+     * @param accepted the message the server accepts a connection with
+     * @param index the client's number, which picks its room
+     * @return the client, or null if it could not connect
+     */
+    private static SimulatedClient connect(String userName, String accepted, int index){
+        ChatConnection connection = null;
+        try{
+            connection = new ChatConnection(host, port);
+            String reply = connection.handshake(userName, frames);
+            if(reply == null || !reply.equalsIgnoreCase(accepted)){
+                System.out.println("Server refused " + userName + ": " + reply);
+                refused.incrementAndGet();
+                connection.close();
+                return null;
+            }
+
+            SimulatedClient client = new SimulatedClient(connection);
+            client.reader.start();
+            if(rooms > 0){
+                connection.writeLine(">>join load" + (index % rooms));
+            }
+            return client;
+        }catch(IOException e){
+            System.out.println("Could not connect " + userName + ": " + e.getMessage());
+            connectErrors.incrementAndGet();
+            if(connection != null){
+                connection.close();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Builds the text of a message
+     *
+     * @param due the time the message was due to be sent, from System.nanoTime
+     * @return the message, padded to the configured size
+     */
+    static String message(long due){
+        StringBuilder text = new StringBuilder(Math.max(size, 32));
+        text.append(MARKER).append(due).append(' ');
+        while(text.length() < size){
+            text.append((char) ('a' + text.length() % 26));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Finds the due time in a broadcast sent by a simulated client
+     *
+     * @param line the line received, of the form 'name: load due padding'
+     * @return the due time, or -1 if the line is not a message from a simulated client
+     */
+    static long dueTime(String line){
+        int start = line.indexOf(": " + MARKER);
+        if(start < 0){
+            return -1;
+        }
+        start += 2 + MARKER.length();
+        int end = line.indexOf(' ', start);
+        try{
+            return Long.parseLong(end < 0 ? line.substring(start) : line.substring(start, end));
+        }catch(NumberFormatException e){
+            return -1;
+        }
+    }
+
+    /**
+     * Sleeps until the given time
+     *
+     * @param nanoTime the time to wake up, from System.nanoTime
+     * @throws InterruptedException if the thread is interrupted
+     */
+    private static void sleepUntil(long nanoTime) throws InterruptedException {
+        long remaining;
+        while((remaining = nanoTime - System.nanoTime()) > 0){
+            Thread.sleep(Math.max(1, remaining / 1000000));
+        }
+    }
+
+    /**
+     * Prints the results to the console
+     *
+     * @param received the number of messages received within the measured window
+     * @param latencies the latencies of those messages
+     */
+    private static void printSummary(long received, LatencyHistogram latencies){
+        System.out.println(String.format("Sent %d messages (%.1f/s), received %d broadcasts (%.1f/s)", sent.get(),
+                (double) sent.get() / duration, received, (double) received / duration));
+        System.out.println(String.format("Errors: %d connect, %d refused, %d send, %d lost connections",
+                connectErrors.get(), refused.get(), sendErrors.get(), lostConnections.get()));
+        System.out.println(String.format("Latency ms: p50 %.2f  p90 %.2f  p99 %.2f  p99.9 %.2f  max %.2f  mean %.2f",
+                latencies.percentile(50) / 1000.0, latencies.percentile(90) / 1000.0,
+                latencies.percentile(99) / 1000.0, latencies.percentile(99.9) / 1000.0,
+                latencies.max() / 1000.0, latencies.mean() / 1000.0));
+
+        //Coarse histogram, one row per power of two
+        long[] rows = new long[64];
+        for(int i = 0; i < latencies.buckets(); i++){
+            long upper = LatencyHistogram.upperBound(i);
+            rows[upper == 0 ? 0 : 63 - Long.numberOfLeadingZeros(upper)] += latencies.bucketCount(i);
+        }
+        long largest = 1;
+        for(long row : rows){
+            largest = Math.max(largest, row);
+        }
+        for(int i = 0; i < rows.length; i++){
+            if(rows[i] > 0){
+                StringBuilder bar = new StringBuilder();
+                for(long j = 0; j < rows[i] * 50 / largest; j++){
+                    bar.append('#');
+                }
+                System.out.println(String.format("%12s us %10d %s", "< " + (1L << (i + 1)), rows[i], bar));
+            }
+        }
+    }
+
+    /**
+     * Builds the JSON results of the run
+     *
+     * @param connected the number of clients that connected
+     * @param connectMillis the time taken to connect them
+     * @param compressed whether the server accepted compression
+     * @param received the number of messages received within the measured window
+     * @param latencies the latencies of those messages
+     * @return the results as a JSON object
+     */
+    private static String results(int connected, long connectMillis, boolean compressed, long received,
+                                  LatencyHistogram latencies){
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"label\": \"").append(label.replace("\\", "\\\\").replace("\"", "\\\"")).append("\",\n");
+        json.append("  \"timestamp\": \"").append(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ").format(new Date()))
+                .append("\",\n");
+        json.append("  \"server\": \"").append(host).append(':').append(port).append("\",\n");
+        json.append("  \"settings\": {\"clients\": ").append(clients).append(", \"rate\": ").append(rate)
+                .append(", \"size\": ").append(size).append(", \"rooms\": ").append(rooms)
+                .append(", \"frames\": ").append(frames).append(", \"warmupSeconds\": ").append(warmup)
+                .append(", \"durationSeconds\": ").append(duration).append("},\n");
+        json.append("  \"connected\": ").append(connected).append(",\n");
+        json.append("  \"connectMillis\": ").append(connectMillis).append(",\n");
+        json.append("  \"compressed\": ").append(compressed).append(",\n");
+        json.append("  \"sent\": ").append(sent.get()).append(",\n");
+        json.append("  \"received\": ").append(received).append(",\n");
+        json.append("  \"sentPerSecond\": ").append(String.format("%.1f", (double) sent.get() / duration))
+                .append(",\n");
+        json.append("  \"receivedPerSecond\": ").append(String.format("%.1f", (double) received / duration))
+                .append(",\n");
+        json.append("  \"errors\": {\"connect\": ").append(connectErrors.get()).append(", \"refused\": ")
+                .append(refused.get()).append(", \"send\": ").append(sendErrors.get()).append(", \"lost\": ")
+                .append(lostConnections.get()).append("},\n");
+        json.append("  \"latencyMicros\": {\"p50\": ").append(latencies.percentile(50))
+                .append(", \"p90\": ").append(latencies.percentile(90))
+                .append(", \"p99\": ").append(latencies.percentile(99))
+                .append(", \"p999\": ").append(latencies.percentile(99.9))
+                .append(", \"max\": ").append(latencies.max())
+                .append(", \"mean\": ").append(String.format("%.1f", latencies.mean())).append("},\n");
+
+        //Non-empty buckets as [largest latency in the bucket, count]
+        json.append("  \"histogram\": [");
+        boolean first = true;
+        for(int i = 0; i < latencies.buckets(); i++){
+            if(latencies.bucketCount(i) > 0){
+                json.append(first ? "" : ", ").append('[').append(LatencyHistogram.upperBound(i)).append(", ")
+                        .append(latencies.bucketCount(i)).append(']');
+                first = false;
+            }
+        }
+        json.append("]\n}\n");
+        return json.toString();
+    }
+
+    /**
+     * A simulated client. Its reader thread records the latency of every broadcast from a simulated client, and the
+     * shared scheduler sends its messages.
+     */
+    static class SimulatedClient implements Runnable {
+        ChatConnection connection;
+        Thread reader;
+        LatencyHistogram latencies;
+        long received;
+        volatile boolean stopping;
+
+        /**
+         * SimulatedClient constructor
+         *
+         * @param connection the client's connection, after a successful handshake
+         */
+        SimulatedClient(ChatConnection connection){
+            this.connection = connection;
+            latencies = new LatencyHistogram();
+            reader = new Thread(this, "load-reader");
+            reader.setDaemon(true);
+        }
+
+        /**
+         * Schedules the client's messages. A message due while the previous one is still being written is sent as soon
+         * as that write completes, still carrying its own due time.
+         *
+         * @param scheduler the shared sending threads
+         * @param firstDue the time the first message is due, from System.nanoTime
+         * @param period the time between messages, in nanoseconds
+         */
+        void startSending(ScheduledExecutorService scheduler, final long firstDue, final long period){
+            scheduler.scheduleAtFixedRate(new Runnable(){
+                long due = firstDue;
+
+                @Override
+                public void run(){
+                    try{
+                        connection.writeLine(message(due));
+                        if(due >= measureStart && due < measureEnd){
+                            sent.incrementAndGet();
+                        }
+                    }catch(IOException e){
+                        sendErrors.incrementAndGet();
+                        throw new RuntimeException(e);
+                    }
+                    due += period;
+                }
+            }, Math.max(0, firstDue - System.nanoTime()), period, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Leaves the server, so the username and session are released straight away. The reader closes the connection
+         * once the server has closed its end.
+         */
+        void stop(){
+            stopping = true;
+            try{
+                connection.writeLine(">>quit");
+            }catch(IOException e){
+                //The reader has already seen the connection fail
+            }
+        }
+
+        /**
+         * Reads broadcasts until the connection closes
+         */
+        @Override
+        public void run(){
+            try{
+                String line;
+                while((line = connection.readLine()) != null){
+                    long now = System.nanoTime();
+                    long due = dueTime(line);
+                    if(due >= measureStart && due < measureEnd){
+                        latencies.record((now - due) / 1000);
+                        received++;
+                    }
+                }
+                if(!stopping){
+                    lostConnections.incrementAndGet();
+                }
+            }catch(IOException e){
+                if(!stopping){
+                    lostConnections.incrementAndGet();
+                }
+            }finally{
+                connection.close();
+            }
+        }
+    }
+}
@@ -109,8 +109,7 @@ public class ConnectGUIController{
 
             //Set controller and pass connection resources
             MainGUIController newController = fxmlLoader.getController();
-            newController.setInFromServer(model.getInputStream());
-            newController.setOutToServer(model.getOutputStream());
+            newController.setConnection(model);
 
             //Show new stage
             newStage.setTitle("Chat Client - " + model.getServerAddress());
@@ -0,0 +1,91 @@
+package Controller;
+
+import Model.ChatClient;
+import Model.ChatListener;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+/**
+ * Command-line client without a GUI, for scripts, bots and load tests. Every line read from standard input is sent to
+ * the server, and every message from the server is written to standard output. Reaching the end of standard input
+ * quits. Diagnostics are written to standard error.
+ *
+ * Exits with 0 after quitting, 1 if the server refused the connection, 2 if the server could not be reached, and 3 if
+ * the connection was lost and could not be re-established.
+ *
+ * @see Model.ChatClient
+ */
+public class HeadlessMain {
+
+    /**
+     * Entry point of the headless client
+     *
+     * @param args server address, port number and username
+     */
+    public static void main(String[] args){
+        if(args.length != 3){
+            System.err.println("Usage: HeadlessMain <server address> <port number> <username>");
+            System.exit(1);
+        }
+
+        int port;
+        try{
+            port = Integer.parseInt(args[1]);
+        }catch(NumberFormatException e){
+            System.err.println("Error: port number must be a number.");
+            System.exit(1);
+            return;
+        }
+
+        final ChatClient client = new ChatClient(args[0], port, args[2]);
+        try{
+            String error = client.connect();
+            if(error != null){
+                System.err.println(error);
+                System.exit(1);
+            }
+        }catch(IOException e){
+            System.err.println("Error: Server unreachable (" + e.getMessage() + ").");
+            System.exit(2);
+        }
+        System.err.println("Connected: " + client.getConnectTimings());
+
+        client.start(new ChatListener() {
+            @Override
+            public void messageReceived(String line){
+                System.out.println(line);
+            }
+
+            @Override
+            public void connectionClosed(){
+                System.out.flush();
+            }
+        });
+
+        Thread input = new Thread(new Runnable() {
+            @Override
+            public void run(){
+                BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+                try{
+                    String line;
+                    while((line = in.readLine()) != null){
+                        client.send(line);
+                    }
+                }catch(IOException e){
+                    System.err.println("Error while reading standard input");
+                }
+                client.quit();
+            }
+        }, "input-reader");
+        input.setDaemon(true);
+        input.start();
+
+        try{
+            client.awaitClose(0);
+        }catch(InterruptedException e){
+            System.exit(3);
+        }
+        System.exit(client.getConnection().isQuitting() ? 0 : 3);
+    }
+}
@@ -3,10 +3,26 @@ package Controller;
 import GUI.ConnectGUI;
 
 /**
- * Entry point of program. Launches the connect GUI.
+ * Entry point of program. Launches the connect GUI, or the headless client when the first argument is '--headless'.
+ *
+ * @see Controller.HeadlessMain
  */
 public class Main {
     public static void main(String[] args){
+        if(args.length > 0 && args[0].equals("--headless")){
+            String[] headlessArgs = new String[args.length - 1];
+            System.arraycopy(args, 1, headlessArgs, 0, headlessArgs.length);
+            HeadlessMain.main(headlessArgs);
+            return;
+        }
+
+        launchGUI();
+    }
+
+    /**
+     * Kept apart from main so the headless client never loads JavaFX
+     */
+    private static void launchGUI(){
         ConnectGUI startGUI = new ConnectGUI();
         startGUI.launchClientConnect();
     }
@@ -1,71 +1,70 @@
 package Controller;
 
-import Model.ReceiveMessageModel;
-import Model.SendMessageModel;
+import Model.ChatClient;
+import Model.ConnectionModel;
+import Model.TranscriptLog;
+import Model.TranscriptModel;
 import javafx.event.EventHandler;
 import javafx.fxml.FXML;
-import javafx.scene.control.TextArea;
+import javafx.scene.control.ListView;
 import javafx.scene.control.TextField;
 import javafx.stage.Stage;
 import javafx.stage.WindowEvent;
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
+
+import java.io.IOException;
 
 /**
  * Controller for the main chat window defined in GUIMain.fxml. Handles both send button click events and incoming data
- * from the server. Employs the use of SendMessageModel and ReceiveMessageModel classes to handle data from the user and
- * data from the server, respectively.
+ * from the server. Employs a ChatClient, whose SendMessageModel and ReceiveMessageModel handle data from the user and
+ * data from the server, respectively, and shows the client's output in the transcript through a TranscriptModel, which
+ * also saves it to the server's TranscriptLog.
  *
- * @see Model.SendMessageModel
- * @see Model.ReceiveMessageModel
+ * @see Model.ChatClient
+ * @see Model.TranscriptModel
  */
 public class MainGUIController {
-    @FXML private TextArea transcript;
+    @FXML private ListView<String> transcript;
     @FXML private TextField sendField;
 
-    DataOutputStream outputStream;
-    BufferedReader inputStream;
-    ReceiveMessageModel receiveModel;
+    ChatClient client;
+    TranscriptModel transcriptModel;
 
     /**
-     * Method called on send button click event. For every send button click event, a new SendMessageModel object is
-     * instantiated and the output stream to the server and the text entered in the send field are passed in the
-     * constructor. The SendMessageModel is then run in a separate thread to prevent the GUI from freezing while the
-     * message is being sent. After the SendMessageModel has begun, the sendField is cleared so that the user can enter
-     * more messages.
+     * Method called on send button click event. The text entered in the send field is queued with the client, whose
+     * sending thread sends it so that the GUI does not freeze while the message is being sent, and the sendField is
+     * cleared so that the user can enter more messages. Messages are sent in the order they were entered.
      *
      * @see Model.SendMessageModel
      */
     public void send(){
-        SendMessageModel sendModel = new SendMessageModel(outputStream, sendField.getText());
-        new Thread(sendModel).start();
+        client.send(sendField.getText());
         sendField.clear();
     }
 
     /**
-     * Method used to set an output stream to the server. Must be called before the client is ready to send messages
-     * to the server.
+     * Method used to set the connection to the server. When this method is called, the client's sending and receiving
+     * threads are started, with the transcript as their listener. Must be called before the client is ready to send
+     * messages to or receive messages from the server. If the server's transcript log cannot be opened, the transcript
+     * is only kept in memory.
      *
-     * @param outToServer a DataOutputStream object that was established during the connection phase.
+     * @param model the model that established the connection to the server during the connection phase, and that
+     *              re-establishes it if it is lost
      */
-    public void setOutToServer(DataOutputStream outToServer){
-        outputStream = outToServer;
-    }
+    public void setConnection(ConnectionModel model){
+        client = model.getClient();
 
-    /**
-     * Method used to set an input stream from the server. When this method is called, the Controller's internal
-     * ReceiveMessageModel will be instantiated and run in a separate thread. Must be called before the client is ready
-     * to receive messages from the server.
-     *
-     * @param inFromServer an input stream that receives data from the server that was established during the connection
-     *                     phase.
-     */
-    public void setInFromServer(BufferedReader inFromServer){
-        inputStream = inFromServer;
+        TranscriptLog log = null;
+        if(TranscriptLog.isEnabled()){
+            try{
+                log = new TranscriptLog(client.getServerAddress(), client.getPortNumber());
+            }catch(IOException e){
+                System.err.println("Could not open transcript log, continuing without it");
+            }
+        }
 
-        receiveModel = new ReceiveMessageModel(inputStream, transcript);
-        Thread modelThread = new Thread(receiveModel);
-        modelThread.start();
+        transcriptModel = new TranscriptModel(transcript, log);
+        transcriptModel.messageReceived("<<Connected: " + client.getConnectTimings() + ">>");
+        client.start(transcriptModel);
     }
 
     /**
@@ -75,13 +74,14 @@ public class MainGUIController {
     public void setSafeClose(){
         Stage thisStage = (Stage) transcript.getScene().getWindow();
         /**
-         * Close request event handler set on main chat window. Allows main window to attempt a clean shutdown.
+         * Close request event handler set on main chat window. Allows main window to attempt a clean shutdown: messages
+         * still waiting to be sent go out before '>>quit', and the transcript log is closed.
          */
         thisStage.setOnCloseRequest(new EventHandler<WindowEvent>() {
             @Override
             public void handle(WindowEvent event) {
-                SendMessageModel finalSendModel = new SendMessageModel(outputStream, ">>quit");
-                finalSendModel.run();
+                client.quit();
+                transcriptModel.close();
                 System.exit(0);
             }
         });
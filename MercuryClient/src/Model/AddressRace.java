@@ -0,0 +1,207 @@
+package Model;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens a socket to a server whose name may resolve to several addresses, in the manner of Happy Eyeballs (RFC 8305).
+ * The addresses are tried in the order the resolver returned them, alternating between IPv6 and IPv4. Each attempt
+ * gets ATTEMPT_DELAY_MILLIS to connect before the next one is started alongside it, and a failed attempt starts the
+ * next one at once. The first socket to connect wins and every other attempt is abandoned, so an address that does not
+ * answer costs a fraction of a second rather than the whole connect timeout.
+ *
+ * @see Model.ChatConnection
+ */
+class AddressRace {
+    static long ATTEMPT_DELAY_MILLIS = 250;
+
+    String host;
+    int port;
+    LinkedBlockingQueue<Attempt> finished;
+    List<Attempt> started;
+    long resolveNanos;
+    long connectNanos;
+    int addressCount;
+    InetAddress winner;
+
+    /**
+     * A single connection attempt, run on its own thread
+     */
+    class Attempt implements Runnable {
+        InetAddress address;
+        Socket socket;
+        int timeoutMillis;
+        IOException failure;
+
+        Attempt(InetAddress addr, int timeout){
+            address = addr;
+            socket = new Socket();
+            timeoutMillis = timeout;
+        }
+
+        @Override
+        public void run(){
+            try{
+                socket.connect(new InetSocketAddress(address, port), timeoutMillis);
+            }catch(IOException e){
+                failure = e;
+            }
+            finished.add(this);
+        }
+    }
+
+    /**
+     * Constructor for AddressRace
+     *
+     * @param h name or address of the server
+     * @param p port number of the server application
+     */
+    AddressRace(String h, int p){
+        host = h;
+        port = p;
+        finished = new LinkedBlockingQueue<Attempt>();
+        started = new ArrayList<Attempt>();
+    }
+
+    /**
+     * Resolves the server's name and races connections to its addresses
+     *
+     * @param timeoutMillis the longest time to wait for any address to connect, or 0 to wait for as long as it takes
+     * @return the connected socket
+     * @throws IOException if the name cannot be resolved, every address failed, or none connected in time
+     */
+    Socket connect(int timeoutMillis) throws IOException {
+        long start = System.nanoTime();
+        List<InetAddress> addresses = interleave(InetAddress.getAllByName(host));
+        resolveNanos = System.nanoTime() - start;
+        addressCount = addresses.size();
+
+        start = System.nanoTime();
+        long deadline = timeoutMillis > 0 ? start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : Long.MAX_VALUE;
+        int next = 0;
+        int failed = 0;
+        IOException lastFailure = null;
+
+        try{
+            while(true){
+                if(next < addresses.size()){
+                    startAttempt(addresses.get(next++), deadline);
+                }
+
+                long remaining = deadline == Long.MAX_VALUE ? Long.MAX_VALUE : deadline - System.nanoTime();
+                if(remaining <= 0){
+                    throw new SocketTimeoutException("Connect timed out after " + timeoutMillis + " ms");
+                }
+                //With attempts still to start, only wait long enough to give the ones in flight a head start
+                long wait = next < addresses.size()
+                        ? Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(ATTEMPT_DELAY_MILLIS)) : remaining;
+
+                Attempt done = finished.poll(wait, TimeUnit.NANOSECONDS);
+                if(done == null){
+                    continue;
+                }
+                if(done.failure == null){
+                    connectNanos = System.nanoTime() - start;
+                    winner = done.address;
+                    started.remove(done);
+                    return done.socket;
+                }
+
+                lastFailure = done.failure;
+                if(++failed == addresses.size()){
+                    throw lastFailure;
+                }
+            }
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while connecting");
+        }finally{
+            abandon();
+        }
+    }
+
+    /**
+     * Starts an attempt on its own thread
+     *
+     * @param address the address to connect to
+     * @param deadline the System.nanoTime by which the race ends, or Long.MAX_VALUE for none
+     */
+    private void startAttempt(InetAddress address, long deadline){
+        int timeout = 0;
+        if(deadline != Long.MAX_VALUE){
+            //A timeout of 0 would mean none at all
+            timeout = (int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+        }
+
+        Attempt attempt = new Attempt(address, timeout);
+        started.add(attempt);
+        Thread thread = new Thread(attempt, "connect-" + address.getHostAddress());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Closes the sockets of every attempt that did not win, which ends any attempt still connecting
+     */
+    private void abandon(){
+        for(Attempt attempt : started){
+            try{
+                attempt.socket.close();
+            }catch(IOException e){
+                //Already unusable
+            }
+        }
+        started.clear();
+    }
+
+    /**
+     * Orders the addresses so that the families alternate, starting with the family of the resolver's first choice
+     *
+     * @param resolved the addresses in the order the resolver returned them
+     * @return the addresses in the order to try them
+     */
+    private static List<InetAddress> interleave(InetAddress[] resolved){
+        List<InetAddress> preferred = new ArrayList<InetAddress>();
+        List<InetAddress> other = new ArrayList<InetAddress>();
+        boolean firstIsV6 = resolved[0] instanceof Inet6Address;
+
+        for(InetAddress address : resolved){
+            if((address instanceof Inet6Address) == firstIsV6){
+                preferred.add(address);
+            }else{
+                other.add(address);
+            }
+        }
+
+        List<InetAddress> ordered = new ArrayList<InetAddress>(resolved.length);
+        for(int i = 0; i < Math.max(preferred.size(), other.size()); i++){
+            if(i < preferred.size()){
+                ordered.add(preferred.get(i));
+            }
+            if(i < other.size()){
+                ordered.add(other.get(i));
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * Describes how long the connection took, for the user
+     *
+     * @return the address that won, the number of addresses raced and the time taken by each phase
+     */
+    String describe(){
+        return "resolved " + addressCount + (addressCount == 1 ? " address" : " addresses") + " in "
+                + TimeUnit.NANOSECONDS.toMillis(resolveNanos) + " ms, connected to " + winner.getHostAddress()
+                + " in " + TimeUnit.NANOSECONDS.toMillis(connectNanos) + " ms";
+    }
+}
@@ -0,0 +1,267 @@
+package Model;
+
+import org.w3c.dom.Document;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A complete chat client without a user interface, used by both the GUI and the headless client, and embeddable in
+ * bots and other programs. Connects with the protocol specified in Protocol.xml, sends messages in order from a single
+ * SendMessageModel thread, and receives on a ReceiveMessageModel thread that re-establishes the connection whenever it
+ * is lost. Everything the user should see is passed to a ChatListener.
+ *
+ * Typical use:
+ *
+ * ChatClient client = new ChatClient("localhost", 14471, "bot");
+ * String error = client.connect();
+ * if(error == null){
+ *     client.start(listener);
+ *     client.send("hello");
+ *     client.quit();
+ * }
+ * client.close();
+ *
+ * @see Model.ChatConnection
+ * @see Model.SendMessageModel
+ * @see Model.ReceiveMessageModel
+ */
+public class ChatClient {
+    static int RETRY_ATTEMPTS = 10;
+    static long RETRY_INITIAL_MILLIS = 500;
+    static long RETRY_MAX_MILLIS = 30000;
+
+    String serverAddress;
+    int portNumber;
+    String userName;
+    ChatConnection connection;
+    SendMessageModel sendModel;
+    Thread sendThread;
+    Thread receiveThread;
+    String MSG_connectionAccepted = "Connection accepted.";
+    String MSG_duplicateUName = "Error: Duplicate username.";
+    String MSG_longUName = "Error: Long username.";
+    String MSG_illegalUName = "Error: Illegal chars in username.";
+    String MSG_serverFull = "Error: Server full.";
+
+    /**
+     * Constructor for ChatClient. Reads Protocol.xml; nothing is sent until connect is called.
+     *
+     * @param addr address of the server
+     * @param port port number of the server application
+     * @param uName desired username
+     */
+    public ChatClient(String addr, int port, String uName){
+        serverAddress = addr;
+        portNumber = port;
+        userName = uName;
+
+        getProtocol();
+    }
+
+    /**
+     * Connects to the server and performs the handshake. The binary frame protocol is offered during the handshake.
+     * Servers that predate it read the offer as part of the username and reject it as illegal, in which case the
+     * connection is retried once without the offer.
+     *
+     * @return null if the server accepted the connection, otherwise a description of why it did not, for the user
+     * @throws IOException if the server cannot be reached, the connection fails, or the server does not answer within
+     *          the timeouts set on ChatConnection
+     */
+    public String connect() throws IOException {
+        connection = new ChatConnection(serverAddress, portNumber);
+        String reply = connection.handshake(userName, true);
+
+        if(reply != null && reply.equalsIgnoreCase(MSG_illegalUName)){
+            connection.close();
+            connection = new ChatConnection(serverAddress, portNumber);
+            reply = connection.handshake(userName, false);
+        }
+
+        if(reply == null){
+            return "Error: Server unreachable.";
+        }else if(reply.equalsIgnoreCase(MSG_connectionAccepted)){
+            return null;
+        }else if(reply.equalsIgnoreCase(MSG_duplicateUName)){
+            return "Error: Duplicate username.";
+        }else if(reply.equalsIgnoreCase(MSG_longUName)){
+            return "Error: server cannot accept a username that long.";
+        }else if(reply.equalsIgnoreCase(MSG_illegalUName)){
+            return "Error: username contains characters that the server cannot accept.";
+        }else if(reply.equalsIgnoreCase(MSG_serverFull)){
+            return "Error: the server is full, try again later.";
+        }
+        return "Error: unknown error, check protocol settings.";
+    }
+
+    /**
+     * Starts the sending and receiving threads. Must be called once, after connect has succeeded.
+     *
+     * @param listener where messages from the server and notices from the client are passed
+     */
+    public void start(ChatListener listener){
+        sendModel = new SendMessageModel(connection, listener);
+        sendThread = new Thread(sendModel, "message-sender");
+        sendThread.setDaemon(true);
+        sendThread.start();
+
+        receiveThread = new Thread(new ReceiveMessageModel(this, listener), "message-receiver");
+        receiveThread.start();
+    }
+
+    /**
+     * Queues a message to be sent. Returns immediately; messages are sent in the order they were queued.
+     *
+     * @param message the message to be sent
+     */
+    public void send(String message){
+        sendModel.send(message);
+    }
+
+    /**
+     * Sends '>>quit' after every message already queued, and waits a short while for it to be sent
+     *
+     * @return true if '>>quit' was sent
+     */
+    public boolean quit(){
+        return sendModel.quit();
+    }
+
+    /**
+     * Releases the connection: the socket is closed, the sending and receiving threads stop, and the compression state
+     * is freed. Messages still queued are not sent, so quit should be called first to leave the server cleanly. May be
+     * called at any time, including after connect failed or the connection was lost for good, and more than once.
+     */
+    public void close(){
+        if(connection == null){
+            return;
+        }
+        if(receiveThread == null){
+            connection.close();
+            return;
+        }
+
+        //The receiving thread closes the connection once it notices, so no read is using the Inflater when it is ended
+        connection.shutdown();
+        receiveThread.interrupt();
+        sendThread.interrupt();
+    }
+
+    /**
+     * Waits for the connection to end for good
+     *
+     * @param millis the longest time to wait, or 0 to wait for as long as it takes
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public void awaitClose(long millis) throws InterruptedException {
+        receiveThread.join(millis);
+    }
+
+    /**
+     * Re-establishes a lost connection, retrying with exponential backoff. The delay before each attempt doubles, up to
+     * RETRY_MAX_MILLIS, and is randomly shortened by up to half so that clients dropped at the same moment do not all
+     * return at the same moment. A refused handshake ends the retries, except for a duplicate username, which is
+     * expected for a short while after a session expires on the server, and a full server, which may have room again
+     * by the next attempt.
+     *
+     * @return a notice for the transcript describing the new connection, or null if every attempt failed
+     * @throws InterruptedException if the thread is interrupted while waiting to retry
+     */
+    public String reconnect() throws InterruptedException {
+        long delay = RETRY_INITIAL_MILLIS;
+
+        for(int attempt = 1; attempt <= RETRY_ATTEMPTS; attempt++){
+            if(connection.isQuitting()){
+                return null;
+            }
+            Thread.sleep(delay / 2 + (long) (Math.random() * (delay / 2)));
+            delay = Math.min(delay * 2, RETRY_MAX_MILLIS);
+
+            try{
+                String reply = connection.resume();
+                if(reply != null && reply.equalsIgnoreCase(MSG_connectionAccepted)){
+                    return connection.isResumed() ? "<<Reconnected to server>>"
+                            : "<<Reconnected to server, messages sent while disconnected were missed>>";
+                }
+                if(reply != null && !reply.equalsIgnoreCase(MSG_duplicateUName)
+                        && !reply.equalsIgnoreCase(MSG_serverFull)){
+                    System.err.println("Server refused reconnect: " + reply);
+                    return null;
+                }
+            }catch(IOException e){
+                System.err.println("Reconnect attempt " + attempt + " failed");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Getter method for the server address.
+     *
+     * @return address of the server
+     */
+    public String getServerAddress(){
+        return serverAddress;
+    }
+
+    /**
+     * Getter method for the port number.
+     *
+     * @return port number of the server application
+     */
+    public int getPortNumber(){
+        return portNumber;
+    }
+
+    /**
+     * Describes how long the connection took to open, phase by phase. Should only be used after a connection attempt
+     * that reached the server.
+     *
+     * @return the time taken to resolve the server's name, connect and complete the handshake, and the address used
+     */
+    public String getConnectTimings(){
+        return connection.getConnectTimings();
+    }
+
+    /**
+     * Getter method for the connection to the server. Should only be used after a successful connection attempt.
+     *
+     * @return connection to the server established by connect
+     */
+    public ChatConnection getConnection(){
+        return connection;
+    }
+
+    /**
+     * Method that reads the Protocol.xml file to get protocol messages used to connect to a server. In order for the
+     * application to function, the Protocol.xml file on the server-side and the Protocol.xml file on the client-side
+     * must be identical. Without the file, the messages of the server's default protocol are used.
+     */
+    private void getProtocol(){
+        File f = new File("Protocol.xml");
+        if(!f.exists()){
+            return;
+        }
+
+        try{
+            DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
+            DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
+            Document doc = dBuilder.parse(f);
+
+            doc.getDocumentElement().normalize();
+
+            MSG_connectionAccepted = doc.getElementsByTagName("connectionSuccess").item(0).getTextContent();
+            MSG_duplicateUName = doc.getElementsByTagName("duplicateUserName").item(0).getTextContent();
+            MSG_longUName = doc.getElementsByTagName("longUserName").item(0).getTextContent();
+            MSG_illegalUName = doc.getElementsByTagName("illegalUserName").item(0).getTextContent();
+            //Older protocol files have no serverFull message; the default matches the server's
+            if(doc.getElementsByTagName("serverFull").getLength() > 0){
+                MSG_serverFull = doc.getElementsByTagName("serverFull").item(0).getTextContent();
+            }
+
+        }catch(Exception e){
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,486 @@
+package Model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A connection to a chat server, independent of the GUI. Performs the username handshake and then reads and writes
+ * messages in whichever wire protocol the handshake settled on. A lost connection can be re-established in place with
+ * resume, so everything holding the ChatConnection keeps working with the new socket.
+ *
+ * During the handshake the client offers the binary frame protocol by sending its username followed by a tab and
+ * 'frame/1'. A server that supports it echoes 'frame/1' after a tab on its acceptance line, and from then on every
+ * message in both directions is a length-prefixed frame with a UTF-8 payload:
+ *
+ * [type: 1 byte][flags: 1 byte][payload length: 4 bytes, big-endian][sequence: 8 bytes, only if flag 1 is set][payload]
+ *
+ * Otherwise the connection keeps using '\n'-terminated lines, exactly as before the frame protocol existed.
+ *
+ * Along with the frame protocol the client offers 'resume/1', and a server that supports resumable sessions echoes
+ * 'resume/1=token'. Every frame from such a server carries a sequence number, and the connection keeps the last one it
+ * received. After losing the connection, the client offers 'resume/1=token,sequence' and the server replays the
+ * messages it missed, without the other users seeing it leave and come back.
+ *
+ * The client also offers 'deflate'. If the server echoes it, everything after the acceptance line is a single DEFLATE
+ * stream in each direction. The connection keeps one Inflater and one Deflater for as long as its socket is open.
+ * Once closed, the connection refuses to write until resume has opened a new socket.
+ *
+ * Outgoing data is buffered and flushed once per call to writeLine or writeLines, so a batch of messages leaves in as
+ * few packets as possible and, with compression, as a single sync-flushed block.
+ *
+ * Opening the socket gives up after CONNECT_TIMEOUT_MILLIS, and the handshake after HANDSHAKE_TIMEOUT_MILLIS without a
+ * reply, so a server that does not answer cannot hang the client. When the server's name resolves to several
+ * addresses, they are raced against each other by an AddressRace.
+ */
+public class ChatConnection {
+    public static final String FRAME_PROTOCOL = "frame/1";
+    public static final String RESUME_PROTOCOL = "resume/1";
+    public static final String DEFLATE_PROTOCOL = "deflate";
+    public static final byte CHAT = 1;
+    public static final byte COMMAND = 2;
+    public static final byte NOTICE = 3;
+    public static final byte PRESENCE = 4;
+    static final int HEADER_LENGTH = 6;
+    static final int FLAG_SEQUENCE = 1;
+    static final int MAX_FRAME_LENGTH = 65536;
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+    static volatile int CONNECT_TIMEOUT_MILLIS = 5000;
+    static volatile int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+
+    String serverAddress;
+    int portNumber;
+    String userName;
+    boolean offeredFrames;
+    Socket socket;
+    BufferedInputStream socketIn;
+    DataInputStream inFromServer;
+    DataOutputStream outToServer;
+    Inflater inflater;
+    Deflater deflater;
+    boolean binaryFrames;
+    boolean compressed;
+    String resumeToken;
+    boolean resumed;
+    volatile long lastSequence;
+    volatile boolean quitting;
+    boolean closed;
+    String connectTimings;
+    long handshakeNanos;
+
+    /**
+     * Constructor for ChatConnection. Opens the socket to the server; no data is exchanged until handshake is called.
+     *
+     * @param address address of the server
+     * @param port port number of the server application
+     * @throws IOException if the server cannot be reached
+     */
+    public ChatConnection(String address, int port) throws IOException {
+        serverAddress = address;
+        portNumber = port;
+        open();
+    }
+
+    /**
+     * Sends the username and reads the server's reply
+     *
+     * @param uName the desired username
+     * @param offerFrames whether to offer the binary frame protocol, a resumable session and compression
+     * @return the server's reply without any capability list, to be compared with the messages in Protocol.xml, or
+     *          null if the server closed the connection without replying
+     * @throws IOException if the connection fails
+     */
+    public String handshake(String uName, boolean offerFrames) throws IOException {
+        userName = uName;
+        offeredFrames = offerFrames;
+        return exchange(offerFrames ? FRAME_PROTOCOL + ' ' + RESUME_PROTOCOL + ' ' + DEFLATE_PROTOCOL : null);
+    }
+
+    /**
+     * Replaces a lost connection with a new one to the same server, and repeats the handshake with the same username
+     * and protocol offer. If the server gave this connection a resumable session, the session is resumed; use
+     * isResumed to find out whether it was. Synchronized so that no message is sent while the socket is replaced.
+     *
+     * @return the server's reply without any capability list, to be compared with the messages in Protocol.xml, or
+     *          null if the server closed the connection without replying
+     * @throws IOException if the server cannot be reached or the connection fails
+     */
+    public synchronized String resume() throws IOException {
+        String previousToken = resumeToken;
+
+        close();
+        open();
+        //shutdown may have been called while the new socket was being opened
+        if(quitting){
+            close();
+            throw new IOException("Connection to server is closed");
+        }
+
+        String offer = null;
+        if(offeredFrames){
+            offer = FRAME_PROTOCOL + ' ' + RESUME_PROTOCOL;
+            if(previousToken != null){
+                offer += "=" + previousToken + ',' + lastSequence;
+            }
+            offer += ' ' + DEFLATE_PROTOCOL;
+        }
+
+        String reply = exchange(offer);
+        resumed = previousToken != null && previousToken.equals(resumeToken);
+        return reply;
+    }
+
+    /**
+     * Sets how long opening a connection may take, for connections opened afterwards
+     *
+     * @param connectMillis the longest time to wait for the socket to connect, or 0 to wait for as long as it takes
+     * @param handshakeMillis the longest time to wait for the server's reply to the username, or 0 to wait for as long
+     *          as it takes
+     */
+    public static void setTimeouts(int connectMillis, int handshakeMillis){
+        CONNECT_TIMEOUT_MILLIS = connectMillis;
+        HANDSHAKE_TIMEOUT_MILLIS = handshakeMillis;
+    }
+
+    /**
+     * Getter method for the connect timeout
+     *
+     * @return the longest time to wait for the socket to connect, in milliseconds
+     */
+    public static int getConnectTimeout(){
+        return CONNECT_TIMEOUT_MILLIS;
+    }
+
+    /**
+     * Getter method for the handshake timeout
+     *
+     * @return the longest time to wait for the server's reply to the username, in milliseconds
+     */
+    public static int getHandshakeTimeout(){
+        return HANDSHAKE_TIMEOUT_MILLIS;
+    }
+
+    /**
+     * Describes how long the last connection took to open, phase by phase
+     *
+     * @return the time taken to resolve the server's name, connect and complete the handshake, and the address used
+     */
+    public String getConnectTimings(){
+        return connectTimings + ", handshake in " + TimeUnit.NANOSECONDS.toMillis(handshakeNanos) + " ms";
+    }
+
+    /**
+     * Determines whether the last call to resume picked up the previous session, in which case no messages were lost
+     * while the connection was down
+     *
+     * @return true if the session was resumed
+     */
+    public boolean isResumed(){
+        return resumed;
+    }
+
+    /**
+     * Determines whether the user asked to leave the server, in which case a lost connection should not be resumed
+     *
+     * @return true if '>>quit' has been sent, or the connection was shut down
+     */
+    public boolean isQuitting(){
+        return quitting;
+    }
+
+    /**
+     * Opens the socket to the server, racing its addresses if it has several
+     *
+     * @throws IOException if the server cannot be reached
+     */
+    private void open() throws IOException {
+        AddressRace race = new AddressRace(serverAddress, portNumber);
+        socket = race.connect(CONNECT_TIMEOUT_MILLIS);
+        connectTimings = race.describe();
+        //Only the handshake is timed out; once connected, a quiet room is not a dead server
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+        //Not a BufferedReader: its read-ahead would swallow the first frames sent after the acceptance line
+        socketIn = new BufferedInputStream(socket.getInputStream());
+        inFromServer = new DataInputStream(socketIn);
+        outToServer = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        compressed = false;
+        closed = false;
+    }
+
+    /**
+     * Sends the username with a capability list and reads the server's reply, noting which capabilities the server
+     * echoed
+     *
+     * @param capabilities the space-separated capabilities to offer, or null to send the username alone
+     * @return the server's reply without any capability list, or null if the server closed the connection
+     * @throws IOException if the connection fails or the server does not reply within HANDSHAKE_TIMEOUT_MILLIS
+     */
+    private String exchange(String capabilities) throws IOException {
+        long start = System.nanoTime();
+        outToServer.writeBytes(capabilities != null ? userName + '\t' + capabilities + '\n' : userName + '\n');
+        outToServer.flush();
+
+        String reply;
+        try{
+            reply = readRawLine();
+        }catch(SocketTimeoutException e){
+            throw new SocketTimeoutException("No reply from the server within " + HANDSHAKE_TIMEOUT_MILLIS + " ms");
+        }
+        handshakeNanos = System.nanoTime() - start;
+        socket.setSoTimeout(0);
+        if(reply == null){
+            return null;
+        }
+
+        String[] parts = reply.split("\t", 2);
+        String echoed = capabilities != null && parts.length > 1 ? parts[1] : "";
+        binaryFrames = capabilityValue(echoed, FRAME_PROTOCOL) != null;
+        resumeToken = capabilityValue(echoed, RESUME_PROTOCOL);
+        if(resumeToken != null && resumeToken.isEmpty()){
+            resumeToken = null;
+        }
+
+        if(capabilityValue(echoed, DEFLATE_PROTOCOL) != null){
+            //The server may already have sent compressed data, which would be in socketIn's buffer
+            inflater = new Inflater(true);
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            inFromServer = new DataInputStream(new BufferedInputStream(new InflaterInputStream(socketIn, inflater)));
+            outToServer = new DataOutputStream(new BufferedOutputStream(
+                    new DeflaterOutputStream(socket.getOutputStream(), deflater, true)));
+            compressed = true;
+        }
+        return parts[0];
+    }
+
+    /**
+     * Finds a capability in the list echoed by the server
+     *
+     * @param capabilities the space-separated capabilities
+     * @param capability the name of the capability
+     * @return the capability's value if it was echoed as 'name=value', an empty string if it was echoed without one,
+     *          or null if it was not echoed
+     */
+    private static String capabilityValue(String capabilities, String capability){
+        for(String echoed : capabilities.split(" ")){
+            if(echoed.equals(capability)){
+                return "";
+            }
+            if(echoed.startsWith(capability + '=')){
+                return echoed.substring(capability.length() + 1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Determines whether the handshake settled on compression
+     *
+     * @return true if messages are exchanged as a DEFLATE stream
+     */
+    public boolean usesCompression(){
+        return compressed;
+    }
+
+    /**
+     * Determines whether the handshake settled on the binary frame protocol
+     *
+     * @return true if messages are exchanged as binary frames
+     */
+    public boolean usesBinaryFrames(){
+        return binaryFrames;
+    }
+
+    /**
+     * Reads the next message from the server as text to be shown to the user. The sequence number of a binary frame is
+     * only noted once the whole frame has been read. A frame longer than MAX_FRAME_LENGTH is skipped, and read as a
+     * notice saying so.
+     *
+     * @return the message text, or null if the server closed the connection
+     * @throws IOException if the connection fails
+     */
+    public String readLine() throws IOException {
+        if(!binaryFrames){
+            return readRawLine();
+        }
+
+        int type = inFromServer.read();
+        if(type < 0){
+            return null;
+        }
+
+        int flags = inFromServer.readUnsignedByte();
+        int length = inFromServer.readInt();
+        if(length < 0){
+            throw new IOException("Corrupt frame");
+        }
+        long sequence = 0;
+        if((flags & FLAG_SEQUENCE) != 0){
+            sequence = inFromServer.readLong();
+        }
+
+        //Dropping the connection would only have a resumed session replay the same frame, so it is skipped instead
+        if(length > MAX_FRAME_LENGTH){
+            skipFully(length);
+            if(sequence != 0){
+                lastSequence = sequence;
+            }
+            return "<<Skipped a message of " + length + " bytes, too long to show>>";
+        }
+
+        byte[] payload = new byte[length];
+        inFromServer.readFully(payload);
+        if(sequence != 0){
+            lastSequence = sequence;
+        }
+        return new String(payload, UTF_8);
+    }
+
+    /**
+     * Discards the payload of a frame
+     *
+     * @param length the number of bytes to discard
+     * @throws IOException if the connection fails or ends first
+     */
+    private void skipFully(int length) throws IOException {
+        byte[] discard = new byte[8192];
+        while(length > 0){
+            int read = inFromServer.read(discard, 0, Math.min(length, discard.length));
+            if(read < 0){
+                throw new IOException("Connection ended inside a frame");
+            }
+            length -= read;
+        }
+    }
+
+    /**
+     * Sends a message typed by the user. With the frame protocol, input starting with '>>' is sent as a command frame
+     * and everything else as a chat frame. Synchronized so that messages sent from different threads never interleave.
+     *
+     * @param message the message to be sent
+     * @throws IOException if the connection fails
+     */
+    public void writeLine(String message) throws IOException {
+        writeLines(Collections.singletonList(message));
+    }
+
+    /**
+     * Sends several messages in order with a single flush
+     *
+     * @param messages the messages to be sent
+     * @throws IOException if the connection fails or is closed; some of the messages may have been sent
+     */
+    public synchronized void writeLines(List<String> messages) throws IOException {
+        //The streams of a closed connection may wrap an ended Deflater
+        if(closed){
+            throw new IOException("Connection to server is closed");
+        }
+        for(String message : messages){
+            writeMessage(message);
+        }
+        //With compression, this is also the sync flush that lets the server decode everything just written
+        outToServer.flush();
+    }
+
+    /**
+     * Writes a single message into the output buffer
+     *
+     * @param message the message to be sent
+     * @throws IOException if the connection fails
+     */
+    private void writeMessage(String message) throws IOException {
+        if(message.equals(">>quit")){
+            quitting = true;
+        }
+        if(!binaryFrames){
+            outToServer.writeBytes(message + '\n');
+            return;
+        }
+
+        boolean command = message.startsWith(">>");
+        byte[] payload = (command ? message.substring(2) : message).getBytes(UTF_8);
+        byte[] frame = new byte[HEADER_LENGTH + payload.length];
+
+        frame[0] = command ? COMMAND : CHAT;
+        frame[1] = 0;
+        frame[2] = (byte) (payload.length >>> 24);
+        frame[3] = (byte) (payload.length >>> 16);
+        frame[4] = (byte) (payload.length >>> 8);
+        frame[5] = (byte) payload.length;
+        System.arraycopy(payload, 0, frame, HEADER_LENGTH, payload.length);
+
+        outToServer.write(frame);
+    }
+
+    /**
+     * Closes the connection to the server and releases its compression state. Writes fail with an IOException until
+     * resume has opened a new socket. Synchronized so that a write in progress finishes before the Deflater is ended.
+     */
+    public synchronized void close(){
+        closed = true;
+        compressed = false;
+        try{
+            socket.close();
+        }catch(IOException e){
+            System.err.println("Error while closing connection to server");
+        }
+        //Only ever closed from the receiving thread or on exit, so no read is using the inflater any more
+        if(inflater != null){
+            inflater.end();
+            deflater.end();
+            inflater = null;
+            deflater = null;
+        }
+    }
+
+    /**
+     * Ends the connection for good from any thread. Nothing more is sent, and a read blocked on the socket returns, so
+     * the receiving thread sees the connection end as if the user had quit, and releases it with close.
+     */
+    public void shutdown(){
+        quitting = true;
+        try{
+            socket.close();
+        }catch(IOException e){
+            System.err.println("Error while closing connection to server");
+        }
+    }
+
+    /**
+     * Reads a '\n' terminated line without reading ahead of the terminator. A trailing '\r' is dropped.
+     *
+     * @return the line, or null if the stream ended before any data
+     * @throws IOException if the connection fails
+     */
+    private String readRawLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+
+        while((b = inFromServer.read()) >= 0 && b != '\n'){
+            line.write(b);
+        }
+
+        if(b < 0 && line.size() == 0){
+            return null;
+        }
+
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length;
+        if(length > 0 && bytes[length - 1] == '\r'){
+            length--;
+        }
+        return new String(bytes, 0, length, Charset.defaultCharset());
+    }
+}
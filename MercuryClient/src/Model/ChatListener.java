@@ -0,0 +1,24 @@
+package Model;
+
+/**
+ * Receives what a ChatClient has to show its user: messages from the server, and notices from the client itself such
+ * as a lost connection or a message that could not be sent. Notices are formatted like the server's, as '<<text>>'.
+ * Methods are called from the client's own threads, never from the thread that created the client.
+ *
+ * @see Model.ChatClient
+ */
+public interface ChatListener {
+
+    /**
+     * Called for every message from the server and every notice from the client, in order
+     *
+     * @param line the message or notice
+     */
+    void messageReceived(String line);
+
+    /**
+     * Called once the connection has ended for good, either because the user quit or because it was lost and could
+     * not be re-established
+     */
+    void connectionClosed();
+}
@@ -4,32 +4,20 @@ import Controller.ConnectGUIController;
 import javafx.application.Platform;
 import javafx.concurrent.Task;
 import javafx.scene.control.Label;
-import org.w3c.dom.Document;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
-import java.io.File;
-import java.io.InputStreamReader;
-import java.net.Socket;
+import java.net.SocketTimeoutException;
 
 /**
  * Model class for the connection phase of the application. Attempts to establish connections to the server
- * based on a protocol specified in Protocol.xml.
+ * based on a protocol specified in Protocol.xml, through a ChatClient that, once connected, also re-establishes the
+ * connection whenever it is lost, resuming the session on the server where possible.
+ *
+ * @see Model.ChatClient
  */
 public class ConnectionModel extends Task<Void>{
-    String serverAddress;
-    String userName;
-    int portNumber;
     boolean connectionInProgress;
-    DataOutputStream outToServer;
-    BufferedReader inFromServer;
+    ChatClient client;
     Label status;
     ConnectGUIController parentController;
-    String MSG_connectionAccepted;
-    String MSG_duplicateUName;
-    String MSG_longUName;
-    String MSG_illegalUName;
 
     /**
      * Constructor for the ConnectionModel
@@ -47,14 +35,11 @@ public class ConnectionModel extends Task<Void>{
             ConnectGUIController parent,
             int port
     ) {
-        serverAddress = addr;
-        userName = uName;
         status = statusLabel;
         connectionInProgress = true;
         parentController = parent;
-        portNumber = port;
 
-        getProtocol();
+        client = new ChatClient(addr, port, uName);
     }
 
 
@@ -70,19 +55,14 @@ public class ConnectionModel extends Task<Void>{
      * @see GUI.ConnectGUI
      */
     public Void call(){
-        System.out.println("Connect called with " + serverAddress + " " + userName);
+        System.out.println("Connect called with " + client.getServerAddress() + " " + client.userName);
         updateStatus("Attempting to connect...");
 
         try{
-            Socket clientSocket = new Socket(serverAddress, portNumber);
-            outToServer = new DataOutputStream(clientSocket.getOutputStream());
-            inFromServer = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+            String error = client.connect();
 
-            outToServer.writeBytes(userName + '\n');
-            String initialReturn = inFromServer.readLine();
-
-            if(initialReturn.equalsIgnoreCase(MSG_connectionAccepted)){
-                updateStatus("Connected successfully!");
+            if(error == null){
+                updateStatus("Connected successfully! (" + client.getConnectTimings() + ")");
                 connectionInProgress = false;
 
                 Platform.runLater(new Runnable(){
@@ -94,20 +74,14 @@ public class ConnectionModel extends Task<Void>{
 
                 });
 
-            }else if(initialReturn.equalsIgnoreCase(MSG_duplicateUName)){
-                updateStatus("Error: Duplicate username.");
-                connectionInProgress = false;
-            }else if(initialReturn.equalsIgnoreCase(MSG_longUName)){
-                updateStatus("Error: server cannot accept a username that long.");
-                connectionInProgress = false;
-            }else if(initialReturn.equalsIgnoreCase(MSG_illegalUName)){
-                updateStatus("Error: username contains characters that the server cannot accept.");
-                connectionInProgress = false;
             }else{
-                updateStatus("Error: unknown error, check protocol settings.");
+                updateStatus(error);
                 connectionInProgress = false;
             }
 
+        }catch(SocketTimeoutException e){
+            updateStatus("Error: " + e.getMessage() + ".");
+            connectionInProgress = false;
         }catch(Throwable e){
             System.out.println("caught exception");
             //e.printStackTrace();
@@ -123,25 +97,16 @@ public class ConnectionModel extends Task<Void>{
      * @return server address used in the connection attempt
      */
     public String getServerAddress(){
-        return serverAddress;
-    }
-
-    /**
-     * Getter method for the output stream to the server. Should only be used after a successful connection attempt.
-     *
-     * @return output stream to server established in the connection attempt.
-     */
-    public DataOutputStream getOutputStream(){
-        return outToServer;
+        return client.getServerAddress();
     }
 
     /**
-     * Getter method for the input stream from the server. Should only be used after a successful connection attempt.
+     * Getter method for the client. Should only be used after a successful connection attempt.
      *
-     * @return input stream from the server established in the connection attempt.
+     * @return the client connected in the connection attempt, which the main GUI starts
      */
-    public BufferedReader getInputStream(){
-        return inFromServer;
+    public ChatClient getClient(){
+        return client;
     }
 
     /**
@@ -170,28 +135,4 @@ public class ConnectionModel extends Task<Void>{
 
         });
     }
-
-    /**
-     * Method that reads the Protocol.xml file to get protocol messages used to connect to a server. In order for the
-     * application to function, the Protocol.xml file on the server-side and the Protocol.xml file on the client-side
-     * must be identical.
-     */
-    private void getProtocol(){
-        try{
-            File f = new File("Protocol.xml");
-            DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-            Document doc = dBuilder.parse(f);
-
-            doc.getDocumentElement().normalize();
-
-            MSG_connectionAccepted = doc.getElementsByTagName("connectionSuccess").item(0).getTextContent();
-            MSG_duplicateUName = doc.getElementsByTagName("duplicateUserName").item(0).getTextContent();
-            MSG_longUName = doc.getElementsByTagName("longUserName").item(0).getTextContent();
-            MSG_illegalUName = doc.getElementsByTagName("illegalUserName").item(0).getTextContent();
-
-        }catch(Exception e){
-            e.printStackTrace();
-        }
-    }
 }
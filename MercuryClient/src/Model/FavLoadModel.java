@@ -3,6 +3,7 @@ package Model;
 import javafx.application.Platform;
 import javafx.scene.control.TextField;
 import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -35,7 +36,11 @@ public class FavLoadModel implements Runnable{
     /**
      * Thread method that reads the preference file. The preference file should be composed of three elements: address,
      * userName, and port. This function will pre-load the address, user name, and port text fields of the connectGUI
-     * with the data corresponding to each of the respective elements found in pref.xml.
+     * with the data corresponding to each of the respective elements found in pref.xml. The optional scrollback element
+     * sets the number of lines the chat transcript keeps, and the optional connectTimeout and handshakeTimeout elements
+     * how many milliseconds a connection attempt waits for the server. The optional transcriptDir element sets the
+     * directory where transcripts are saved, or turns saving them off when empty, and the optional transcriptMaxBytes
+     * element the size each transcript is kept to.
      * If no file is found, there will simply be no preference data loaded into the GUI.
      *
      * Expected format of pref.xml:
@@ -43,6 +48,11 @@ public class FavLoadModel implements Runnable{
      *     <address>**Address of preferred server**</address>
      *     <userName>**Preferred username**</userName>
      *     <port>**Preferred port**</port>
+     *     <scrollback>**Number of transcript lines kept**</scrollback>
+     *     <connectTimeout>**Milliseconds to wait for the connection**</connectTimeout>
+     *     <handshakeTimeout>**Milliseconds to wait for the server's reply**</handshakeTimeout>
+     *     <transcriptDir>**Directory where transcripts are saved**</transcriptDir>
+     *     <transcriptMaxBytes>**Size each transcript is kept to**</transcriptMaxBytes>
      * </preference>
      */
     public void run(){
@@ -57,6 +67,27 @@ public class FavLoadModel implements Runnable{
             address = doc.getElementsByTagName("address").item(0).getTextContent();
             userName = doc.getElementsByTagName("userName").item(0).getTextContent();
             portNum = doc.getElementsByTagName("port").item(0).getTextContent();
+            NodeList scrollback = doc.getElementsByTagName("scrollback");
+            if(scrollback.getLength() > 0){
+                TranscriptModel.setScrollback(Integer.parseInt(scrollback.item(0).getTextContent().trim()));
+            }
+            NodeList connectTimeout = doc.getElementsByTagName("connectTimeout");
+            NodeList handshakeTimeout = doc.getElementsByTagName("handshakeTimeout");
+            ChatConnection.setTimeouts(
+                    connectTimeout.getLength() > 0 ? Integer.parseInt(connectTimeout.item(0).getTextContent().trim())
+                            : ChatConnection.getConnectTimeout(),
+                    handshakeTimeout.getLength() > 0
+                            ? Integer.parseInt(handshakeTimeout.item(0).getTextContent().trim())
+                            : ChatConnection.getHandshakeTimeout()
+            );
+            NodeList transcriptDir = doc.getElementsByTagName("transcriptDir");
+            if(transcriptDir.getLength() > 0){
+                TranscriptLog.setDirectory(transcriptDir.item(0).getTextContent().trim());
+            }
+            NodeList transcriptMaxBytes = doc.getElementsByTagName("transcriptMaxBytes");
+            if(transcriptMaxBytes.getLength() > 0){
+                TranscriptLog.setMaxBytes(Long.parseLong(transcriptMaxBytes.item(0).getTextContent().trim()));
+            }
 
             Platform.runLater(new Runnable() {
                 @Override
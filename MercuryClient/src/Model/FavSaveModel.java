@@ -42,6 +42,11 @@ public class FavSaveModel implements Runnable{
      *     <address>**Address of preferred server**</address>
      *     <userName>**Preferred username**</userName>
      *     <port>**Preferred port**</port>
+     *     <scrollback>**Number of transcript lines kept**</scrollback>
+     *     <connectTimeout>**Milliseconds to wait for the connection**</connectTimeout>
+     *     <handshakeTimeout>**Milliseconds to wait for the server's reply**</handshakeTimeout>
+     *     <transcriptDir>**Directory where transcripts are saved**</transcriptDir>
+     *     <transcriptMaxBytes>**Size each transcript is kept to**</transcriptMaxBytes>
      * </preference>
      */
     public void run(){
@@ -69,6 +74,30 @@ public class FavSaveModel implements Runnable{
             portNode.appendChild(doc.createTextNode(portNumber));
             rootElement.appendChild(portNode);
 
+            //Scrollback element, kept as loaded
+            Element scrollbackNode = doc.createElement("scrollback");
+            scrollbackNode.appendChild(doc.createTextNode(Integer.toString(TranscriptModel.getScrollback())));
+            rootElement.appendChild(scrollbackNode);
+
+            //Timeout elements, kept as loaded
+            Element connectTimeoutNode = doc.createElement("connectTimeout");
+            connectTimeoutNode.appendChild(doc.createTextNode(Integer.toString(ChatConnection.getConnectTimeout())));
+            rootElement.appendChild(connectTimeoutNode);
+
+            Element handshakeTimeoutNode = doc.createElement("handshakeTimeout");
+            handshakeTimeoutNode.appendChild(
+                    doc.createTextNode(Integer.toString(ChatConnection.getHandshakeTimeout())));
+            rootElement.appendChild(handshakeTimeoutNode);
+
+            //Transcript directory element, kept as loaded
+            Element transcriptDirNode = doc.createElement("transcriptDir");
+            transcriptDirNode.appendChild(doc.createTextNode(TranscriptLog.getDirectory()));
+            rootElement.appendChild(transcriptDirNode);
+
+            Element transcriptMaxBytesNode = doc.createElement("transcriptMaxBytes");
+            transcriptMaxBytesNode.appendChild(doc.createTextNode(Long.toString(TranscriptLog.getMaxBytes())));
+            rootElement.appendChild(transcriptMaxBytesNode);
+
             //write content out to xml
             TransformerFactory transformerFactory = TransformerFactory.newInstance();
             Transformer transformer = transformerFactory.newTransformer();
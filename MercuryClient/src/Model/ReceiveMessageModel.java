@@ -1,63 +1,86 @@
 package Model;
 
-import javafx.application.Platform;
-import javafx.concurrent.Task;
-import javafx.scene.control.TextArea;
-import java.io.BufferedReader;
 import java.io.IOException;
 
 /**
- * Model class for receiving messages from the server
+ * Model class for receiving messages from the server. Notices when the connection is lost and has the ChatClient
+ * re-establish it, and closes the connection once it has ended for good.
+ *
+ * @see Model.ChatClient
  */
-public class ReceiveMessageModel extends Task<Void> {
-    BufferedReader inFromServer;
-    TextArea transcript;
+public class ReceiveMessageModel implements Runnable {
+    ChatConnection inFromServer;
+    ChatClient client;
+    ChatListener listener;
 
     /**
      * Constructor for ReceiveMessageModel
      *
-     * @param serverInputStream an input stream from the server
-     * @param t a pointer to the text area of the main GUI where the output will be printed
+     * @param c the client that established the connection to the server
+     * @param l where the output will be passed
      */
-    public ReceiveMessageModel(BufferedReader serverInputStream, TextArea t){
-        inFromServer = serverInputStream;
-        transcript = t;
+    public ReceiveMessageModel(ChatClient c, ChatListener l){
+        client = c;
+        inFromServer = c.getConnection();
+        listener = l;
     }
 
     @Override
     /**
-     * Thread method of the runnable ReceiveMessageModel. This thread is meant to run continuously while the application
-     * is in the main phase (unlike the SendMessageModel runnable, which is meant to be instantiated for each message
-     * to be sent). Here, the ReceiveMessageModel listens for input from the server, and updates the GUI's text area
-     * whenever information is received.
+     * Thread method of the runnable ReceiveMessageModel. This thread is meant to run continuously while the client is
+     * connected, alongside the SendMessageModel's thread. Here, the ReceiveMessageModel listens for input from the
+     * server, and passes it to the listener whenever information is received. If the connection is lost without the
+     * user having quit, it is re-established and listening continues on the new connection.
      */
-    public Void call(){
-        System.out.println("Listening for server input...");
+    public void run(){
+        receive();
+        inFromServer.close();
+        listener.connectionClosed();
+    }
+
+    /**
+     * Receives until the user quits or the connection is lost for good
+     */
+    private void receive(){
+        System.err.println("Listening for server input...");
         String serverData;
-        try{
-            while((serverData = inFromServer.readLine()) != null){
-                updateTranscript(serverData);
+
+        while(true){
+            try{
+                while((serverData = inFromServer.readLine()) != null){
+                    updateTranscript(serverData);
+                }
+            }catch(IOException e){
+                System.err.println("Lost connection to server");
             }
-        }catch(IOException e){
-            updateTranscript("<<Error: lost connection to server, consider restarting client>>");
-        }
 
-        return null;
+            if(inFromServer.isQuitting()){
+                return;
+            }
+            updateTranscript("<<Lost connection to server, reconnecting...>>");
+
+            String reconnected;
+            try{
+                reconnected = client.reconnect();
+            }catch(InterruptedException e){
+                return;
+            }
+            if(reconnected == null){
+                if(!inFromServer.isQuitting()){
+                    updateTranscript("<<Error: lost connection to server, consider restarting client>>");
+                }
+                return;
+            }
+            updateTranscript(reconnected);
+        }
     }
 
     /**
-     * private method to update the main GUI's text area with a new message
+     * private method to pass a new message to the listener
      *
-     * @param newMessage the message to be appended to the text area
+     * @param newMessage the message to be passed on
      */
-    private void updateTranscript(final String newMessage){
-        Platform.runLater(new Runnable(){
-            @Override
-            public void run(){
-                System.out.println("Updating outToClient");
-                transcript.appendText(newMessage + '\n');
-            }
-
-        });
+    private void updateTranscript(String newMessage){
+        listener.messageReceived(newMessage);
     }
 }
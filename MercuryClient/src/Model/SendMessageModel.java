@@ -1,38 +1,122 @@
 package Model;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Model class for sending a message to the server
+ * Model class for sending messages to the server. A single SendMessageModel serves a connection for as long as it is
+ * open: messages typed by the user are queued, and the model's thread sends them in the order they were typed.
+ * Messages queued while a send is in progress are sent together, in order, with a single flush. A message that cannot
+ * be sent is reported to the ChatListener.
+ *
+ * @see Model.ChatConnection
  */
 public class SendMessageModel implements Runnable {
-    DataOutputStream outputStream;
-    String message;
+    static int MAX_BATCH = 64;
+    static long QUIT_TIMEOUT_MILLIS = 2000;
+    static String QUIT = ">>quit";
+
+    ChatConnection connection;
+    ChatListener listener;
+    LinkedBlockingQueue<String> queue;
+    CountDownLatch quitSent;
+    volatile boolean quitQueued;
 
     /**
      * Constructor for SendMessageModel
      *
-     * @param outToServer an output stream to the server
-     * @param msg the message to be sent
+     * @param serverConnection the connection to the server
+     * @param l where messages that could not be sent are reported
+     */
+    public SendMessageModel(ChatConnection serverConnection, ChatListener l){
+        connection = serverConnection;
+        listener = l;
+        queue = new LinkedBlockingQueue<String>();
+        quitSent = new CountDownLatch(1);
+    }
+
+    /**
+     * Queues a message to be sent. Returns immediately, so it may be called from the GUI thread.
+     *
+     * @param message the message to be sent
+     */
+    public void send(String message){
+        if(!quitQueued){
+            queue.add(message);
+        }
+    }
+
+    /**
+     * Sends '>>quit' after every message already queued, and waits for it to be sent, up to QUIT_TIMEOUT_MILLIS.
+     * Nothing queued after it is sent.
+     *
+     * @return true if '>>quit' was sent, false if sending failed or took too long
      */
-    public SendMessageModel(DataOutputStream outToServer, String msg){
-        outputStream = outToServer;
-        message = msg;
+    public boolean quit(){
+        queue.add(QUIT);
+        quitQueued = true;
+
+        try{
+            return quitSent.await(QUIT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS) && connection.isQuitting();
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            return false;
+        }
     }
 
     @Override
     /**
-     * The thread method of the runnable SendMessageModel. Takes the message specified in the constructor and puts it
-     * into the output stream. Note that the SendMessageModel (as opposed to the ReceiveMessageModel) is meant to be
-     * re-instantiated every time the client sends a new message.
+     * The thread method of the runnable SendMessageModel. Waits for messages to be queued, and sends each message with
+     * everything queued behind it, up to MAX_BATCH messages. A batch that fails to send is reported and the thread
+     * moves on to the next one. Sending ends once '>>quit' has been sent.
      */
     public void run(){
+        List<String> batch = new ArrayList<String>(MAX_BATCH);
+
         try{
-            outputStream.writeBytes(message + '\n');
-        }catch(IOException e){
-            System.out.println("Client tried to send message to unreachable server");
+            while(true){
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+
+                int quitAt = batch.indexOf(QUIT);
+                if(quitAt >= 0){
+                    batch.subList(quitAt + 1, batch.size()).clear();
+                }
+
+                try{
+                    connection.writeLines(batch);
+                }catch(IOException e){
+                    System.err.println("Client tried to send message to unreachable server");
+                    reportFailure(batch);
+                }catch(RuntimeException e){
+                    //This thread is the only way messages reach the server, so it keeps going after any failure
+                    System.err.println("Error while sending message to server: " + e);
+                    reportFailure(batch);
+                }
+
+                if(quitAt >= 0){
+                    quitSent.countDown();
+                    return;
+                }
+                batch.clear();
+            }
+        }catch(InterruptedException e){
+            quitSent.countDown();
         }
+    }
 
+    /**
+     * Reports messages that could not be sent to the listener
+     *
+     * @param failed the messages of the failed send; any of them may in fact have reached the server
+     */
+    private void reportFailure(List<String> failed){
+        for(String message : failed){
+            listener.messageReceived("<<Could not send: " + message + ">>");
+        }
     }
 }
@@ -0,0 +1,308 @@
+package Model;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The transcript of every conversation with one server, kept on disk so that it outlives the chat window. Lines are
+ * appended as UTF-8 text, one per line, to a file named after the server in DIRECTORY, and can be read back a page at
+ * a time from any line towards the start of the file, without reading the rest of it.
+ *
+ * A log is kept to MAX_BYTES: when an append takes it over the limit, the older half of the file is discarded, at a
+ * line break. Offsets handed out by append stay valid across this; they count every byte appended since the log was
+ * opened, and lines discarded meanwhile are simply no longer found by readBefore.
+ *
+ * @see Model.TranscriptModel
+ */
+public class TranscriptLog {
+    static volatile String DIRECTORY = "transcripts";
+    static volatile long MAX_BYTES = 8 * 1024 * 1024;
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+    static final int BLOCK_SIZE = 16384;
+
+    File file;
+    OutputStream out;
+    long length;
+    long discarded;
+
+    /**
+     * A run of lines read back from the log
+     */
+    public static class Page {
+        public List<String> lines;
+        public List<Long> offsets;
+
+        Page(){
+            lines = new ArrayList<String>();
+            offsets = new ArrayList<Long>();
+        }
+    }
+
+    /**
+     * Constructor for TranscriptLog. Opens the log of the given server, creating it if it does not exist yet.
+     *
+     * @param addr address of the server
+     * @param port port number of the server application
+     * @throws IOException if the log cannot be opened
+     */
+    public TranscriptLog(String addr, int port) throws IOException {
+        File dir = new File(DIRECTORY);
+        if(!dir.isDirectory() && !dir.mkdirs()){
+            throw new IOException("Cannot create " + dir);
+        }
+
+        file = new File(dir, addr.replaceAll("[^A-Za-z0-9.-]", "_") + "_" + port + ".log");
+        length = file.length();
+        out = new BufferedOutputStream(new FileOutputStream(file, true));
+
+        //A client that was killed mid-write may have left half a line; it is ended so the next line starts cleanly
+        if(length > 0 && lastByte() != '\n'){
+            out.write('\n');
+            out.flush();
+            length++;
+        }
+    }
+
+    /**
+     * Sets the directory that logs are kept in, for logs opened afterwards
+     *
+     * @param dir the directory, or an empty string to keep no logs
+     */
+    public static void setDirectory(String dir){
+        DIRECTORY = dir;
+    }
+
+    /**
+     * Getter method for the directory that logs are kept in
+     *
+     * @return the directory, or an empty string if no logs are kept
+     */
+    public static String getDirectory(){
+        return DIRECTORY;
+    }
+
+    /**
+     * Sets the size every log is kept to, for appends made afterwards
+     *
+     * @param bytes the largest size of a log file
+     */
+    public static void setMaxBytes(long bytes){
+        MAX_BYTES = bytes;
+    }
+
+    /**
+     * Getter method for the size every log is kept to
+     *
+     * @return the largest size of a log file
+     */
+    public static long getMaxBytes(){
+        return MAX_BYTES;
+    }
+
+    /**
+     * Determines whether logs are kept at all
+     *
+     * @return true if a directory for logs is set
+     */
+    public static boolean isEnabled(){
+        return !DIRECTORY.isEmpty();
+    }
+
+    /**
+     * Appends a line to the log. Each line is written out as soon as it is appended, so nothing is lost if the client
+     * is killed. If the log grows past MAX_BYTES, its older half is discarded first.
+     *
+     * @param line the line to be appended
+     * @return the offset of the line in the log, to read the lines before it with readBefore
+     * @throws IOException if the log cannot be written
+     */
+    public synchronized long append(String line) throws IOException {
+        byte[] bytes = line.getBytes(UTF_8);
+        if(length + bytes.length + 1 > MAX_BYTES && length > 0){
+            discardOlderHalf();
+        }
+
+        long offset = discarded + length;
+
+        out.write(bytes);
+        out.write('\n');
+        out.flush();
+        length += bytes.length + 1;
+        return offset;
+    }
+
+    /**
+     * Getter method for the length of the log
+     *
+     * @return the offset at which the next line will be appended
+     */
+    public synchronized long length(){
+        return discarded + length;
+    }
+
+    /**
+     * Determines whether the log still holds lines before a line
+     *
+     * @param offset the offset of a line returned by append, or the length of the log
+     * @return true if readBefore would find lines before it
+     */
+    public synchronized boolean hasBefore(long offset){
+        return offset > discarded;
+    }
+
+    /**
+     * Reads the lines that end before the given offset. Only as much of the file as holds the lines is read, one block
+     * at a time from the offset backwards. Synchronized so the file is not replaced while it is read.
+     *
+     * @param offset the offset of a line returned by append, or the length of the log
+     * @param maxLines the largest number of lines to read
+     * @return up to maxLines lines, oldest first, with the offset of each
+     * @throws IOException if the log cannot be read
+     */
+    public synchronized Page readBefore(long offset, int maxLines) throws IOException {
+        Page page = new Page();
+        long end = offset - discarded;
+        if(end <= 0 || maxLines <= 0){
+            return page;
+        }
+
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try{
+            //Read further back until the block holds maxLines whole lines, or reaches the start of the file
+            long start;
+            byte[] block;
+            long size = BLOCK_SIZE;
+            while(true){
+                start = Math.max(0, end - size);
+                block = new byte[(int) (end - start)];
+                in.seek(start);
+                in.readFully(block);
+                if(start == 0 || countLines(block) > maxLines){
+                    break;
+                }
+                size *= 2;
+            }
+
+            int from = 0;
+            if(start > 0){
+                //The block begins partway through a line
+                while(block[from] != '\n'){
+                    from++;
+                }
+                from++;
+            }
+
+            List<Integer> starts = new ArrayList<Integer>();
+            for(int i = from; i < block.length; i++){
+                if(i == from || block[i - 1] == '\n'){
+                    starts.add(i);
+                }
+            }
+
+            for(int i = Math.max(0, starts.size() - maxLines); i < starts.size(); i++){
+                int lineStart = starts.get(i);
+                int lineEnd = i + 1 < starts.size() ? starts.get(i + 1) - 1 : block.length - 1;
+                page.lines.add(new String(block, lineStart, lineEnd - lineStart, UTF_8));
+                page.offsets.add(discarded + start + lineStart);
+            }
+        }finally{
+            in.close();
+        }
+        return page;
+    }
+
+    /**
+     * Closes the log
+     */
+    public synchronized void close(){
+        try{
+            out.close();
+        }catch(IOException e){
+            System.err.println("Error while closing " + file);
+        }
+    }
+
+    /**
+     * Replaces the log with its newer half, starting at the first line that begins in that half
+     *
+     * @throws IOException if the log cannot be rewritten
+     */
+    private void discardOlderHalf() throws IOException {
+        out.close();
+
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        long keepFrom = length - Math.min(length, MAX_BYTES / 2);
+        File kept = new File(file.getPath() + ".tmp");
+        try{
+            //Moved forward to the start of a line; if the newer half holds none, everything is discarded
+            in.seek(keepFrom > 0 ? keepFrom - 1 : 0);
+            if(keepFrom > 0){
+                int b;
+                while((b = in.read()) >= 0 && b != '\n'){
+                    keepFrom++;
+                }
+                keepFrom = Math.min(keepFrom, length);
+            }
+
+            FileChannel source = in.getChannel();
+            FileOutputStream target = new FileOutputStream(kept);
+            try{
+                long copied = 0;
+                while(copied < length - keepFrom){
+                    copied += source.transferTo(keepFrom + copied, length - keepFrom - copied, target.getChannel());
+                }
+            }finally{
+                target.close();
+            }
+        }finally{
+            in.close();
+        }
+
+        Files.move(kept.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        discarded += keepFrom;
+        length -= keepFrom;
+        out = new BufferedOutputStream(new FileOutputStream(file, true));
+    }
+
+    /**
+     * Counts the line terminators in a block of the log
+     *
+     * @param block the block
+     * @return the number of '\n' bytes
+     */
+    private static int countLines(byte[] block){
+        int count = 0;
+        for(byte b : block){
+            if(b == '\n'){
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Reads the last byte of the log
+     *
+     * @return the last byte
+     * @throws IOException if the log cannot be read
+     */
+    private int lastByte() throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try{
+            in.seek(length - 1);
+            return in.read();
+        }finally{
+            in.close();
+        }
+    }
+}
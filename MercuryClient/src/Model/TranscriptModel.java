@@ -0,0 +1,349 @@
+package Model;
+
+import javafx.application.Platform;
+import javafx.collections.ObservableList;
+import javafx.geometry.Orientation;
+import javafx.scene.Node;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.control.ScrollBar;
+import javafx.util.Callback;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Model class for the transcript shown in the main GUI. Lines may be appended from any thread. They are queued, and
+ * a single update task on the FX thread adds everything queued since the last update to the list at once, so a busy
+ * room costs one update per pulse of the FX thread rather than one per line.
+ *
+ * The transcript is shown in a ListView, which only creates cells for the lines on screen, and keeps at most SCROLLBACK
+ * lines: older lines are removed as new ones arrive. Lines that arrive faster than the FX thread can show them are
+ * trimmed to the same limit before they reach the list.
+ *
+ * With a TranscriptLog, every line is also appended to the log as it arrives, and lines no longer in the list are read
+ * back from it on demand. While older lines are on disk, the first row of the list is a placeholder; when the user
+ * scrolls up far enough for it to be shown, the PAGE_LINES lines before the oldest line in the list are loaded in its
+ * place.
+ *
+ * New lines only scroll the list to the newest line if it was already showing the newest line. While the user is
+ * scrolled up, the list holds up to twice SCROLLBACK lines, loaded or new, before the oldest are trimmed; once the user
+ * is back at the bottom, the next update trims it to SCROLLBACK again. Memory stays bounded however long the client is
+ * left open.
+ *
+ * @see Model.ChatClient
+ * @see Model.TranscriptLog
+ */
+public class TranscriptModel implements ChatListener {
+    static volatile int SCROLLBACK = 5000;
+    static int PAGE_LINES = 200;
+    //Compared by identity, so a message from the server with the same text is never taken for the placeholder
+    static final String OLDER_LINES = new String("<<Scroll up for earlier messages>>");
+
+    ListView<String> view;
+    int scrollback;
+    ConcurrentLinkedQueue<Line> pending;
+    AtomicInteger pendingCount;
+    AtomicBoolean updateScheduled;
+    Runnable updateTask;
+    volatile TranscriptLog log;
+    ArrayDeque<Long> offsets;
+    long oldestOffset;
+    boolean loading;
+
+    /**
+     * A line waiting to be added to the list, with its offset in the log
+     */
+    static class Line {
+        String text;
+        long offset;
+
+        Line(String t, long o){
+            text = t;
+            offset = o;
+        }
+    }
+
+    /**
+     * Constructor for TranscriptModel. Sets up the list to wrap long lines. Must be called on the FX thread.
+     *
+     * @param list a pointer to the list of the main GUI where the transcript is shown
+     * @param transcriptLog the log that lines are saved to and older lines loaded from, or null to keep no log
+     */
+    public TranscriptModel(ListView<String> list, TranscriptLog transcriptLog){
+        view = list;
+        scrollback = Math.max(1, SCROLLBACK);
+        pending = new ConcurrentLinkedQueue<Line>();
+        pendingCount = new AtomicInteger();
+        updateScheduled = new AtomicBoolean(false);
+        updateTask = new Runnable() {
+            @Override
+            public void run() {
+                update();
+            }
+        };
+        log = transcriptLog;
+        offsets = new ArrayDeque<Long>();
+
+        view.setCellFactory(new Callback<ListView<String>, ListCell<String>>() {
+            @Override
+            public ListCell<String> call(ListView<String> list){
+                ListCell<String> cell = new ListCell<String>(){
+                    @Override
+                    protected void updateItem(String line, boolean empty){
+                        super.updateItem(line, empty);
+                        setText(empty ? null : line);
+                        //The placeholder is only given a cell once the user has scrolled up to it
+                        if(!empty && line == OLDER_LINES){
+                            loadOlder();
+                        }
+                    }
+                };
+                //A preferred width of 0 lets the cell take the list's width, so long lines wrap instead of scrolling
+                cell.setWrapText(true);
+                cell.setPrefWidth(0);
+                return cell;
+            }
+        });
+
+        //Conversations from earlier sessions are on disk already
+        if(log != null && log.hasBefore(log.length())){
+            oldestOffset = log.length();
+            view.getItems().add(OLDER_LINES);
+        }
+    }
+
+    /**
+     * Sets the number of lines every transcript keeps, for transcripts created afterwards
+     *
+     * @param lines the number of lines
+     */
+    public static void setScrollback(int lines){
+        SCROLLBACK = lines;
+    }
+
+    /**
+     * Getter method for the number of lines every transcript keeps
+     *
+     * @return the number of lines
+     */
+    public static int getScrollback(){
+        return SCROLLBACK;
+    }
+
+    /**
+     * Queues a line to be added to the transcript, and appends it to the log. May be called from any thread.
+     *
+     * @param line the line to be added
+     */
+    @Override
+    public void messageReceived(String line){
+        long offset = -1;
+        if(log != null){
+            try{
+                offset = log.append(line);
+            }catch(IOException e){
+                System.err.println("Could not save transcript, continuing without it");
+                log = null;
+            }
+        }
+
+        pending.add(new Line(line, offset));
+        //Lines that would be trimmed from the list anyway are dropped here, so the queue is bounded too
+        if(pendingCount.incrementAndGet() > scrollback && pending.poll() != null){
+            pendingCount.decrementAndGet();
+        }
+
+        if(updateScheduled.compareAndSet(false, true)){
+            Platform.runLater(updateTask);
+        }
+    }
+
+    /**
+     * The transcript stays on screen, ending with the notice of why the connection closed
+     */
+    @Override
+    public void connectionClosed(){
+    }
+
+    /**
+     * Closes the log, once nothing more will be added to the transcript
+     */
+    public void close(){
+        TranscriptLog current = log;
+        if(current != null){
+            current.close();
+        }
+    }
+
+    /**
+     * Update task, run on the FX thread. Adds every queued line to the list at once and trims the list. If the user was
+     * looking at the newest line, the list is trimmed to the scrollback limit and scrolled to the new newest line;
+     * otherwise the view is left where the user put it.
+     */
+    private void update(){
+        //Cleared first, so a line queued while this update runs schedules the next one
+        updateScheduled.set(false);
+
+        List<String> lines = new ArrayList<String>();
+        Line line;
+        while((line = pending.poll()) != null){
+            pendingCount.decrementAndGet();
+            lines.add(line.text);
+            offsets.addLast(line.offset);
+        }
+        if(lines.isEmpty()){
+            return;
+        }
+
+        boolean following = atBottom();
+        ObservableList<String> items = view.getItems();
+        items.addAll(lines);
+        trim(items, following ? scrollback : 2 * scrollback);
+        if(following){
+            view.scrollTo(items.size() - 1);
+        }
+    }
+
+    /**
+     * Determines whether the list is scrolled all the way down, or has too few lines to scroll at all
+     *
+     * @return true if the newest line is in view
+     */
+    private boolean atBottom(){
+        for(Node node : view.lookupAll(".scroll-bar")){
+            if(node instanceof ScrollBar && ((ScrollBar) node).getOrientation() == Orientation.VERTICAL){
+                ScrollBar bar = (ScrollBar) node;
+                return !bar.isVisible() || bar.getValue() >= bar.getMax() - (bar.getMax() - bar.getMin()) / 1000;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Counts the lines in the list, not counting the placeholder
+     *
+     * @param items the list's lines
+     * @return the number of lines
+     */
+    private static int lineCount(ObservableList<String> items){
+        return !items.isEmpty() && items.get(0) == OLDER_LINES ? items.size() - 1 : items.size();
+    }
+
+    /**
+     * Determines whether the log holds lines before a line
+     *
+     * @param offset the line's offset in the log, or -1 if it was never saved
+     * @return true if there are earlier lines to load
+     */
+    private boolean hasOlder(long offset){
+        TranscriptLog current = log;
+        return current != null && offset >= 0 && current.hasBefore(offset);
+    }
+
+    /**
+     * Removes the oldest lines from the list, down to a number of lines. Lines removed from the list remain in the log,
+     * behind the placeholder.
+     *
+     * @param items the list's lines
+     * @param limit the number of lines to keep
+     */
+    private void trim(ObservableList<String> items, int limit){
+        boolean placeholder = !items.isEmpty() && items.get(0) == OLDER_LINES;
+        int first = placeholder ? 1 : 0;
+        int excess = items.size() - first - limit;
+        if(excess <= 0){
+            return;
+        }
+
+        items.remove(first, first + excess);
+        for(int i = 0; i < excess; i++){
+            offsets.removeFirst();
+        }
+
+        long next = offsets.isEmpty() ? -1 : offsets.peekFirst();
+        if(hasOlder(next)){
+            oldestOffset = next;
+            if(!placeholder){
+                items.add(0, OLDER_LINES);
+            }
+        }else if(placeholder){
+            items.remove(0);
+        }
+    }
+
+    /**
+     * Loads the page of lines before the oldest line in the list on a separate thread, so the GUI does not freeze
+     * while the log is read. Called on the FX thread when the placeholder is shown. Nothing is loaded once the list
+     * holds twice SCROLLBACK lines.
+     */
+    private void loadOlder(){
+        final TranscriptLog current = log;
+        int room = 2 * scrollback - lineCount(view.getItems());
+        if(loading || current == null || room <= 0){
+            return;
+        }
+        loading = true;
+
+        final long end = oldestOffset;
+        final int count = Math.min(PAGE_LINES, room);
+        Thread loader = new Thread(new Runnable() {
+            @Override
+            public void run(){
+                TranscriptLog.Page page = null;
+                try{
+                    page = current.readBefore(end, count);
+                }catch(IOException e){
+                    System.err.println("Could not read transcript");
+                }
+
+                final TranscriptLog.Page loaded = page;
+                Platform.runLater(new Runnable() {
+                    @Override
+                    public void run(){
+                        insertOlder(end, loaded);
+                    }
+                });
+            }
+        }, "transcript-loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /**
+     * Puts a page of lines loaded from the log in place of the placeholder, keeping the lines the user was looking at
+     * in view. Run on the FX thread.
+     *
+     * @param end the offset the page was read from
+     * @param page the lines loaded, or null if the log could not be read
+     */
+    private void insertOlder(long end, TranscriptLog.Page page){
+        loading = false;
+        ObservableList<String> items = view.getItems();
+        //New lines may have pushed the lines the page was read for out of the list in the meantime
+        if(page == null || end != oldestOffset || items.isEmpty() || items.get(0) != OLDER_LINES){
+            return;
+        }
+
+        items.remove(0);
+        for(int i = page.offsets.size() - 1; i >= 0; i--){
+            offsets.addFirst(page.offsets.get(i));
+        }
+
+        if(!page.offsets.isEmpty() && hasOlder(page.offsets.get(0))){
+            oldestOffset = page.offsets.get(0);
+            List<String> lines = new ArrayList<String>(page.lines.size() + 1);
+            lines.add(OLDER_LINES);
+            lines.addAll(page.lines);
+            items.addAll(0, lines);
+            view.scrollTo(lines.size());
+        }else{
+            items.addAll(0, page.lines);
+            view.scrollTo(page.lines.size());
+        }
+    }
+}
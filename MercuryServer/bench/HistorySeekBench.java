@@ -0,0 +1,155 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures how long the history log takes to find the first message since a sequence number or a time, for histories of
+ * growing size, and compares it with finding the same message by scanning the log from the start, as the log had to
+ * before it was indexed.
+ *
+ * Run from the MercuryServer directory:
+ *
+ * javac -d out src/*.java bench/HistorySeekBench.java
+ * java -cp out HistorySeekBench [largest number of messages, default 1000000]
+ *
+ * Each history is written to a temporary directory, which is deleted afterwards. Messages are about 100 bytes and are
+ * spaced 100 ms apart, alternating between two rooms.
+ */
+public class HistorySeekBench {
+    static int SEEKS = 2000;
+    static int SCANS = 20;
+    static long SPACING_MILLIS = 100;
+
+    public static void main(String[] args) throws Exception{
+        long largest = args.length > 0 ? Long.parseLong(args[0]) : 1000000;
+
+        System.out.println(String.format("%12s %10s %10s %16s %16s %16s %14s", "messages", "segments", "MB",
+                "seq p50/p99 us", "time p50/p99 us", "recent(20) us", "scan mean ms"));
+        for(long size = 10000; size <= largest; size *= 10){
+            run(size);
+        }
+    }
+
+    /**
+     * Builds a history of the given size and measures it
+     *
+     * @param size the number of messages
+     * @throws IOException if the temporary history cannot be written
+     */
+    private static void run(long size) throws IOException {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "history-bench-" + System.nanoTime());
+        long start = System.currentTimeMillis() - size * SPACING_MILLIS;
+        Random random = new Random(42);
+
+        try{
+            HistoryLog log = new HistoryLog(dir);
+            for(long i = 0; i < size; i++){
+                String room = i % 2 == 0 ? "lobby" : "dev";
+                String text = "user" + (i % 50) + ": message number " + i + " with some more text to fill the line up";
+                log.write(new HistoryRecord(0, start + i * SPACING_MILLIS, room, new Message(Message.CHAT, text)));
+            }
+            log.force();
+
+            File[] segments = log.listSegments();
+            long bytes = 0;
+            for(File segment : segments){
+                bytes += segment.length();
+            }
+
+            //Warm up the seek paths before timing them
+            for(int i = 0; i < SEEKS; i++){
+                log.since("lobby", false, 1 + (long) (random.nextDouble() * (size - 1)), 1);
+            }
+
+            long[] bySequence = new long[SEEKS];
+            long[] byTime = new long[SEEKS];
+            long[] recent = new long[SEEKS / 10];
+            for(int i = 0; i < SEEKS; i++){
+                long target = 1 + (long) (random.nextDouble() * (size - 1));
+
+                long t0 = System.nanoTime();
+                check(log.since("lobby", false, target, 1).size());
+                bySequence[i] = System.nanoTime() - t0;
+
+                t0 = System.nanoTime();
+                check(log.since("lobby", true, start + (target - 1) * SPACING_MILLIS, 1).size());
+                byTime[i] = System.nanoTime() - t0;
+            }
+            for(int i = 0; i < recent.length; i++){
+                long t0 = System.nanoTime();
+                check(log.recent("dev", 20).size());
+                recent[i] = System.nanoTime() - t0;
+            }
+
+            long scanTotal = 0;
+            for(int i = 0; i < SCANS; i++){
+                long target = 1 + (long) (random.nextDouble() * (size - 1));
+                long t0 = System.nanoTime();
+                check(scanFor(segments, target));
+                scanTotal += System.nanoTime() - t0;
+            }
+
+            System.out.println(String.format("%12d %10d %10d %16s %16s %16d %14.2f", size, segments.length,
+                    bytes / (1024 * 1024), percentiles(bySequence), percentiles(byTime), median(recent) / 1000,
+                    scanTotal / (double) SCANS / 1e6));
+        }finally{
+            delete(dir);
+        }
+    }
+
+    /**
+     * Finds a sequence number by reading every record from the start of the log
+     *
+     * @param segments the segments of the log
+     * @param target the sequence number
+     * @return 1 if the record was found
+     * @throws IOException if a segment cannot be read
+     */
+    private static int scanFor(File[] segments, long target) throws IOException {
+        for(File segment : segments){
+            MappedByteBuffer buf = HistoryLog.mapReadOnly(segment);
+            int position = 0;
+            HistoryRecord record;
+
+            while((record = HistoryRecord.decode(buf, position)) != null){
+                if(record.getSequence() >= target){
+                    return 1;
+                }
+                position += 4 + HistoryRecord.recordLength(buf, position);
+            }
+        }
+        return 0;
+    }
+
+    private static void check(int found){
+        if(found == 0){
+            throw new IllegalStateException("Seek found nothing");
+        }
+    }
+
+    private static String percentiles(long[] nanos){
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return (sorted[sorted.length / 2] / 1000) + "/" + (sorted[sorted.length * 99 / 100] / 1000);
+    }
+
+    private static long median(long[] nanos){
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static void delete(File f){
+        File[] children = f.listFiles();
+        if(children != null){
+            for(File child : children){
+                delete(child);
+            }
+        }
+        if(!f.delete()){
+            System.out.println("Could not delete " + f);
+        }
+    }
+}
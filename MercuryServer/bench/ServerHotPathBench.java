@@ -0,0 +1,276 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Microbenchmarks of the server's hot paths, each run for a range of connected-user counts and message sizes, to give
+ * a baseline that performance changes can be measured against:
+ * <ul>
+ *     <li>ServerState.getActiveConnections and getActiveUsers, the snapshot reads behind broadcasts and
+ *     >>viewMembers</li>
+ *     <li>ServerState.removeUser, with the user registered and activated again so the user count stays the same</li>
+ *     <li>ServerCommands.handle for a cheap command, an unknown command with an argument, and >>viewMembers</li>
+ *     <li>the broadcast fan-out behind ClientController.broadCast, to in-memory outputs that encode every message the
+ *     way SocketOutput does, half of them as binary frames and half as lines</li>
+ *     <li>ClientController.containsIllegalChars on a name of the message size</li>
+ * </ul>
+ *
+ * Run from the MercuryServer directory:
+ *
+ * javac -d out src/*.java bench/ServerHotPathBench.java
+ * java -cp out ServerHotPathBench [benchmark name filters, e.g. broadcast handle]
+ *
+ * The measurement loop follows JMH's: each benchmark is warmed up for a few timed iterations so the JIT has compiled
+ * it, then measured for several more, and every result is written to a volatile field so the work cannot be optimized
+ * away. Operations are timed in batches sized to take about a millisecond, so reading the clock does not dominate the
+ * cheap ones. Results are the mean time per operation with the standard deviation across the measured iterations.
+ * A dedicated harness such as JMH would also fork a fresh JVM per benchmark; here they share one, so run a single
+ * benchmark on its own when comparing small differences.
+ */
+public class ServerHotPathBench {
+    static int WARMUP_ITERATIONS = 5;
+    static int MEASURED_ITERATIONS = 10;
+    static long ITERATION_NANOS = 200000000;
+    static long BATCH_NANOS = 1000000;
+    static int[] USERS = {10, 100, 1000, 10000};
+    static int[] SIZES = {16, 256, 4096};
+
+    static volatile Object blackhole;
+
+    /**
+     * An operation being measured. The iteration number lets an operation pick a different target each time.
+     */
+    interface Operation {
+        Object run(long i);
+    }
+
+    public static void main(String[] args) throws Exception{
+        final List<String> filters = Arrays.asList(args);
+
+        System.out.println(String.format("%-36s %8s %6s %16s %14s", "benchmark", "users", "size", "ns/op", "stddev"));
+        for(int users : USERS){
+            final ServerState state = populate(users);
+            final Room lobby = state.getRoom(ServerState.DEFAULT_ROOM);
+            final String[] names = state.getActiveUsers();
+
+            run(filters, "state.getActiveConnections", users, 0, new Operation(){
+                @Override
+                public Object run(long i){
+                    return state.getActiveConnections();
+                }
+            });
+            run(filters, "state.getActiveUsers", users, 0, new Operation(){
+                @Override
+                public Object run(long i){
+                    return state.getActiveUsers();
+                }
+            });
+            run(filters, "state.removeUser+rejoin", users, 0, new Operation(){
+                @Override
+                public Object run(long i){
+                    String name = names[(int) (i % names.length)];
+                    state.removeUser(name);
+                    ConnectionBundle bundle = state.registerClient(new MemoryOutput(i % 2 == 0), name);
+                    state.activateClient(bundle);
+                    return bundle;
+                }
+            });
+            run(filters, "handle(time)", users, 0, new Operation(){
+                @Override
+                public Object run(long i){
+                    return ServerCommands.handle("time", state, names[0]);
+                }
+            });
+            run(filters, "handle(viewMembers)", users, 0, new Operation(){
+                @Override
+                public Object run(long i){
+                    return ServerCommands.handle("viewMembers", state, names[0]);
+                }
+            });
+
+            for(int size : SIZES){
+                final String text = text(size);
+                final String unknown = "nosuchcommand " + text;
+
+                run(filters, "handle(unknown command)", users, size, new Operation(){
+                    @Override
+                    public Object run(long i){
+                        return ServerCommands.handle(unknown, state, names[0]);
+                    }
+                });
+                run(filters, "broadcast fan-out", users, size, new Operation(){
+                    @Override
+                    public Object run(long i){
+                        Message message = new Message(Message.CHAT, names[0] + ": " + text);
+                        state.broadCast(lobby, message);
+                        return message;
+                    }
+                });
+                if(users == USERS[0]){
+                    run(filters, "containsIllegalChars", 0, size, new Operation(){
+                        @Override
+                        public Object run(long i){
+                            return ClientController.containsIllegalChars(text);
+                        }
+                    });
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds a server state with the given number of active users, all in the default room
+     *
+     * @param users the number of users
+     * @return the server state
+     */
+    private static ServerState populate(int users){
+        ServerState state = new ServerState(users);
+        for(int i = 0; i < users; i++){
+            ConnectionBundle bundle = state.registerClient(new MemoryOutput(i % 2 == 0), "user" + i);
+            state.activateClient(bundle);
+        }
+        return state;
+    }
+
+    /**
+     * Builds a chat message of the given length
+     *
+     * @param size the number of characters
+     * @return the message
+     */
+    private static String text(int size){
+        char[] chars = new char[size];
+        for(int i = 0; i < size; i++){
+            chars[i] = (char) ('a' + i % 26);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Warms up and measures an operation, unless it is excluded by the filters, and prints the result
+     *
+     * @param filters the benchmark names to run, or none to run all of them
+     * @param name the name of the benchmark
+     * @param users the number of connected users, or 0 if it does not apply
+     * @param size the message size, or 0 if it does not apply
+     * @param operation the operation
+     */
+    private static void run(List<String> filters, String name, int users, int size, Operation operation){
+        boolean selected = filters.isEmpty();
+        for(String filter : filters){
+            selected |= name.toLowerCase().contains(filter.toLowerCase());
+        }
+        if(!selected){
+            return;
+        }
+
+        long batch = 1;
+        long i = 0;
+        while(batch < (1 << 20)){
+            long start = System.nanoTime();
+            i = batch(operation, i, batch);
+            if(System.nanoTime() - start >= BATCH_NANOS){
+                break;
+            }
+            batch *= 2;
+        }
+
+        for(int iteration = 0; iteration < WARMUP_ITERATIONS; iteration++){
+            i = iterate(operation, i, batch, null, 0);
+        }
+        double[] nanosPerOp = new double[MEASURED_ITERATIONS];
+        for(int iteration = 0; iteration < MEASURED_ITERATIONS; iteration++){
+            i = iterate(operation, i, batch, nanosPerOp, iteration);
+        }
+
+        double mean = 0;
+        for(double value : nanosPerOp){
+            mean += value / nanosPerOp.length;
+        }
+        double variance = 0;
+        for(double value : nanosPerOp){
+            variance += (value - mean) * (value - mean) / Math.max(1, nanosPerOp.length - 1);
+        }
+        System.out.println(String.format("%-36s %8s %6s %16.1f %14.1f", name, users == 0 ? "-" : users,
+                size == 0 ? "-" : size, mean, Math.sqrt(variance)));
+    }
+
+    /**
+     * Runs batches of an operation for one iteration
+     *
+     * @param operation the operation
+     * @param i the number of operations run so far
+     * @param batch the number of operations per batch
+     * @param results where to store the time per operation, or null during warm-up
+     * @param iteration the index of the iteration in results
+     * @return the number of operations run so far
+     */
+    private static long iterate(Operation operation, long i, long batch, double[] results, int iteration){
+        long start = System.nanoTime();
+        long ops = 0;
+        long elapsed;
+        do{
+            i = batch(operation, i, batch);
+            ops += batch;
+            elapsed = System.nanoTime() - start;
+        }while(elapsed < ITERATION_NANOS);
+
+        if(results != null){
+            results[iteration] = (double) elapsed / ops;
+        }
+        return i;
+    }
+
+    /**
+     * Runs a batch of an operation, consuming every result
+     *
+     * @param operation the operation
+     * @param i the number of operations run so far
+     * @param batch the number of operations to run
+     * @return the number of operations run so far
+     */
+    private static long batch(Operation operation, long i, long batch){
+        for(long end = i + batch; i < end; i++){
+            blackhole = operation.run(i);
+        }
+        return i;
+    }
+
+    /**
+     * A client output that keeps nothing but the last frame written to it, encoded the way SocketOutput encodes it
+     */
+    static class MemoryOutput implements ClientOutput {
+        boolean binaryFrames;
+        Frame last;
+        long written;
+
+        /**
+         * MemoryOutput constructor
+         *
+         * @param binary whether the client uses binary frames
+         */
+        MemoryOutput(boolean binary){
+            binaryFrames = binary;
+        }
+
+        @Override
+        public void write(Message message) throws IOException {
+            last = binaryFrames ? message.binaryFrame() : message.lineFrame();
+            written++;
+        }
+
+        @Override
+        public void useBinaryFrames(){
+            binaryFrames = true;
+        }
+
+        @Override
+        public void useCompression(){
+        }
+
+        @Override
+        public void close(){
+        }
+    }
+}
@@ -0,0 +1,161 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+/**
+ * Limits how much of the server any one client can take. Both engines consult it when they accept a connection and when
+ * a logged in client sends input:
+ *
+ * - at most MAX_CONNECTIONS connections are open at once, and at most MAX_PER_ADDRESS from a single IP address. A
+ *   connection over either limit is refused on the accepting thread before any per-client state is created: it is sent
+ *   the protocol's 'server full' line and closed.
+ * - every client has a token bucket for chat messages and another for commands. Input that finds its bucket empty is
+ *   either delayed until a token is available, which stops reading from the client so TCP pushes back on the sender,
+ *   or dropped, depending on OVER_LIMIT_POLICY.
+ *
+ * A limit of 0 disables it. The connection counts are the only shared state; they are updated once per accept and once
+ * per close, never per message.
+ *
+ * @see TokenBucket
+ */
+public class AdmissionControl {
+    static Log LOG = Log.get("connection");
+    static int MAX_CONNECTIONS = 20;
+    static int MAX_PER_ADDRESS = 0;
+    static double MESSAGE_RATE = 0;
+    static int MESSAGE_BURST = 20;
+    static double COMMAND_RATE = 0;
+    static int COMMAND_BURST = 10;
+    static String OVER_LIMIT_POLICY = "delay";
+
+    static AtomicInteger OPEN = new AtomicInteger();
+    static ConcurrentHashMap<InetAddress, Integer> BY_ADDRESS = new ConcurrentHashMap<InetAddress, Integer>();
+
+    /**
+     * Counts a newly accepted connection against the limits. A connection that is admitted must be released when it
+     * closes; one that is not must be refused.
+     *
+     * @param address the client's IP address
+     * @return null if the connection is admitted, otherwise the reason it is not: 'serverFull' or 'addressLimit'
+     */
+    public static String admit(InetAddress address){
+        if(OPEN.incrementAndGet() > MAX_CONNECTIONS && MAX_CONNECTIONS > 0){
+            OPEN.decrementAndGet();
+            return "serverFull";
+        }
+
+        if(MAX_PER_ADDRESS > 0){
+            final boolean[] admitted = {false};
+            BY_ADDRESS.compute(address, new BiFunction<InetAddress, Integer, Integer>() {
+                @Override
+                public Integer apply(InetAddress key, Integer count){
+                    int open = count == null ? 0 : count;
+                    if(open >= MAX_PER_ADDRESS){
+                        return count;
+                    }
+                    admitted[0] = true;
+                    return open + 1;
+                }
+            });
+
+            if(!admitted[0]){
+                OPEN.decrementAndGet();
+                return "addressLimit";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Releases an admitted connection once it has closed
+     *
+     * @param address the client's IP address
+     */
+    public static void release(InetAddress address){
+        OPEN.decrementAndGet();
+
+        if(MAX_PER_ADDRESS > 0){
+            BY_ADDRESS.computeIfPresent(address, new BiFunction<InetAddress, Integer, Integer>() {
+                @Override
+                public Integer apply(InetAddress key, Integer count){
+                    //Returning null removes the address, so the map only holds addresses with open connections
+                    return count > 1 ? count - 1 : null;
+                }
+            });
+        }
+    }
+
+    /**
+     * Refuses a connection that was not admitted. The client is sent the 'server full' line in place of the reply to
+     * its handshake, which it reads like any other refusal. Whatever the client has already sent is read and discarded
+     * before closing, so the close does not reset the connection and destroy the line in flight.
+     *
+     * @param socket the accepted socket, in blocking mode
+     * @param reason the reason returned by admit
+     */
+    public static void refuse(Socket socket, String reason){
+        LOG.info("Refusing connection from {}: {}", socket.getInetAddress(), reason);
+        ServerMetrics.connectionRejected(reason);
+
+        try{
+            OutputStream out = socket.getOutputStream();
+            out.write((ProtocolConfig.current().getServerFull() + "\n").getBytes(Charset.defaultCharset()));
+            out.flush();
+            socket.shutdownOutput();
+
+            InputStream in = socket.getInputStream();
+            int available = in.available();
+            if(available > 0){
+                in.skip(available);
+            }
+        }catch(IOException e){
+            //The client is being turned away anyway
+        }finally{
+            try{
+                socket.close();
+            }catch(IOException e){
+                LOG.warn("Error while closing refused socket");
+            }
+        }
+    }
+
+    /**
+     * Creates a client's chat message limiter
+     *
+     * @return a new token bucket, or null if messages are not limited
+     */
+    public static TokenBucket messageBucket(){
+        return MESSAGE_RATE > 0 ? new TokenBucket(MESSAGE_RATE, MESSAGE_BURST) : null;
+    }
+
+    /**
+     * Creates a client's command limiter
+     *
+     * @return a new token bucket, or null if commands are not limited
+     */
+    public static TokenBucket commandBucket(){
+        return COMMAND_RATE > 0 ? new TokenBucket(COMMAND_RATE, COMMAND_BURST) : null;
+    }
+
+    /**
+     * Determines whether input over a client's rate limit is dropped rather than delayed
+     *
+     * @return true under the 'drop' policy
+     */
+    public static boolean dropsOverLimit(){
+        return OVER_LIMIT_POLICY.equals("drop");
+    }
+
+    /**
+     * @return the number of connections currently admitted
+     */
+    public static int openConnections(){
+        return OPEN.get();
+    }
+}
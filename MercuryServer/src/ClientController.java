@@ -1,139 +1,528 @@
-import org.w3c.dom.Document;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
- * Defines the thread that will be run for each client establishing a connection with the server.
+ * Defines the per-client logic of the server. With the thread engine, a ClientController is run as the thread for each
+ * client establishing a connection with the server. With the selector engine, the same handshake and message handling
+ * is driven line by line from an event loop through the login, receive and disconnect methods.
+ *
+ * @see SelectorConnection
  */
 public class ClientController implements Runnable{
+    static Log LOG = Log.get("connection");
+    static Log MESSAGES = Log.get("message");
     static char[] ILLEGAL_CHARS = {'/', '\\'};
     static int USERNAME_MAX_LENGTH = 15;
     static String WELCOME_MESSAGE = "<<Welcome to the chat server! Type >>help for a list of commands.>>";
+    static String DROPPED_NOTICE = "<<You are sending too fast, some of your input was dropped>>";
+    static String MESSAGE_TOO_LONG_NOTICE = "<<Message too long, it was not sent>>";
+    static String FRAME_PROTOCOL = "frame/1";
+    static String RESUME_PROTOCOL = "resume/1";
+    static String DEFLATE_PROTOCOL = "deflate";
 
     Socket conn;
+    Executor writerExecutor;
+    ClientOutput output;
+    ConnectionBundle bundle;
     String clientData;
     ServerState state;
     String userName;
-    String MSG_connectionAccepted;
-    String MSG_duplicateUName;
-    String MSG_longUName;
-    String MSG_illegalUName;
+    boolean loggedIn;
+    boolean binaryFrames;
+    boolean compressed;
+    boolean dropNoticeSent;
 
     /**
-     * Constructor for ClientController
+     * Constructor for ClientController, used by the thread engine
      *
      * @param connection a connection to a single client
      * @param s a reference to the global ServerState object
+     * @param writers the executor that runs the writer tasks of the client's SocketOutput
      */
-    public ClientController(Socket connection, ServerState s){
+    public ClientController(Socket connection, ServerState s, Executor writers){
         conn = connection;
         state = s;
+        writerExecutor = writers;
+    }
 
-        getProtocol();
+    /**
+     * Constructor for ClientController, used by the selector engine. The caller is responsible for reading lines from
+     * the client and passing them to login and receive.
+     *
+     * @param out the output to the client
+     * @param s a reference to the global ServerState object
+     */
+    public ClientController(ClientOutput out, ServerState s){
+        output = out;
+        state = s;
     }
 
     /**
      * The thread method of the runnable ClientController class. In this method, the initial protocol handshake is
-     * performed, and then the thread simply waits for client inputs. Normal client inputs are broadcasted to all
-     * active clients, but command inputs (inputs from the client prefixed with '>>') are handled separately by the
-     * ServerCommands methods
+     * performed, and then the thread simply waits for client inputs. Normal client inputs are broadcasted to the
+     * members of the client's room, but command inputs (inputs from the client prefixed with '>>') are handled
+     * separately by the ServerCommands methods. If the client negotiated the binary frame protocol during the
+     * handshake, every input after the username is read as a frame instead of a line, and if it negotiated
+     * compression, that input is inflated first. Input over the client's rate limits holds up the thread until it is
+     * admitted, or is dropped.
      *
      * @see ServerCommands
      */
     public void run(){
-        System.out.println("New Client Thread Running");
-        boolean duplicateUserName = false;
+        LOG.debug("New Client Thread Running");
+
+        Inflater inflater = null;
 
         try{
-            BufferedReader inFromClient = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-            DataOutputStream outToClient = new DataOutputStream(conn.getOutputStream());
-            userName = inFromClient.readLine();
-            System.out.println("Got user name: " + userName);
-            String[] activeUsers = state.getActiveUsers();
-
-            for(String user : activeUsers){
-                if(user != null && user.equals(userName)){
-                    duplicateUserName = true;
-                    break;
+            //Not a BufferedReader: its read-ahead would swallow the first frames sent after the username line
+            BufferedInputStream buffered = new BufferedInputStream(new FilterInputStream(conn.getInputStream()) {
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int count = super.read(b, off, len);
+                    if(count > 0){
+                        ServerMetrics.bytesReceived(count);
+                    }
+                    return count;
                 }
+            });
+            DataInputStream inFromClient = new DataInputStream(buffered);
+            output = new SocketOutput(conn, writerExecutor, new Runnable() {
+                @Override
+                public void run() {
+                    disconnect();
+                }
+            });
+
+            if(login(readLine(inFromClient))){
+                if(compressed){
+                    //Anything the client sent after its username line is already compressed, and may be buffered
+                    inflater = new Inflater(true);
+                    inFromClient = new DataInputStream(
+                            new BufferedInputStream(new InflaterInputStream(buffered, inflater)));
+                }
+
+                while((clientData = readInput(inFromClient)) != null){
+                    long wait;
+                    while((wait = admit(clientData)) > 0){
+                        //Nothing more is read from the socket meanwhile, so the client's own writes block
+                        LockSupport.parkNanos(wait);
+                    }
+                    if(wait == 0 && !receive(clientData)){
+                        return;
+                    }
+                }
+
+                LOG.info("Closing {}'s connection", userName);
+                output.close();
+                disconnect();
             }
 
-            if(duplicateUserName){
-                System.out.println("Closing connection due to duplicate username");
-                outToClient.writeBytes(MSG_duplicateUName + '\n');
-                conn.close();
-            }else if(userName.length() > USERNAME_MAX_LENGTH){
-                System.out.println("Closing connection due to long username.");
-                outToClient.writeBytes(MSG_longUName + '\n');
-                conn.close();
-            }else if(containsIllegalChars(userName)) {
-                System.out.println("Closing connection due to illegal username.");
-                outToClient.writeBytes(MSG_illegalUName + '\n');
-                conn.close();
-            }else{
-                state.appendClient(conn, userName);
-                System.out.println("Successful connection from " + userName);
-                outToClient.writeBytes(MSG_connectionAccepted + '\n');
-                broadCast("<<" + userName + " connected" + ">>");
+        }catch(SocketException e){
+            LOG.info("Closing {}'s connection", userName);
+            disconnect();
+
+        }catch(IOException e){
+            LOG.info("Closing {}'s connection after an I/O error: {}", userName, e.getMessage());
+            disconnect();
 
+        }finally{
+            if(inflater != null){
+                inflater.end();
+            }
+            AdmissionControl.release(conn.getInetAddress());
+        }
+    }
 
-                outToClient.writeBytes(WELCOME_MESSAGE +'\n');
+    /**
+     * Performs the username part of the protocol handshake. If the username is accepted, the client is added to the
+     * server state, the connection is acknowledged and the other clients are notified. Otherwise the client is sent the
+     * matching protocol error and the connection is closed. Protocol messages come from the shared ProtocolConfig.
+     *
+     * Newer clients follow the username with a tab and a space-separated list of capabilities. If 'frame/1' is among
+     * them, the acceptance line echoes it after a tab and everything after that line is sent as binary frames. Legacy
+     * clients send the username alone and are answered with lines only.
+     *
+     * Clients using binary frames may also offer 'resume/1' to get a resumable Session, whose token is echoed as
+     * 'resume/1=token'. To resume the session after losing its connection, the client offers 'resume/1=token,sequence'
+     * with the sequence number of the last message it received. The session is then reattached without a presence
+     * notice, and the messages the client missed are replayed. If the session has expired, the client is logged in as
+     * a new client and echoed a new token.
+     *
+     * Any client may offer 'deflate'. If the server allows compression, the acceptance line echoes it, and everything
+     * after that line is sent and received as a single DEFLATE stream in each direction.
+     *
+     * @see ProtocolConfig
+     * @see Frame
+     * @see Session
+     * @see FrameDeflater
+     *
+     * @param uName the first line sent by the client, or null if the client disconnected before sending one
+     * @return true if the client is now logged in, false if the connection was refused
+     * @throws IOException if the client can no longer be written to
+     */
+    public boolean login(String uName) throws IOException{
+        ProtocolConfig protocol = ProtocolConfig.current();
 
-                while((clientData = inFromClient.readLine()) != null){
-                    System.out.println(userName + " sent: " + clientData);
-                    broadCast(userName + ": " + clientData);
+        if(uName == null){
+            ServerMetrics.connectionRejected("noUsername");
+            output.close();
+            return false;
+        }
 
-                    if(clientData.substring(0, 2).equals(">>")){
-                        String commandReturn = ServerCommands.handle(clientData.substring(2), state, userName);
-                        if(commandReturn != null){
-                            outToClient.writeBytes(commandReturn + '\n');
+        String[] handshake = uName.split("\t", 2);
+        String capabilities = handshake.length > 1 ? handshake[1] : "";
+        userName = handshake[0];
+        binaryFrames = hasCapability(capabilities, FRAME_PROTOCOL);
+        compressed = FrameDeflater.LEVEL > 0 && hasCapability(capabilities, DEFLATE_PROTOCOL);
+        //Sequence numbers, which a resume relies on, are only sent in binary frames
+        boolean resumable = binaryFrames && Session.GRACE_MILLIS > 0;
+        String resume = resumable ? capabilityValue(capabilities, RESUME_PROTOCOL) : null;
+        Session session = resume != null ? new Session(output) : null;
+        LOG.debug("Got user name: {}", userName);
 
-                            if(clientData.substring(2).equals("quit")){
-                                conn.close();
-                                state.removeUser(userName);
-                                return;
-                            }
+        if(userName.length() > USERNAME_MAX_LENGTH){
+            LOG.info("Closing connection due to long username");
+            ServerMetrics.connectionRejected("longUsername");
+            output.writeLine(protocol.getLongUName());
+            output.close();
+        }else if(containsIllegalChars(userName)) {
+            LOG.info("Closing connection due to illegal username {}", userName);
+            ServerMetrics.connectionRejected("illegalUsername");
+            output.writeLine(protocol.getIllegalUName());
+            output.close();
+        }else if(resume != null && !resume.isEmpty() && resumeSession(resume, protocol)){
+            //The other clients never saw this client leave, so there is nothing to announce
+            loggedIn = true;
+        }else if((bundle = state.registerClient(session != null ? session : output, userName)) == null){
+            //The username check and registration are a single atomic step in ServerState
+            LOG.info("Closing connection due to duplicate username {}", userName);
+            ServerMetrics.connectionRejected("duplicateUsername");
+            output.writeLine(protocol.getDuplicateUName());
+            output.close();
+        }else{
+            LOG.info("Successful connection from {}", userName);
+            ServerMetrics.loginAccepted();
+            output.writeLine(acceptedLine(protocol, session));
+            if(binaryFrames){
+                output.useBinaryFrames();
+            }
+            if(compressed){
+                output.useCompression();
+            }
+            if(session != null){
+                state.openSession(bundle, session);
+            }
 
-                        }else{
-                            outToClient.writeBytes("<<unrecognized command: " + clientData.substring(2) + ">>" + '\n');
-                        }
-                    }
+            //Only now can broadcasts reach the client, so none can arrive ahead of the acceptance line
+            state.activateClient(bundle);
+            loggedIn = true;
+            broadCast(new Message(Message.PRESENCE, "<<" + userName + " connected" + ">>"));
+
+            bundle.getOutput().writeLine(WELCOME_MESSAGE);
+        }
+
+        return loggedIn;
+    }
+
+    /**
+     * Attempts to resume the session named in the handshake. On success, the acceptance line and the messages the
+     * client missed have been written to the new connection, which now receives the client's broadcasts.
+     *
+     * @param resume the value of the client's 'resume/1' capability, as 'token,sequence'
+     * @param protocol the protocol configuration of this handshake
+     * @return true if the session was resumed, false if it is unknown or has expired
+     * @throws IOException if the client can no longer be written to
+     */
+    private boolean resumeSession(String resume, ProtocolConfig protocol) throws IOException {
+        String[] parts = resume.split(",", 2);
+        long lastSequence;
+        try{
+            lastSequence = parts.length > 1 ? Long.parseLong(parts[1]) : 0;
+        }catch(NumberFormatException e){
+            return false;
+        }
+
+        ConnectionBundle held = state.findSession(parts[0], userName);
+        if(held == null){
+            return false;
+        }
+
+        Session session = held.getSession();
+        int replayed = session.resume(output, acceptedLine(protocol, session), compressed, lastSequence);
+        if(replayed < 0){
+            return false;
+        }
+
+        bundle = held;
+        LOG.info("Resumed {}'s session, replayed {} messages", userName, replayed);
+        ServerMetrics.sessionResumed();
+        return true;
+    }
+
+    /**
+     * Builds the acceptance line, echoing the capabilities the server agreed to after a tab. Clients that offered no
+     * capabilities get the bare acceptance message.
+     *
+     * @param protocol the protocol configuration of this handshake
+     * @param session the client's resumable session, or null
+     * @return the acceptance line
+     */
+    private String acceptedLine(ProtocolConfig protocol, Session session){
+        StringBuilder echoed = new StringBuilder();
+
+        if(binaryFrames){
+            echoed.append(FRAME_PROTOCOL);
+        }
+        if(session != null){
+            echoed.append(' ').append(RESUME_PROTOCOL).append('=').append(session.getToken());
+        }
+        if(compressed){
+            echoed.append(' ').append(DEFLATE_PROTOCOL);
+        }
+
+        String capabilities = echoed.toString().trim();
+        if(capabilities.isEmpty()){
+            return protocol.getConnectionAccepted();
+        }
+        return protocol.getConnectionAccepted() + '\t' + capabilities;
+    }
+
+    /**
+     * Applies the client's rate limits to a line of input received after login. Each line takes a token from the
+     * client's command or message bucket. If the bucket is empty, the line is dropped under the 'drop' policy, with a
+     * notice to the client the first time, and otherwise must be offered again after the returned delay.
+     *
+     * @see AdmissionControl
+     *
+     * @param data the line received from the client
+     * @return 0 if the line may be passed to receive now, -1 if it was dropped, or the number of nanoseconds to wait
+     * before offering it again
+     * @throws IOException if the client can no longer be written to
+     */
+    public long admit(String data) throws IOException{
+        TokenBucket limiter = bundle.getLimiter(data);
+        if(limiter == null){
+            return 0;
+        }
+
+        long wait = limiter.take(System.nanoTime());
+        if(wait == 0){
+            dropNoticeSent = false;
+            return 0;
+        }
+
+        if(AdmissionControl.dropsOverLimit()){
+            ServerMetrics.inputDropped();
+            if(!dropNoticeSent){
+                dropNoticeSent = true;
+                bundle.getOutput().writeLine(DROPPED_NOTICE);
+            }
+            return -1;
+        }
+        ServerMetrics.inputDelayed();
+        return wait;
+    }
+
+    /**
+     * Handles a single line of input from a logged in client. Normal input is broadcasted to the client's room, and
+     * command input (prefixed with '>>') is additionally passed to ServerCommands. Input longer than
+     * Frame.MAX_MESSAGE_LENGTH is refused with a notice to the sender.
+     *
+     * @param data the line received from the client
+     * @return false if the client has quit and the connection has been closed, true otherwise
+     * @throws IOException if the client can no longer be written to
+     */
+    public boolean receive(String data) throws IOException{
+        //Once prefixed with the sender's name, a longer message would not fit in the frames other clients accept
+        if(data.length() * 3 > Frame.MAX_MESSAGE_LENGTH && Frame.utf8Length(data) > Frame.MAX_MESSAGE_LENGTH){
+            LOG.info("Refused a message of {} chars from {}", data.length(), userName);
+            bundle.getOutput().writeLine(MESSAGE_TOO_LONG_NOTICE);
+            return true;
+        }
+
+        clientData = data;
+        MESSAGES.info("{} sent: {}", userName, clientData);
+        ServerMetrics.messageReceived();
+        broadCast(new Message(Message.CHAT, userName + ": " + clientData));
+
+        if(clientData.startsWith(">>")){
+            String commandReturn = ServerCommands.handle(clientData.substring(2), state, userName);
+            if(commandReturn != null){
+                //A command that replies later writes its reply itself
+                if(!commandReturn.isEmpty()){
+                    bundle.getOutput().writeLine(commandReturn);
+                }
+
+                if(clientData.substring(2).equals("quit")){
+                    loggedIn = false;
+                    state.removeClient(bundle);
+                    output.close();
+                    return false;
                 }
+
+            }else{
+                bundle.getOutput().writeLine("<<unrecognized command: " + clientData.substring(2) + ">>");
             }
+        }
 
-        }catch(SocketException e){
-            System.out.println("Closing " + userName + "'s connection");
-            state.removeUser(userName);
-            broadCast("<<" + userName + " disconnected" + ">>");
+        return true;
+    }
 
-        }catch(IOException e){
-            System.out.println("IOException");
-            state.removeUser(userName);
-            broadCast("<<" + userName + " disconnected" + ">>");
+    /**
+     * Tear-down operations for a client whose connection was lost. Removes the client from the server state and
+     * notifies the remaining members of its room. Calling this method for a client that never logged in, or that has
+     * already been removed, has no effect. May be called both by the client's reader and by its writer when it evicts
+     * a dead or slow connection, so it is synchronized to make the teardown happen exactly once.
+     *
+     * A client with a resumable session is not removed yet: its session is held for the grace window, and the client
+     * is only removed, and its departure announced, if it has not resumed the session by then.
+     */
+    public synchronized void disconnect(){
+        if(loggedIn){
+            loggedIn = false;
+            boolean held = state.suspendSession(bundle, output, new Runnable() {
+                @Override
+                public void run() {
+                    LOG.info("{}'s session expired", userName);
+                    leave();
+                }
+            });
+
+            if(held){
+                LOG.info("Lost {}'s connection, holding the session for a resume", userName);
+            }else{
+                leave();
+            }
+        }
+    }
+
+    /**
+     * Removes the client from the server state and notifies the remaining members of its room
+     */
+    private void leave(){
+        state.removeClient(bundle);
+        broadCast(new Message(Message.PRESENCE, "<<" + userName + " disconnected" + ">>"));
+    }
+
+    /**
+     * Data sent through this method is queued for every member of the client's current room, including members on other
+     * nodes of a cluster. The message is encoded at most once per wire protocol, and the encoded frames are shared by
+     * all recipients.
+     *
+     * @param message the message to be sent
+     */
+    private void broadCast(Message message){
+        state.broadCast(bundle.getRoom(), message);
+    }
+
+    /**
+     * Determines whether the client negotiated the binary frame protocol
+     *
+     * @return true if everything after the handshake is exchanged as binary frames
+     */
+    public boolean usesBinaryFrames(){
+        return binaryFrames;
+    }
 
+    /**
+     * Determines whether the client negotiated compression
+     *
+     * @return true if everything after the handshake is exchanged as a DEFLATE stream
+     */
+    public boolean usesCompression(){
+        return compressed;
+    }
+
+    /**
+     * Reads the next input from a client served by the thread engine, as a line or as a frame depending on the
+     * negotiated protocol. Frames are rendered as lines, so commands keep their '>>' prefix.
+     *
+     * @param in the client's input stream
+     * @return the next input, or null if the client closed the connection
+     * @throws IOException if the stream fails
+     */
+    private String readInput(DataInputStream in) throws IOException {
+        if(binaryFrames){
+            Message message = Frame.read(in);
+            return message == null ? null : message.toLine();
         }
+        return readLine(in);
     }
 
     /**
-     * Data sent through this method is sent to all active client connections
+     * Reads a line the way BufferedReader.readLine does (terminated by '\n', '\r' or "\r\n"), but without reading
+     * ahead of the line terminator
      *
-     * @param data the message to be sent
+     * @param in the client's input stream
+     * @return the line, without its terminator, or null if the stream ended before any data
+     * @throws IOException if the stream fails or the line is too long
      */
-    private void broadCast(String data){
-        DataOutputStream[] activeOutStreams = state.getActiveOutputStreams();
+    private static String readLine(DataInputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
 
-        for(DataOutputStream outStream : activeOutStreams){
-            try{
-                outStream.writeBytes(data + '\n');
-            }catch(IOException e){
-                System.out.println("Detected dead connection," +
-                        " this could be indicative of an error in connection tear down ops");
+        while((b = in.read()) >= 0){
+            if(b == '\n'){
+                break;
+            }
+            if(b == '\r'){
+                in.mark(1);
+                if(in.read() != '\n'){
+                    in.reset();
+                }
+                break;
             }
+            if(line.size() >= Frame.MAX_FRAME_LENGTH){
+                throw new IOException("Line too long");
+            }
+            line.write(b);
+        }
+
+        if(b < 0 && line.size() == 0){
+            return null;
+        }
+        return new String(line.toByteArray(), Charset.defaultCharset());
+    }
 
+    /**
+     * Determines whether a handshake capability list contains a capability
+     *
+     * @param capabilities the space-separated capabilities sent by the client
+     * @param capability the capability to look for
+     * @return true if the capability was offered
+     */
+    static boolean hasCapability(String capabilities, String capability){
+        for(String offered : capabilities.split(" ")){
+            if(offered.equals(capability)){
+                return true;
+            }
         }
+        return false;
+    }
+
+    /**
+     * Finds the value of a capability offered as 'name=value'
+     *
+     * @param capabilities the space-separated capabilities sent by the client
+     * @param capability the name of the capability
+     * @return the capability's value, an empty string if it was offered without one, or null if it was not offered
+     */
+    static String capabilityValue(String capabilities, String capability){
+        for(String offered : capabilities.split(" ")){
+            if(offered.equals(capability)){
+                return "";
+            }
+            if(offered.startsWith(capability + '=')){
+                return offered.substring(capability.length() + 1);
+            }
+        }
+        return null;
     }
 
     /**
@@ -142,7 +531,7 @@ public class ClientController implements Runnable{
      * @param s the string that is to be tested
      * @return 'true' if the string is an invalid username, false otherwise
      */
-    private boolean containsIllegalChars(String s){
+    static boolean containsIllegalChars(String s){
         boolean ret = false;
         for(int i = 0; i < s.length(); i++){
             for(char illegalChar : ILLEGAL_CHARS){
@@ -153,28 +542,4 @@ public class ClientController implements Runnable{
         }
         return ret;
     }
-
-    /**
-     * Gets the protocol specifications from the Protocol.xml file. The Protocol.xml file used by the server must be
-     * identical to protocol files used by the client. This method should be called in the constructor.
-     *
-     */
-    private void getProtocol(){
-        try{
-            File f = new File("Protocol.xml");
-            DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-            Document doc = dBuilder.parse(f);
-
-            doc.getDocumentElement().normalize();
-
-            MSG_connectionAccepted = doc.getElementsByTagName("connectionSuccess").item(0).getTextContent();
-            MSG_duplicateUName = doc.getElementsByTagName("duplicateUserName").item(0).getTextContent();
-            MSG_longUName = doc.getElementsByTagName("longUserName").item(0).getTextContent();
-            MSG_illegalUName = doc.getElementsByTagName("illegalUserName").item(0).getTextContent();
-
-        }catch(Exception e){
-            e.printStackTrace();
-        }
-    }
 }
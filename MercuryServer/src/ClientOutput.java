@@ -0,0 +1,67 @@
+import java.io.IOException;
+
+/**
+ * Defines the operations the server needs in order to deliver data to a single client. Each server engine provides its
+ * own implementation, which lets the handshake, broadcast and command code in ClientController run unchanged whether a
+ * client is served by its own blocking thread or by a shared selector event loop.
+ *
+ * @see SocketOutput
+ * @see SelectorConnection
+ */
+public interface ClientOutput {
+
+    /**
+     * Sends a message to the client, encoded for the wire protocol the client is currently using. The same message may
+     * be passed to many outputs at once, so implementations must only read it; its encodings are cached and shared.
+     *
+     * @param message the message to be sent
+     * @throws IOException if the client can no longer be written to
+     */
+    void write(Message message) throws IOException;
+
+    /**
+     * Sends a single line of data to the client as a server notice. Convenience for replies that go to one client only.
+     * A reply too long for a single frame, such as the member list of a large server, is sent as several notices.
+     *
+     * @param data the line to be sent, without a trailing '\n'
+     * @throws IOException if the client can no longer be written to
+     */
+    default void writeLine(String data) throws IOException {
+        if(data.length() * 3 <= Frame.MAX_FRAME_LENGTH){
+            write(new Message(Message.NOTICE, data));
+            return;
+        }
+        for(String part : Frame.split(data)){
+            write(new Message(Message.NOTICE, part));
+        }
+    }
+
+    /**
+     * Switches the client to the binary frame protocol. Every message written after this call is sent as a binary
+     * frame; messages written before it are still sent as lines.
+     */
+    void useBinaryFrames();
+
+    /**
+     * Compresses everything written after this call into a single DEFLATE stream, as negotiated with 'deflate' during
+     * the handshake. Messages written before it are still sent uncompressed.
+     *
+     * @see FrameDeflater
+     */
+    void useCompression();
+
+    /**
+     * Number of messages waiting to be written to the client, for monitoring
+     *
+     * @return the length of the client's outbound queue, or 0 if the output does not queue
+     */
+    default int backlog(){
+        return 0;
+    }
+
+    /**
+     * Closes the connection to the client. Data already handed to writeLine is sent before the connection is closed
+     * wherever the implementation is able to do so.
+     */
+    void close();
+}
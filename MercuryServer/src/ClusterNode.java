@@ -0,0 +1,394 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Connects this server to the other servers of a cluster, so that users connected to different servers can talk to
+ * each other. Every node listens for its peers on the cluster port and opens a PeerLink to every peer listed in its
+ * configuration, so each node must list all of the others. Events only ever travel one hop, from the node where they
+ * happened to each of its peers, so they cannot loop.
+ *
+ * The cluster protocol is line based. Fields are separated by tabs, and tabs, line breaks and backslashes inside message
+ * text are escaped with a backslash:
+ *
+ * HELLO   <node id> <secret>         first line on every link; the secret is left out if none is configured
+ * CLAIM   <username> <claim time>    a user logged in on the sending node
+ * RELEASE <username>                 a user left the sending node
+ * MSG     <room> <type> <text>       a message was broadcast to a room on the sending node
+ * PING                               heartbeat on an idle link
+ *
+ * Usernames are unique across the cluster. A login is refused if the name is held locally or by a user on any peer this
+ * node has heard of. Two nodes can still accept the same name at almost the same moment, before either hears of the
+ * other's user; when their claims cross, every node keeps the claim with the earlier claim time (ties broken by node id),
+ * and the node holding the later claim disconnects its user with the duplicate username error. Since all nodes compare
+ * the same two claims, they all reach the same decision without further coordination.
+ *
+ * Peers are trusted with the users and rooms of this node, so links are only accepted from the addresses of the
+ * configured peers, and, if SECRET is set, only from peers that introduce themselves with the same secret. The secret
+ * travels in the clear, so the cluster port belongs on a private network either way. A node id that is already
+ * connected is refused unless the new link comes from the same address, which is a restarted peer taking over from its
+ * old link.
+ *
+ * @see PeerLink
+ * @see ServerState
+ */
+public class ClusterNode {
+    static Log LOG = Log.get("cluster");
+    static Charset UTF_8 = Charset.forName("UTF-8");
+    static String SECRET = "";
+
+    String nodeId;
+    int clusterPort;
+    ServerState state;
+    ArrayList<PeerLink> links;
+    ConcurrentHashMap<String, Socket> incoming;
+
+    /**
+     * ClusterNode constructor
+     *
+     * @param id this node's id, which must be unique within the cluster
+     * @param port the port to listen for peers on
+     * @param peers the cluster addresses of every other node, as host:port
+     * @param s a reference to the global ServerState object
+     */
+    public ClusterNode(String id, int port, String[] peers, ServerState s){
+        nodeId = id;
+        clusterPort = port;
+        state = s;
+        links = new ArrayList<PeerLink>();
+        incoming = new ConcurrentHashMap<String, Socket>();
+
+        for(String peer : peers){
+            if(!peer.trim().isEmpty()){
+                links.add(new PeerLink(peer.trim(), this));
+            }
+        }
+    }
+
+    /**
+     * Getter method for this node's id
+     *
+     * @return the node id
+     */
+    public String getNodeId(){
+        return nodeId;
+    }
+
+    /**
+     * Opens the cluster port and starts a daemon thread for it and for every peer link
+     *
+     * @throws IOException if the cluster port cannot be opened
+     */
+    public void start() throws IOException {
+        final ServerSocket peerSocket = new ServerSocket(clusterPort);
+
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptPeers(peerSocket);
+            }
+        }, "cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        for(PeerLink link : links){
+            Thread linkThread = new Thread(link, "cluster-link-" + link.getAddress());
+            linkThread.setDaemon(true);
+            linkThread.start();
+        }
+
+        LOG.info("Cluster node {} listening on port {} with {} peers", nodeId, clusterPort, links.size());
+    }
+
+    /**
+     * Announces a username claimed on this node to every peer
+     *
+     * @param bundle the newly registered client
+     */
+    public void claimed(ConnectionBundle bundle){
+        sendAll(claimLine(bundle));
+    }
+
+    /**
+     * Announces a username released on this node to every peer
+     *
+     * @param userName the released username
+     */
+    public void released(String userName){
+        sendAll("RELEASE\t" + userName);
+    }
+
+    /**
+     * Forwards a message broadcast to a room on this node to every peer
+     *
+     * @param roomName the name of the room
+     * @param message the message
+     */
+    public void relay(String roomName, Message message){
+        sendAll("MSG\t" + roomName + '\t' + message.getType() + '\t' + escape(message.getText()));
+    }
+
+    /**
+     * @return the first line sent on every peer link
+     */
+    String helloLine(){
+        return SECRET.isEmpty() ? "HELLO\t" + nodeId : "HELLO\t" + nodeId + '\t' + SECRET;
+    }
+
+    /**
+     * @return a CLAIM line for every user registered on this node
+     */
+    ArrayList<String> claimLines(){
+        ArrayList<String> lines = new ArrayList<String>();
+        for(ConnectionBundle bundle : state.getLocalClaims()){
+            lines.add(claimLine(bundle));
+        }
+        return lines;
+    }
+
+    /**
+     * Queues an event on every peer link
+     *
+     * @param line the event
+     */
+    private void sendAll(String line){
+        for(PeerLink link : links){
+            link.send(line);
+        }
+    }
+
+    /**
+     * Builds the CLAIM line for a local client
+     *
+     * @param bundle the client
+     * @return the event
+     */
+    private static String claimLine(ConnectionBundle bundle){
+        return "CLAIM\t" + bundle.getUserName() + '\t' + bundle.getClaimTime();
+    }
+
+    /**
+     * Peer wait loop. Starts a reader thread for every peer that connects.
+     *
+     * @param peerSocket the cluster port
+     */
+    private void acceptPeers(ServerSocket peerSocket){
+        while(true){
+            final Socket peer;
+            try{
+                peer = peerSocket.accept();
+            }catch(IOException e){
+                LOG.error("Cluster port failed: {}", e.getMessage());
+                return;
+            }
+
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    readPeer(peer);
+                }
+            }, "cluster-peer-" + peer.getRemoteSocketAddress());
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+    /**
+     * Applies the events sent by one peer until its link closes or goes silent, then forgets the peer's users. The peer
+     * announces them again when it reconnects. If a restarted peer reconnects from the same address before its old link
+     * has timed out, the old link is closed and the peer's users are taken from the new one.
+     *
+     * @param peer the incoming link
+     */
+    private void readPeer(Socket peer){
+        String peerId = null;
+
+        try{
+            if(!isPeerAddress(peer.getInetAddress())){
+                LOG.warn("Refusing cluster link from {}, which is not a configured peer",
+                        peer.getRemoteSocketAddress());
+                return;
+            }
+
+            peer.setSoTimeout((int) (PeerLink.HEARTBEAT_MS * 3));
+            BufferedReader in = new BufferedReader(new InputStreamReader(peer.getInputStream(), UTF_8));
+            String hello = in.readLine();
+            String[] fields = hello == null ? new String[0] : hello.split("\t", -1);
+
+            if(fields.length < 2 || !fields[0].equals("HELLO") || fields[1].isEmpty()){
+                LOG.warn("Refusing cluster link without introduction from {}", peer.getRemoteSocketAddress());
+                return;
+            }
+            if(!secretMatches(fields.length > 2 ? fields[2] : "")){
+                LOG.warn("Refusing cluster link with a wrong secret from {}", peer.getRemoteSocketAddress());
+                return;
+            }
+
+            Socket previous;
+            synchronized(incoming){
+                previous = incoming.get(fields[1]);
+                if(previous != null && !previous.getInetAddress().equals(peer.getInetAddress())){
+                    LOG.warn("Refusing cluster link from {} for node {}, which is connected from another address",
+                            peer.getRemoteSocketAddress(), fields[1]);
+                    return;
+                }
+                incoming.put(fields[1], peer);
+            }
+            peerId = fields[1];
+            LOG.info("Cluster peer {} connected", peerId);
+            if(previous != null){
+                previous.close();
+            }
+            //Every new link starts with a full list of the peer's users
+            state.removeNode(peerId);
+
+            String line;
+            while((line = in.readLine()) != null){
+                handleEvent(peerId, line.split("\t", -1));
+            }
+        }catch(SocketTimeoutException e){
+            LOG.warn("Cluster peer {} went silent", peerId);
+        }catch(IOException e){
+            LOG.warn("Cluster link from {} failed: {}", peerId, e.getMessage());
+        }finally{
+            try{
+                peer.close();
+            }catch(IOException e){
+                LOG.warn("Error while closing cluster link");
+            }
+            if(peerId != null && incoming.remove(peerId, peer)){
+                LOG.info("Cluster peer {} disconnected", peerId);
+                state.removeNode(peerId);
+            }
+        }
+    }
+
+    /**
+     * Determines whether an incoming link comes from one of the configured peers. Peer names are resolved again for
+     * every link, so a peer whose address changes is still recognised.
+     *
+     * @param address the address the link comes from
+     * @return true if the address belongs to a configured peer
+     */
+    private boolean isPeerAddress(InetAddress address){
+        for(PeerLink link : links){
+            try{
+                for(InetAddress peerAddress : InetAddress.getAllByName(link.getHost())){
+                    if(peerAddress.equals(address)){
+                        return true;
+                    }
+                }
+            }catch(UnknownHostException e){
+                LOG.warn("Cannot resolve cluster peer {}", link.getAddress());
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compares the secret a peer introduced itself with to this node's, in time independent of where they differ
+     *
+     * @param offered the secret sent by the peer, or an empty string if it sent none
+     * @return true if the secrets are equal
+     */
+    private static boolean secretMatches(String offered){
+        return MessageDigest.isEqual(offered.getBytes(UTF_8), SECRET.getBytes(UTF_8));
+    }
+
+    /**
+     * Applies a single event from a peer
+     *
+     * @param peerId the id of the peer that sent the event
+     * @param fields the tab-separated fields of the event
+     */
+    private void handleEvent(String peerId, String[] fields){
+        try{
+            if(fields[0].equals("CLAIM")){
+                ConnectionBundle loser = state.remoteClaim(peerId, fields[1], Long.parseLong(fields[2]));
+                if(loser != null){
+                    evict(loser, peerId);
+                }
+            }else if(fields[0].equals("RELEASE")){
+                state.remoteRelease(peerId, fields[1]);
+            }else if(fields[0].equals("MSG")){
+                state.deliverRelayed(fields[1], new Message(Byte.parseByte(fields[2]), unescape(fields[3])));
+            }else if(!fields[0].equals(PeerLink.HEARTBEAT)){
+                LOG.warn("Ignoring unknown cluster event from {}: {}", peerId, fields[0]);
+            }
+        }catch(RuntimeException e){
+            LOG.warn("Ignoring malformed cluster event from {}: {}", peerId, e);
+        }
+    }
+
+    /**
+     * Disconnects a local client that lost its username to an earlier claim on a peer
+     *
+     * @param loser the local client
+     * @param peerId the id of the peer that holds the username
+     */
+    private static void evict(ConnectionBundle loser, String peerId){
+        LOG.info("Username {} was claimed first on {}, disconnecting local client", loser.getUserName(), peerId);
+        try{
+            loser.getOutput().writeLine(ProtocolConfig.current().getDuplicateUName());
+        }catch(IOException e){
+            LOG.info("Detected dead connection while evicting {}", loser.getUserName());
+        }
+        loser.getOutput().close();
+    }
+
+    /**
+     * Escapes message text so that it fits in a single tab-separated field
+     *
+     * @param text the text
+     * @return the escaped text
+     */
+    static String escape(String text){
+        StringBuilder ret = new StringBuilder(text.length() + 16);
+
+        for(int i = 0; i < text.length(); i++){
+            char c = text.charAt(i);
+            if(c == '\\'){
+                ret.append("\\\\");
+            }else if(c == '\t'){
+                ret.append("\\t");
+            }else if(c == '\n'){
+                ret.append("\\n");
+            }else if(c == '\r'){
+                ret.append("\\r");
+            }else{
+                ret.append(c);
+            }
+        }
+        return ret.toString();
+    }
+
+    /**
+     * Reverses escape
+     *
+     * @param text the escaped text
+     * @return the original text
+     */
+    static String unescape(String text){
+        StringBuilder ret = new StringBuilder(text.length());
+
+        for(int i = 0; i < text.length(); i++){
+            char c = text.charAt(i);
+            if(c == '\\' && i + 1 < text.length()){
+                char next = text.charAt(++i);
+                ret.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            }else{
+                ret.append(c);
+            }
+        }
+        return ret.toString();
+    }
+}
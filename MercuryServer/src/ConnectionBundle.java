@@ -1,35 +1,91 @@
-import java.io.DataOutputStream;
-import java.net.Socket;
-
 /**
  * Defines a data structure that holds information relevant to a single client connection. This information includes the
- * connection socket used by the client, the client's username, and a reference to the output stream to the client.
+ * client's username, a reference to the output used to send data to the client and the client's rate limiters. A
+ * connection is registered under its username as soon as the name is accepted, but only becomes active, and so visible
+ * to broadcasts, once its handshake is complete. Each active connection is a member of exactly one Room.
+ *
+ * A client that asked for a resumable session has a Session as its output, which outlives the client's connection.
  */
 public class ConnectionBundle {
-    Socket connection;
     String userName;
-    DataOutputStream outputStream;
+    ClientOutput output;
+    volatile boolean active;
+    volatile Room room;
+    long claimTime;
+    Session session;
+    TokenBucket messageLimit;
+    TokenBucket commandLimit;
 
     /**
      * ConnectionBundle constructor
      *
-     * @param conn the client's connection socket
      * @param uName the client's username
-     * @param oStream an output stream to the client
+     * @param out the output to the client
      */
-    public ConnectionBundle(Socket conn, String uName, DataOutputStream oStream){
-        connection = conn;
+    public ConnectionBundle(String uName, ClientOutput out){
         userName = uName;
-        outputStream = oStream;
+        output = out;
+        claimTime = System.currentTimeMillis();
+        messageLimit = AdmissionControl.messageBucket();
+        commandLimit = AdmissionControl.commandBucket();
+    }
+
+    /**
+     * Getter method for the output to the client
+     *
+     * @return output to the client
+     */
+    public ClientOutput getOutput(){
+        return output;
+    }
+
+    /**
+     * Determines whether the connection has completed its handshake and receives broadcasts
+     *
+     * @return true if the connection is active
+     */
+    public boolean isActive(){
+        return active;
+    }
+
+    /**
+     * Getter method for the client's current room. After the client disconnects, this is the room it was last in.
+     *
+     * @return the client's room, or null if the client was never activated
+     */
+    public Room getRoom(){
+        return room;
+    }
+
+    /**
+     * Getter method for the time the client's username was claimed, which settles conflicting claims for the same
+     * username across a cluster
+     *
+     * @return the claim time, in milliseconds since the epoch
+     */
+    public long getClaimTime(){
+        return claimTime;
+    }
+
+    /**
+     * Getter method for the client's resumable session
+     *
+     * @return the session, or null if the client did not ask for one
+     */
+    public Session getSession(){
+        return session;
     }
 
     /**
-     * Getter method for the output stream to the client
+     * Getter method for the rate limiter that applies to a line of the client's input. The limiters belong to the
+     * client rather than to its connection, so resuming a session does not refill them.
      *
-     * @return output stream to the client
+     * @param line a line received from the client
+     * @return the client's command limiter if the line is a command, its message limiter otherwise, or null if that
+     * kind of input is not limited
      */
-    public DataOutputStream getOutputStream(){
-        return outputStream;
+    public TokenBucket getLimiter(String line){
+        return line.startsWith(">>") ? commandLimit : messageLimit;
     }
 
     /**
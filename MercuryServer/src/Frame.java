@@ -0,0 +1,301 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * A message encoded once into an immutable block of bytes, ready to be written to any number of clients. A broadcast
+ * builds a single Frame and hands the same instance to every recipient, so fan-out costs one encode in total instead of
+ * one string concatenation and char-by-char conversion per recipient.
+ *
+ * Two encodings are supported. For the legacy line protocol, lines are encoded the same way DataOutputStream.writeBytes
+ * encodes them (the low byte of every char, followed by '\n'), so legacy clients see exactly the bytes they always have.
+ * For the binary frame protocol ('frame/1', negotiated during the username handshake), a frame is:
+ *
+ * [type: 1 byte][flags: 1 byte][payload length: 4 bytes, big-endian][sequence: 8 bytes, only if FLAG_SEQUENCE][payload]
+ *
+ * where the type is one of the Message types, the sequence is the Message's sequence number and the payload is the
+ * message text in UTF-8. Frames sent by the server always carry a sequence number; frames sent by clients never do.
+ *
+ * No payload the server sends is longer than MAX_FRAME_LENGTH bytes, the most any client accepts. Chat input is limited
+ * to MAX_MESSAGE_LENGTH bytes so that it still fits once the server has put the sender's name, or a history
+ * timestamp, in front of it; notices longer than the limit are split by split, and anything else that would still be
+ * too long is cut short by binary.
+ *
+ * START_COMPRESSION is not a message but a marker placed in a client's outbound queue right after the acceptance line,
+ * telling the writer that everything after it is to be compressed (see FrameDeflater).
+ *
+ * @see Message
+ */
+public final class Frame {
+    public static final int HEADER_LENGTH = 6;
+    public static final int FLAG_SEQUENCE = 1;
+    public static final int MAX_FRAME_LENGTH = 65536;
+    public static final int MAX_PREFIX_LENGTH = 256;
+    public static final int MAX_MESSAGE_LENGTH = MAX_FRAME_LENGTH - MAX_PREFIX_LENGTH;
+    public static final Charset UTF_8 = Charset.forName("UTF-8");
+    public static final Frame START_COMPRESSION = new Frame(new byte[0]);
+
+    private final byte[] bytes;
+    private final ByteBuffer content;
+
+    /**
+     * Frame constructor
+     *
+     * @param encoded the encoded frame; must not be modified after it is passed in
+     */
+    private Frame(byte[] encoded){
+        bytes = encoded;
+        content = ByteBuffer.wrap(encoded).asReadOnlyBuffer();
+    }
+
+    /**
+     * Encodes a single line
+     *
+     * @param line the line to be encoded, without a trailing '\n'
+     * @return the encoded frame
+     */
+    public static Frame of(String line){
+        int length = line.length();
+        byte[] bytes = new byte[length + 1];
+
+        for(int i = 0; i < length; i++){
+            bytes[i] = (byte) line.charAt(i);
+        }
+        bytes[length] = '\n';
+
+        return new Frame(bytes);
+    }
+
+    /**
+     * Encodes a message as a binary frame
+     *
+     * @param type the message type
+     * @param text the message text
+     * @param sequence the message's sequence number, or 0 to leave it out of the frame
+     * @return the encoded frame
+     */
+    public static Frame binary(byte type, String text, long sequence){
+        byte[] payload = text.getBytes(UTF_8);
+        if(payload.length > MAX_FRAME_LENGTH){
+            payload = text.substring(0, fittingLength(text, 0, MAX_FRAME_LENGTH)).getBytes(UTF_8);
+        }
+        int headerLength = sequence != 0 ? HEADER_LENGTH + 8 : HEADER_LENGTH;
+        byte[] bytes = new byte[headerLength + payload.length];
+
+        bytes[0] = type;
+        bytes[1] = (byte) (sequence != 0 ? FLAG_SEQUENCE : 0);
+        putInt(bytes, 2, payload.length);
+        if(sequence != 0){
+            putInt(bytes, HEADER_LENGTH, (int) (sequence >>> 32));
+            putInt(bytes, HEADER_LENGTH + 4, (int) sequence);
+        }
+        System.arraycopy(payload, 0, bytes, headerLength, payload.length);
+
+        return new Frame(bytes);
+    }
+
+    /**
+     * Measures a text as it is encoded in frames
+     *
+     * @param text the text
+     * @return the length of the text in UTF-8, in bytes
+     */
+    public static int utf8Length(String text){
+        int length = 0;
+        for(int i = 0; i < text.length(); i++){
+            char c = text.charAt(i);
+            if(c < 0x80){
+                length++;
+            }else if(c < 0x800){
+                length += 2;
+            }else if(Character.isHighSurrogate(c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))){
+                length += 4;
+                i++;
+            }else{
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Splits a text into parts that each fit in a frame, at line breaks where possible. A single line longer than a
+     * frame is split wherever the frame is full.
+     *
+     * @param text the text to be split
+     * @return the text itself if it fits in a frame, otherwise its parts in order
+     */
+    public static List<String> split(String text){
+        List<String> parts = new ArrayList<String>();
+        int start = 0;
+
+        while(start < text.length()){
+            int end = fittingLength(text, start, MAX_FRAME_LENGTH);
+            if(end < text.length()){
+                int lineBreak = text.lastIndexOf('\n', end - 1);
+                if(lineBreak >= start){
+                    end = lineBreak + 1;
+                }
+            }
+            parts.add(text.substring(start, end));
+            start = end;
+        }
+        if(parts.isEmpty()){
+            parts.add(text);
+        }
+        return parts;
+    }
+
+    /**
+     * Finds how much of a text fits in a number of UTF-8 bytes, without splitting a surrogate pair
+     *
+     * @param text the text
+     * @param start the index of the first char to be measured
+     * @param maxBytes the number of bytes available
+     * @return the index just past the last char that fits
+     */
+    private static int fittingLength(String text, int start, int maxBytes){
+        int length = 0;
+        int i = start;
+        while(i < text.length()){
+            char c = text.charAt(i);
+            int chars = 1;
+            int bytes = c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+            if(Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))){
+                chars = 2;
+                bytes = 4;
+            }
+            if(length + bytes > maxBytes){
+                break;
+            }
+            length += bytes;
+            i += chars;
+        }
+        return i;
+    }
+
+    /**
+     * Reads a single binary frame from a blocking stream
+     *
+     * @param in the stream to read from
+     * @return the decoded message, or null if the stream ended cleanly between frames
+     * @throws IOException if the stream fails, ends inside a frame, or the frame is too long
+     */
+    public static Message read(DataInputStream in) throws IOException {
+        int type = in.read();
+        if(type < 0){
+            return null;
+        }
+
+        int flags = in.readUnsignedByte();
+        int length = in.readInt();
+        if(length < 0 || length > MAX_FRAME_LENGTH){
+            throw new IOException("Frame too long");
+        }
+        if((flags & FLAG_SEQUENCE) != 0){
+            in.readLong();
+        }
+
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new Message((byte) type, new String(payload, UTF_8));
+    }
+
+    /**
+     * Determines the total length of a binary frame from its header
+     *
+     * @param bytes a buffer starting with at least HEADER_LENGTH bytes of the frame
+     * @return the length of the whole frame, header included
+     */
+    public static int frameLength(byte[] bytes){
+        int length = HEADER_LENGTH + getInt(bytes, 2);
+        if((bytes[1] & FLAG_SEQUENCE) != 0){
+            length += 8;
+        }
+        return length;
+    }
+
+    /**
+     * Decodes a complete binary frame held in a buffer
+     *
+     * @param bytes a buffer starting with a complete frame, as measured by frameLength
+     * @return the decoded message
+     */
+    public static Message decode(byte[] bytes){
+        int payloadStart = HEADER_LENGTH + ((bytes[1] & FLAG_SEQUENCE) != 0 ? 8 : 0);
+        return new Message(bytes[0], new String(bytes, payloadStart, getInt(bytes, 2), UTF_8));
+    }
+
+    /**
+     * Returns a read-only view of the frame with its own position and limit, for use by a single writer. Views share
+     * the frame's bytes, so creating one does not copy the message.
+     *
+     * @return a read-only buffer positioned at the start of the frame
+     */
+    public ByteBuffer buffer(){
+        return content.duplicate();
+    }
+
+    /**
+     * Writes the whole frame to a stream in a single write call. The stream is trusted not to keep or modify the array
+     * it is given, which holds for socket streams.
+     *
+     * @param out the stream to write to
+     * @throws IOException if the stream fails
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Copies the whole frame into a buffer, for combining several frames into one write
+     *
+     * @param dest the buffer to copy into
+     * @param offset the position in dest at which the frame starts
+     */
+    public void copyTo(byte[] dest, int offset){
+        System.arraycopy(bytes, 0, dest, offset, bytes.length);
+    }
+
+    /**
+     * Passes the whole frame to a compressor as its next input. The compressor only reads the frame's bytes.
+     *
+     * @param deflater the compressor
+     */
+    public void feed(Deflater deflater){
+        deflater.setInput(bytes, 0, bytes.length);
+    }
+
+    /**
+     * @return the size of the encoded frame in bytes
+     */
+    public int length(){
+        return bytes.length;
+    }
+
+    /**
+     * Writes a big-endian int into a buffer
+     */
+    static void putInt(byte[] bytes, int offset, int value){
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Reads a big-endian int from a buffer
+     */
+    static int getInt(byte[] bytes, int offset){
+        return ((bytes[offset] & 0xff) << 24)
+                | ((bytes[offset + 1] & 0xff) << 16)
+                | ((bytes[offset + 2] & 0xff) << 8)
+                | (bytes[offset + 3] & 0xff);
+    }
+}
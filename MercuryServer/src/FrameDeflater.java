@@ -0,0 +1,137 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+/**
+ * DEFLATE compression of everything written to a single client, for clients that negotiated 'deflate' during the
+ * handshake. The connection's writer adds each frame of a batch and then ends the batch with a sync flush, so the client
+ * can decode every message of the batch as soon as it arrives while the compressor keeps its history across batches:
+ * a chat line usually compresses against the lines before it, not just against itself.
+ *
+ * Each connection owns a single Deflater for its whole life, along with an output buffer that is reused from batch to
+ * batch, so compressing a message allocates no native zlib state. Only the connection's writer may use it, and it
+ * must be ended when the connection closes to release the native state without waiting for the garbage collector.
+ *
+ * The counters are shared by all connections and show the achieved compression ratio.
+ *
+ * @see SocketOutput
+ * @see SelectorConnection
+ */
+public class FrameDeflater {
+    static int LEVEL = 6;
+    static int INITIAL_BUFFER = 4096;
+    static int RETAINED_BUFFER = 65536;
+
+    static LongAdder BYTES_IN = new LongAdder();
+    static LongAdder BYTES_OUT = new LongAdder();
+
+    Deflater deflater;
+    byte[] output;
+    int length;
+    int batchInput;
+
+    /**
+     * FrameDeflater constructor. Uses the configured LEVEL and produces raw DEFLATE data, without a zlib header.
+     */
+    public FrameDeflater(){
+        deflater = new Deflater(Math.min(Math.max(LEVEL, 0), 9), true);
+        output = new byte[INITIAL_BUFFER];
+    }
+
+    /**
+     * Compresses a frame into the current batch
+     *
+     * @param frame the frame
+     */
+    public void add(Frame frame){
+        frame.feed(deflater);
+        deflate(Deflater.NO_FLUSH);
+        batchInput += frame.length();
+    }
+
+    /**
+     * Ends the current batch with a sync flush. The compressed batch is then held in buffer() up to the returned length,
+     * until the next call to add.
+     *
+     * @return the length of the compressed batch
+     */
+    public int finishBatch(){
+        deflate(Deflater.SYNC_FLUSH);
+        int batchLength = length;
+        BYTES_IN.add(batchInput);
+        BYTES_OUT.add(batchLength);
+        length = 0;
+        batchInput = 0;
+        return batchLength;
+    }
+
+    /**
+     * Ends the current batch with a sync flush and returns a copy of it, for writers that may keep part of a batch
+     * aside until the socket can take it
+     *
+     * @return the compressed batch
+     */
+    public ByteBuffer finishBatchCopy(){
+        int batchLength = finishBatch();
+        ByteBuffer batch = ByteBuffer.wrap(Arrays.copyOf(output, batchLength));
+        shrink();
+        return batch;
+    }
+
+    /**
+     * @return the buffer holding the batch returned by finishBatch
+     */
+    public byte[] buffer(){
+        return output;
+    }
+
+    /**
+     * Releases the output buffer if an unusually large batch made it grow. Call once the batch has been written.
+     */
+    public void shrink(){
+        if(output.length > RETAINED_BUFFER){
+            output = new byte[INITIAL_BUFFER];
+        }
+    }
+
+    /**
+     * Releases the native compression state. The FrameDeflater cannot be used afterwards.
+     */
+    public void end(){
+        deflater.end();
+    }
+
+    /**
+     * Describes the compression achieved since the server started
+     *
+     * @return a human readable summary of the counters
+     */
+    public static String describe(){
+        long in = BYTES_IN.sum();
+        long out = BYTES_OUT.sum();
+
+        return "Bytes before compression: " + in + '\n'
+                + "Bytes after compression: " + out + '\n'
+                + "Compression ratio: " + (out == 0 ? "0" : String.format("%.2f", (double) in / out)) + '\n';
+    }
+
+    /**
+     * Runs the deflater until it needs more input or, for a flush, until the flush is complete, growing the output
+     * buffer whenever it fills up
+     *
+     * @param flush the flush mode
+     */
+    private void deflate(int flush){
+        while(true){
+            if(length == output.length){
+                output = Arrays.copyOf(output, output.length * 2);
+            }
+            length += deflater.deflate(output, length, output.length - length, flush);
+
+            if(length < output.length && (flush != Deflater.NO_FLUSH || deflater.needsInput())){
+                return;
+            }
+        }
+    }
+}
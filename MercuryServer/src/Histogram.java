@@ -0,0 +1,148 @@
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * A histogram of durations in nanoseconds that any number of threads can record into without locking. Values below 8
+ * have a bucket each; above that, every power of two is split into 8 buckets, so a bucket is never wider than about 12%
+ * of the values it holds, and about 300 buckets cover everything up to several minutes.
+ *
+ * Every bucket is a LongAdder, which spreads concurrent increments over separate cells instead of having threads
+ * retry on a single contended counter, so recording costs a few nanoseconds even when every event loop records at
+ * once. Reading the histogram sums the cells and may miss values recorded at the same moment, which is fine for
+ * monitoring.
+ *
+ * @see ServerMetrics
+ */
+public class Histogram {
+    static final int EXACT = 8;
+    static final int SUB_BUCKETS = 8;
+    static final int MAX_MAGNITUDE = 40;
+
+    LongAdder[] counts;
+    LongAdder sum;
+    LongAccumulator max;
+
+    /**
+     * Histogram constructor
+     */
+    public Histogram(){
+        counts = new LongAdder[EXACT + (MAX_MAGNITUDE - 3) * SUB_BUCKETS];
+        for(int i = 0; i < counts.length; i++){
+            counts[i] = new LongAdder();
+        }
+        sum = new LongAdder();
+        max = new LongAccumulator(new LongBinaryOperator(){
+            @Override
+            public long applyAsLong(long left, long right){
+                return Math.max(left, right);
+            }
+        }, 0);
+    }
+
+    /**
+     * Records a duration
+     *
+     * @param nanos the duration in nanoseconds; negative values are recorded as 0
+     */
+    public void record(long nanos){
+        long value = Math.min(Math.max(nanos, 0), (1L << MAX_MAGNITUDE) - 1);
+
+        counts[index(value)].increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * @return the number of durations recorded
+     */
+    public long count(){
+        long total = 0;
+        for(LongAdder count : counts){
+            total += count.sum();
+        }
+        return total;
+    }
+
+    /**
+     * @return the mean duration in nanoseconds, or 0 if nothing was recorded
+     */
+    public double mean(){
+        long total = count();
+        return total == 0 ? 0 : (double) sum.sum() / total;
+    }
+
+    /**
+     * @return the longest duration recorded, in nanoseconds
+     */
+    public long max(){
+        return max.get();
+    }
+
+    /**
+     * Finds the duration below which the given share of the recorded durations fall. The upper bound of the bucket is
+     * returned, so a percentile is never reported lower than it was.
+     *
+     * @param percent the percentile, between 0 and 100
+     * @return the percentile in nanoseconds, or 0 if nothing was recorded
+     */
+    public long percentile(double percent){
+        long[] snapshot = new long[counts.length];
+        long total = 0;
+        for(int i = 0; i < counts.length; i++){
+            snapshot[i] = counts[i].sum();
+            total += snapshot[i];
+        }
+        if(total == 0){
+            return 0;
+        }
+
+        long target = Math.max(1, (long) Math.ceil(percent / 100 * total));
+        long seen = 0;
+        for(int i = 0; i < snapshot.length; i++){
+            seen += snapshot[i];
+            if(seen >= target){
+                return Math.min(upperBound(i), max());
+            }
+        }
+        return max();
+    }
+
+    /**
+     * Describes the histogram in microseconds, on one line
+     *
+     * @return count, mean, percentiles and maximum
+     */
+    public String describe(){
+        return String.format("count %d, mean %.1f us, p50 %.1f us, p99 %.1f us, p99.9 %.1f us, max %.1f us", count(),
+                mean() / 1000, percentile(50) / 1000.0, percentile(99) / 1000.0, percentile(99.9) / 1000.0,
+                max() / 1000.0);
+    }
+
+    /**
+     * @param bucket the bucket index
+     * @return the largest duration, in nanoseconds, that falls in the bucket
+     */
+    private static long upperBound(int bucket){
+        if(bucket < EXACT){
+            return bucket;
+        }
+        int magnitude = (bucket - EXACT) / SUB_BUCKETS + 3;
+        long sub = (bucket - EXACT) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << (magnitude - 3)) - 1;
+    }
+
+    /**
+     * Finds the bucket of a duration
+     *
+     * @param value the duration in nanoseconds, between 0 and 2^MAX_MAGNITUDE - 1
+     * @return the bucket index
+     */
+    private static int index(long value){
+        if(value < EXACT){
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        return EXACT + (magnitude - 3) * SUB_BUCKETS + (int) ((value >>> (magnitude - 3)) - SUB_BUCKETS);
+    }
+}
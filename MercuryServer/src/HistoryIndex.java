@@ -0,0 +1,152 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A sparse index over one segment of the history log, stored next to the segment in a file with the same name and the
+ * extension '.idx'. The index holds an entry for the first record of the segment and then for the first record at or
+ * after every INTERVAL_BYTES of data, so it stays small (20 bytes per interval) while a lookup only has to scan at most
+ * one interval of records after a binary search over the entries.
+ *
+ * Each entry is laid out as follows, big-endian:
+ *
+ * [sequence 8B][time 8B][offset 4B]
+ *
+ * Entries are in ascending order of both sequence number and time, since the history log keeps its times in sequence
+ * order. An entry's sequence number is written last and is never zero, so unused entries, including a half-written one
+ * after a crash, read as zero and end the index. The index of the newest segment is rebuilt from the segment when the
+ * log is recovered, and a missing index only makes lookups in its segment start from the beginning.
+ *
+ * @see HistoryLog
+ */
+public class HistoryIndex {
+    static int INTERVAL_BYTES = 4096;
+    static int ENTRY_BYTES = 20;
+    static String INDEX_SUFFIX = ".idx";
+
+    MappedByteBuffer entries;
+    int entryCount;
+    int nextOffset;
+
+    /**
+     * Opens the index of a segment for writing, discarding any entries it already holds
+     *
+     * @param segmentFile the segment
+     * @param segmentCapacity the size of the segment, which bounds the number of entries
+     * @throws IOException if the index cannot be created
+     */
+    public HistoryIndex(File segmentFile, int segmentCapacity) throws IOException {
+        int size = (segmentCapacity / Math.max(1, INTERVAL_BYTES) + 1) * ENTRY_BYTES;
+        RandomAccessFile raf = new RandomAccessFile(indexFile(segmentFile), "rw");
+
+        try{
+            raf.setLength(0);
+            raf.setLength(size);
+            entries = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }finally{
+            raf.close();
+        }
+    }
+
+    /**
+     * Called by the history log writer for every record written to the segment, in order. Adds an entry if the record
+     * starts a new interval.
+     *
+     * @param sequence the record's sequence number
+     * @param time the record's time
+     * @param offset the record's position in the segment
+     */
+    public void onRecord(long sequence, long time, int offset){
+        if(offset < nextOffset || (entryCount + 1) * ENTRY_BYTES > entries.capacity()){
+            return;
+        }
+
+        int position = entryCount * ENTRY_BYTES;
+        entries.putLong(position + 8, time);
+        entries.putInt(position + 16, offset);
+        entries.putLong(position, sequence);
+        entryCount++;
+        nextOffset = offset + INTERVAL_BYTES;
+    }
+
+    /**
+     * Writes the index's changes to disk
+     */
+    public void force(){
+        entries.force();
+    }
+
+    /**
+     * Finds where to start reading a segment to reach the first record at or after a sequence number or time. The
+     * returned position is that of the last indexed record before the target, so at most one interval of records has
+     * to be skipped from there.
+     *
+     * @param index the segment's index, mapped read-only
+     * @param byTime true to search by time, false to search by sequence number
+     * @param from the sequence number or time to search for
+     * @return the position in the segment to start reading from
+     */
+    static int seek(MappedByteBuffer index, boolean byTime, long from){
+        int count = countEntries(index);
+        int low = 0;
+        int high = count - 1;
+        int found = -1;
+
+        //The last entry whose key is below the target
+        while(low <= high){
+            int mid = (low + high) >>> 1;
+            if(key(index, mid, byTime) < from){
+                found = mid;
+                low = mid + 1;
+            }else{
+                high = mid - 1;
+            }
+        }
+
+        return found < 0 ? 0 : index.getInt(found * ENTRY_BYTES + 16);
+    }
+
+    /**
+     * Counts the entries in use. Entries are filled from the start, so this is a binary search for the first unused
+     * one.
+     *
+     * @param index the mapped index
+     * @return the number of entries in use
+     */
+    private static int countEntries(MappedByteBuffer index){
+        int low = 0;
+        int high = index.capacity() / ENTRY_BYTES;
+
+        while(low < high){
+            int mid = (low + high) >>> 1;
+            if(index.getLong(mid * ENTRY_BYTES) != 0){
+                low = mid + 1;
+            }else{
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @param index the mapped index
+     * @param entry the entry number
+     * @param byTime true for the entry's time, false for its sequence number
+     * @return the entry's key
+     */
+    private static long key(MappedByteBuffer index, int entry, boolean byTime){
+        return index.getLong(entry * ENTRY_BYTES + (byTime ? 8 : 0));
+    }
+
+    /**
+     * @param segmentFile a segment of the history log
+     * @return the segment's index file
+     */
+    static File indexFile(File segmentFile){
+        String name = segmentFile.getName();
+        return new File(segmentFile.getParentFile(),
+                name.substring(0, name.length() - HistoryLog.SEGMENT_SUFFIX.length()) + INDEX_SUFFIX);
+    }
+}
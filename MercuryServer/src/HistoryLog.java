@@ -0,0 +1,399 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A persistent, append-only log of every message broadcast by the server. The log is a directory of segment files of
+ * SEGMENT_BYTES each, named after the sequence number of their first record. The newest segment is memory-mapped and
+ * records are copied straight into the mapping; when a record does not fit, the segment is flushed and a new one is
+ * started.
+ *
+ * Broadcasting threads never touch the files. append only places the message in a bounded queue, and a single daemon
+ * thread takes messages off the queue, numbers them and writes them. If the writer falls so far behind that the queue
+ * is full, the message is left out of the history rather than holding up the broadcast, and counted in getDropped.
+ * Mapped data reaches the disk when the operating system writes it back, and at the latest FSYNC_MILLIS after it was
+ * appended, when the writer forces the segment.
+ *
+ * Readers map segments read-only. Since a record's length is written after the rest of the record, a reader, or the
+ * writer recovering after a crash, stops at the first record whose length is still zero. Every segment has a sparse
+ * HistoryIndex, so a reader looking for the messages since a sequence number or a time finds the right segment by a
+ * binary search over the segments and the right position within it by a binary search over the index, and only
+ * streams forward from there. Read-only mappings of the most recently read segments and indexes are kept, since
+ * segment files never move or shrink while the server runs, and mapping a file is far more expensive than a seek.
+ *
+ * @see HistoryRecord
+ * @see HistoryIndex
+ */
+public class HistoryLog implements Runnable {
+    static Log LOG = Log.get("history");
+    static String DIRECTORY = "history";
+    static int SEGMENT_BYTES = 16 * 1024 * 1024;
+    static long FSYNC_MILLIS = 1000;
+    static int QUEUE_CAPACITY = 8192;
+    static int MIN_SEGMENT_BYTES = 1024 * 1024;
+    static String SEGMENT_SUFFIX = ".log";
+    static int MAPPING_CACHE_SIZE = 64;
+
+    File directory;
+    int segmentBytes;
+    ArrayBlockingQueue<HistoryRecord> pending;
+    AtomicLong dropped;
+    long nextSequence;
+    long lastTime;
+    MappedByteBuffer segment;
+    HistoryIndex index;
+    int segmentPosition;
+    boolean dirty;
+    long lastForce;
+    LinkedHashMap<File, MappedByteBuffer> readMappings;
+
+    /**
+     * HistoryLog constructor. Opens the newest segment in the directory, or creates the directory and a first segment,
+     * and continues numbering after the last record found.
+     *
+     * @param dir the directory holding the segment files
+     * @throws IOException if the directory or the newest segment cannot be opened
+     */
+    public HistoryLog(File dir) throws IOException {
+        directory = dir;
+        segmentBytes = Math.max(MIN_SEGMENT_BYTES, SEGMENT_BYTES);
+        pending = new ArrayBlockingQueue<HistoryRecord>(QUEUE_CAPACITY);
+        dropped = new AtomicLong();
+        nextSequence = 1;
+        readMappings = new LinkedHashMap<File, MappedByteBuffer>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<File, MappedByteBuffer> eldest){
+                return size() > MAPPING_CACHE_SIZE;
+            }
+        };
+
+        if(!directory.isDirectory() && !directory.mkdirs()){
+            throw new IOException("Cannot create history directory " + directory);
+        }
+        recover();
+    }
+
+    /**
+     * Starts the writer thread, and a shutdown hook that flushes the current segment when the server stops
+     */
+    public void start(){
+        Thread writer = new Thread(this, "history-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                force();
+            }
+        }));
+    }
+
+    /**
+     * Queues a broadcast message to be written to the log. Never blocks.
+     *
+     * @param roomName the name of the room the message was sent to
+     * @param message the message
+     */
+    public void append(String roomName, Message message){
+        if(!pending.offer(new HistoryRecord(0, System.currentTimeMillis(), roomName, message))){
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of messages left out of the history because the writer could not keep up
+     */
+    public long getDropped(){
+        return dropped.get();
+    }
+
+    /**
+     * Finds the most recent messages sent to a room. Segments are read from the newest backwards until enough messages
+     * have been found.
+     *
+     * @param roomName the name of the room
+     * @param count the maximum number of messages
+     * @return up to count messages, oldest first
+     * @throws IOException if a segment cannot be read
+     */
+    public ArrayList<HistoryRecord> recent(String roomName, int count) throws IOException {
+        ArrayDeque<HistoryRecord> found = new ArrayDeque<HistoryRecord>(count);
+        File[] segments = listSegments();
+
+        for(int i = segments.length - 1; i >= 0 && found.size() < count; i--){
+            ArrayDeque<HistoryRecord> inSegment = new ArrayDeque<HistoryRecord>(count);
+            MappedByteBuffer buf = readMapping(segments[i]);
+            int position = 0;
+            HistoryRecord record;
+
+            while((record = HistoryRecord.decode(buf, position)) != null){
+                if(record.getRoom().equals(roomName)){
+                    if(inSegment.size() == count){
+                        inSegment.removeFirst();
+                    }
+                    inSegment.addLast(record);
+                }
+                position += 4 + HistoryRecord.recordLength(buf, position);
+            }
+
+            while(!inSegment.isEmpty() && found.size() < count){
+                found.addFirst(inSegment.removeLast());
+            }
+        }
+
+        return new ArrayList<HistoryRecord>(found);
+    }
+
+    /**
+     * Finds the messages sent to a room since a sequence number or a time. The index is used to seek to the first
+     * candidate record, and records are then read forward, across segments, until enough messages have been found.
+     *
+     * @param roomName the name of the room
+     * @param byTime true if from is a time, false if it is a sequence number
+     * @param from the sequence number or time, in milliseconds since the epoch, of the earliest message wanted
+     * @param count the maximum number of messages
+     * @return up to count messages, oldest first
+     * @throws IOException if a segment cannot be read
+     */
+    public ArrayList<HistoryRecord> since(String roomName, boolean byTime, long from, int count) throws IOException {
+        ArrayList<HistoryRecord> found = new ArrayList<HistoryRecord>();
+        File[] segments = listSegments();
+
+        //The last segment whose first record is below the target; earlier segments cannot hold anything wanted
+        int low = 0;
+        int high = segments.length - 1;
+        int first = 0;
+        while(low <= high){
+            int mid = (low + high) >>> 1;
+            HistoryRecord head = HistoryRecord.decode(readMapping(segments[mid]), 0);
+            if(head != null && key(head, byTime) < from){
+                first = mid;
+                low = mid + 1;
+            }else{
+                high = mid - 1;
+            }
+        }
+
+        for(int i = first; i < segments.length && found.size() < count; i++){
+            MappedByteBuffer buf = readMapping(segments[i]);
+            int position = 0;
+            if(i == first){
+                File indexFile = HistoryIndex.indexFile(segments[i]);
+                position = indexFile.isFile() ? HistoryIndex.seek(readMapping(indexFile), byTime, from) : 0;
+            }
+            HistoryRecord record;
+
+            while(found.size() < count && (record = HistoryRecord.decode(buf, position)) != null){
+                if(key(record, byTime) >= from && record.getRoom().equals(roomName)){
+                    found.add(record);
+                }
+                position += 4 + HistoryRecord.recordLength(buf, position);
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * The thread method of the writer. Writes queued messages as they arrive, and forces the current segment to disk
+     * once FSYNC_MILLIS have passed since the oldest unforced write.
+     */
+    public void run(){
+        while(true){
+            try{
+                HistoryRecord record = pending.poll(FSYNC_MILLIS, TimeUnit.MILLISECONDS);
+                while(record != null){
+                    write(record);
+                    record = pending.poll();
+                }
+
+                if(dirty && System.currentTimeMillis() - lastForce >= FSYNC_MILLIS){
+                    force();
+                }
+            }catch(InterruptedException e){
+                force();
+                return;
+            }catch(IOException e){
+                LOG.error("History log write failed: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Numbers a queued message and copies it into the current segment, starting a new segment if it does not fit. Only
+     * called by the writer thread, or by the history benchmark, which fills a log without starting the writer.
+     *
+     * @param queued the message as queued by append
+     * @throws IOException if a new segment cannot be created
+     */
+    void write(HistoryRecord queued) throws IOException {
+        //Times are kept in sequence order even if the clock steps back, so they can be searched like sequence numbers
+        lastTime = Math.max(lastTime, queued.getTime());
+        byte[] encoded = new HistoryRecord(nextSequence, lastTime, queued.type, queued.room, queued.text).encode();
+
+        if(encoded.length > segmentBytes){
+            LOG.warn("History record too large, not logged");
+            return;
+        }
+        if(segmentPosition + encoded.length > segment.capacity()){
+            force();
+            openSegment(nextSequence);
+        }
+
+        segment.position(segmentPosition + 4);
+        segment.put(encoded, 4, encoded.length - 4);
+        segment.putInt(segmentPosition, encoded.length - 4);
+        index.onRecord(nextSequence, lastTime, segmentPosition);
+        segmentPosition += encoded.length;
+        nextSequence++;
+
+        if(!dirty){
+            dirty = true;
+            lastForce = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Writes the current segment's and index's changes to disk
+     */
+    synchronized void force(){
+        if(segment != null && dirty){
+            segment.force();
+            index.force();
+            dirty = false;
+        }
+    }
+
+    /**
+     * Reopens the newest segment after a restart, placing the write position after its last complete record and
+     * rebuilding its index, or creates the first segment of a new log
+     *
+     * @throws IOException if the segment cannot be opened
+     */
+    private void recover() throws IOException {
+        File[] segments = listSegments();
+        if(segments.length == 0){
+            openSegment(nextSequence);
+            return;
+        }
+
+        File newest = segments[segments.length - 1];
+        String name = newest.getName();
+        nextSequence = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        segment = map(newest, FileChannel.MapMode.READ_WRITE, Math.max(segmentBytes, (int) newest.length()));
+        index = new HistoryIndex(newest, segment.capacity());
+        segmentPosition = 0;
+
+        HistoryRecord record;
+        while((record = HistoryRecord.decode(segment, segmentPosition)) != null){
+            nextSequence = record.getSequence() + 1;
+            lastTime = record.getTime();
+            index.onRecord(record.getSequence(), record.getTime(), segmentPosition);
+            segmentPosition += 4 + HistoryRecord.recordLength(segment, segmentPosition);
+        }
+        LOG.info("History log recovered, next sequence {}", nextSequence);
+    }
+
+    /**
+     * Creates and maps a new, empty segment and its index
+     *
+     * @param firstSequence the sequence number of the segment's first record
+     * @throws IOException if the segment cannot be created
+     */
+    private void openSegment(long firstSequence) throws IOException {
+        File file = new File(directory, String.format("%020d", firstSequence) + SEGMENT_SUFFIX);
+        segment = map(file, FileChannel.MapMode.READ_WRITE, segmentBytes);
+        index = new HistoryIndex(file, segmentBytes);
+        segmentPosition = 0;
+    }
+
+    /**
+     * @param record a record
+     * @param byTime true for the record's time, false for its sequence number
+     * @return the key the record is searched by
+     */
+    private static long key(HistoryRecord record, boolean byTime){
+        return byTime ? record.getTime() : record.getSequence();
+    }
+
+    /**
+     * Lists the segment files in the log directory
+     *
+     * @return the segments, oldest first
+     */
+    File[] listSegments(){
+        File[] segments = directory.listFiles();
+        if(segments == null){
+            return new File[0];
+        }
+
+        ArrayList<File> ret = new ArrayList<File>();
+        for(File f : segments){
+            if(f.getName().matches("[0-9]{20}" + SEGMENT_SUFFIX.replace(".", "\\."))){
+                ret.add(f);
+            }
+        }
+
+        File[] sorted = ret.toArray(new File[0]);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * Gets a read-only mapping of a segment or index file from the mapping cache, mapping the file if it is not cached
+     *
+     * @param file the file
+     * @return the mapped file
+     * @throws IOException if the file cannot be read
+     */
+    private MappedByteBuffer readMapping(File file) throws IOException {
+        synchronized(readMappings){
+            MappedByteBuffer buf = readMappings.get(file);
+            if(buf == null){
+                buf = mapReadOnly(file);
+                readMappings.put(file, buf);
+            }
+            return buf;
+        }
+    }
+
+    /**
+     * Maps a whole segment for reading. The mapping stays valid after the file is closed.
+     *
+     * @param file the segment
+     * @return the mapped segment
+     * @throws IOException if the segment cannot be read
+     */
+    static MappedByteBuffer mapReadOnly(File file) throws IOException {
+        return map(file, FileChannel.MapMode.READ_ONLY, (int) file.length());
+    }
+
+    /**
+     * Maps a file, growing it to the requested size if necessary
+     *
+     * @param file the file
+     * @param mode the mapping mode
+     * @param size the number of bytes to map
+     * @return the mapped file
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    private static MappedByteBuffer map(File file, FileChannel.MapMode mode, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+        try{
+            return raf.getChannel().map(mode, 0, size);
+        }finally{
+            raf.close();
+        }
+    }
+}
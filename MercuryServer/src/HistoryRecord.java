@@ -0,0 +1,154 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * A single message as stored in the history log, along with the room it was sent to, its sequence number within the log
+ * and the time it was logged.
+ *
+ * On disk, a record is laid out as follows, big-endian:
+ *
+ * [length 4B][sequence 8B][time 8B][type 1B][room length 2B][room UTF-8][text UTF-8]
+ *
+ * The length counts every byte after the length field itself. A length of zero marks the end of the data in a segment,
+ * which is why the length is always written last.
+ *
+ * @see HistoryLog
+ */
+public class HistoryRecord {
+    static Charset UTF_8 = Charset.forName("UTF-8");
+    static int FIXED_LENGTH = 8 + 8 + 1 + 2;
+
+    long sequence;
+    long time;
+    byte type;
+    String room;
+    String text;
+
+    /**
+     * HistoryRecord constructor
+     *
+     * @param seq the sequence number of the record in the log
+     * @param t the time the message was logged, in milliseconds since the epoch
+     * @param r the name of the room the message was sent to
+     * @param message the message
+     */
+    public HistoryRecord(long seq, long t, String r, Message message){
+        this(seq, t, message.getType(), r, message.getText());
+    }
+
+    /**
+     * HistoryRecord constructor
+     *
+     * @param seq the sequence number of the record in the log
+     * @param t the time the message was logged, in milliseconds since the epoch
+     * @param ty the message type
+     * @param r the name of the room the message was sent to
+     * @param txt the message text
+     */
+    HistoryRecord(long seq, long t, byte ty, String r, String txt){
+        sequence = seq;
+        time = t;
+        type = ty;
+        room = r;
+        text = txt;
+    }
+
+    /**
+     * @return the sequence number of the record in the log
+     */
+    public long getSequence(){
+        return sequence;
+    }
+
+    /**
+     * @return the time the message was logged, in milliseconds since the epoch
+     */
+    public long getTime(){
+        return time;
+    }
+
+    /**
+     * @return the name of the room the message was sent to
+     */
+    public String getRoom(){
+        return room;
+    }
+
+    /**
+     * Rebuilds the message for replay to a client, with the time it was originally sent and its sequence number in
+     * front of the text, so that the client can ask for the history since that message
+     *
+     * @return the replayed message
+     */
+    public Message toReplay(){
+        String sent = new SimpleDateFormat("HH:mm").format(new Date(time));
+        return new Message(type, "[" + sent + " #" + sequence + "] " + text);
+    }
+
+    /**
+     * Encodes the record, including its length field
+     *
+     * @return the encoded record
+     */
+    byte[] encode(){
+        byte[] roomBytes = room.getBytes(UTF_8);
+        byte[] textBytes = text.getBytes(UTF_8);
+        ByteBuffer buf = ByteBuffer.allocate(4 + FIXED_LENGTH + roomBytes.length + textBytes.length);
+
+        buf.putInt(FIXED_LENGTH + roomBytes.length + textBytes.length);
+        buf.putLong(sequence);
+        buf.putLong(time);
+        buf.put(type);
+        buf.putShort((short) roomBytes.length);
+        buf.put(roomBytes);
+        buf.put(textBytes);
+        return buf.array();
+    }
+
+    /**
+     * Decodes the record starting at a position in a segment
+     *
+     * @param buf the segment
+     * @param position the position of the record's length field
+     * @return the record, or null if the segment's data ends at this position
+     */
+    static HistoryRecord decode(ByteBuffer buf, int position){
+        int length = recordLength(buf, position);
+        if(length == 0){
+            return null;
+        }
+
+        ByteBuffer rec = buf.duplicate();
+        rec.position(position + 4);
+        long seq = rec.getLong();
+        long t = rec.getLong();
+        byte ty = rec.get();
+        byte[] roomBytes = new byte[rec.getShort() & 0xFFFF];
+        rec.get(roomBytes);
+        byte[] textBytes = new byte[length - FIXED_LENGTH - roomBytes.length];
+        rec.get(textBytes);
+
+        return new HistoryRecord(seq, t, ty, new String(roomBytes, UTF_8), new String(textBytes, UTF_8));
+    }
+
+    /**
+     * Reads the length field of the record starting at a position in a segment
+     *
+     * @param buf the segment
+     * @param position the position of the record's length field
+     * @return the number of bytes after the length field, or 0 if there is no complete record at this position
+     */
+    static int recordLength(ByteBuffer buf, int position){
+        if(position + 4 + FIXED_LENGTH > buf.limit()){
+            return 0;
+        }
+
+        int length = buf.getInt(position);
+        if(length < FIXED_LENGTH || position + 4 + length > buf.limit()){
+            return 0;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,391 @@
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Leveled, asynchronous server log. Every log line belongs to a category, such as 'connection' or 'message', and each
+ * category has its own level, so that, for example, the line logged for every chat message can be turned off while
+ * connection problems are still reported.
+ *
+ * Logging never blocks the calling thread on the console. A call at a level the category has turned off returns after
+ * reading a single field, without formatting or allocating anything, as long as the caller passes the parts of the
+ * line as arguments instead of concatenating them:
+ *
+ * static Log LOG = Log.get("connection");
+ * LOG.info("Closing {}'s connection", userName);
+ *
+ * Enabled calls add an entry to a lock-free queue and return; a single background thread formats the entries, filling
+ * each '{}' with the next argument, and prints them to standard output in batches. Arguments must not be changed after
+ * they are logged. The queue is bounded: if the writer falls behind by QUEUE_SIZE entries, further entries are dropped
+ * and counted rather than slowing the server down, and the writer reports how many were lost.
+ *
+ * Levels, from most to least severe: error, warn, info, debug. A category logs everything at or above its level, and
+ * 'off' silences it completely.
+ */
+public class Log {
+    static final int OFF = 0;
+    static final int ERROR = 1;
+    static final int WARN = 2;
+    static final int INFO = 3;
+    static final int DEBUG = 4;
+    static final String[] LEVEL_NAMES = {"OFF", "ERROR", "WARN", "INFO", "DEBUG"};
+
+    static int QUEUE_SIZE = 65536;
+    static volatile int DEFAULT_LEVEL = INFO;
+
+    static ConcurrentHashMap<String, Log> CATEGORIES = new ConcurrentHashMap<String, Log>();
+    static ConcurrentLinkedQueue<Entry> QUEUE = new ConcurrentLinkedQueue<Entry>();
+    static AtomicInteger QUEUED = new AtomicInteger();
+    static LongAdder DROPPED = new LongAdder();
+    static volatile boolean writerParked;
+    static Thread WRITER;
+
+    static{
+        WRITER = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "log-writer");
+        WRITER.setDaemon(true);
+        WRITER.start();
+
+        //Print whatever is still queued when the server exits
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long deadline = System.nanoTime() + 1000000000L;
+                while(QUEUED.get() > 0 && System.nanoTime() < deadline){
+                    LockSupport.unpark(WRITER);
+                    LockSupport.parkNanos(1000000);
+                }
+            }
+        }));
+    }
+
+    String name;
+    volatile int level;
+
+    /**
+     * Log constructor. Use get, so every category has a single Log.
+     *
+     * @param n the name of the category
+     */
+    private Log(String n){
+        name = n;
+        level = DEFAULT_LEVEL;
+    }
+
+    /**
+     * Finds the log of a category, creating it at the default level the first time it is asked for
+     *
+     * @param category the name of the category
+     * @return the category's log
+     */
+    public static Log get(String category){
+        Log log = CATEGORIES.get(category);
+        if(log == null){
+            CATEGORIES.putIfAbsent(category, new Log(category));
+            log = CATEGORIES.get(category);
+        }
+        return log;
+    }
+
+    /**
+     * Sets the level of every category. Categories named in the list get their own level, and every other category,
+     * including those created later, gets the default.
+     *
+     * @param defaultLevel the name of the default level
+     * @param categoryLevels a comma-separated list of category=level pairs, such as 'message=off,cluster=debug'
+     */
+    public static void configure(String defaultLevel, String categoryLevels){
+        DEFAULT_LEVEL = parseLevel(defaultLevel, INFO);
+        for(Log log : CATEGORIES.values()){
+            log.level = DEFAULT_LEVEL;
+        }
+
+        for(String pair : categoryLevels.split(",")){
+            String[] parts = pair.trim().split("=", 2);
+            if(parts.length == 2){
+                Log log = get(parts[0].trim());
+                log.level = parseLevel(parts[1], DEFAULT_LEVEL);
+            }
+        }
+    }
+
+    /**
+     * Determines whether the category logs at a level. Only needed when building the arguments of a log line is itself
+     * expensive.
+     *
+     * @param atLevel the level
+     * @return true if lines at that level are logged
+     */
+    public boolean isEnabled(int atLevel){
+        return atLevel <= level;
+    }
+
+    /**
+     * Logs an error
+     *
+     * @param message the line, with '{}' in place of each argument
+     */
+    public void error(String message){
+        log(ERROR, message, null, null, null);
+    }
+
+    /**
+     * Logs an error
+     *
+     * @param message the line, with '{}' in place of each argument
+     * @param a the first argument
+     */
+    public void error(String message, Object a){
+        log(ERROR, message, a, null, null);
+    }
+
+    /**
+     * Logs an error
+     *
+     * @param message the line, with '{}' in place of each argument
+     * @param a the first argument
+     * @param b the second argument
+     */
+    public void error(String message, Object a, Object b){
+        log(ERROR, message, a, b, null);
+    }
+
+    /**
+     * Logs a warning
+     *
+     * @param message the line, with '{}' in place of each argument
+     */
+    public void warn(String message){
+        log(WARN, message, null, null, null);
+    }
+
+    /**
+     * Logs a warning
+     *
+     * @param message the line, with '{}' in place of each argument
+     * @param a the first argument
+     */
+    public void warn(String message, Object a){
+        log(WARN, message, a, null, null);
+    }
+
+    /**
+     * Logs a warning
+     *
+     * @param message the line, with '{}' in place of each argument
+     * @param a the first argument
+     * @param b the second argument
+     */
+    public void warn(String message, Object a, Object b){
+        log(WARN, message, a, b, null);
+    }
+
+    /**
+     * Logs an informational line
+     *
+     * @param message the line, with '{}' in place of each argument
+     */
+    public void info(String message){
+        log(INFO, message, null, null, null);
+    }
+
+    /**
+     * Logs an informational line
+     *
+     * @param message the line, with '{}' in place of each argument
+     * @param a the first argument
+     */
+    public void info(String message, Object a){
+        log(INFO, message, a, null, null);
+    }
+
+    /**
+     * Logs an informational line
+     *
+     * @param message the line, with '{}' in place of each argument
+     * @param a the first argument
+     * @param b the second argument
+     */
+    public void info(String message, Object a, Object b){
+        log(INFO, message, a, b, null);
+    }
+
+    /**
+     * Logs an informational line
+     *
+     * @param message the line, with '{}' in place of each argument
+     * @param a the first argument
+     * @param b the second argument
+     * @param c the third argument
+     */
+    public void info(String message, Object a, Object b, Object c){
+        log(INFO, message, a, b, c);
+    }
+
+    /**
+     * Logs a debugging line
+     *
+     * @param message the line, with '{}' in place of each argument
+     */
+    public void debug(String message){
+        log(DEBUG, message, null, null, null);
+    }
+
+    /**
+     * Logs a debugging line
+     *
+     * @param message the line, with '{}' in place of each argument
+     * @param a the first argument
+     */
+    public void debug(String message, Object a){
+        log(DEBUG, message, a, null, null);
+    }
+
+    /**
+     * Queues a line for the writer, unless the category does not log at its level or the queue is full
+     *
+     * @param atLevel the level of the line
+     * @param message the line, with '{}' in place of each argument
+     * @param a the first argument, or null
+     * @param b the second argument, or null
+     * @param c the third argument, or null
+     */
+    private void log(int atLevel, String message, Object a, Object b, Object c){
+        if(atLevel > level){
+            return;
+        }
+        if(QUEUED.incrementAndGet() > QUEUE_SIZE){
+            QUEUED.decrementAndGet();
+            DROPPED.increment();
+            return;
+        }
+
+        QUEUE.offer(new Entry(System.currentTimeMillis(), atLevel, this, message, a, b, c));
+        if(writerParked){
+            LockSupport.unpark(WRITER);
+        }
+    }
+
+    /**
+     * Parses the name of a level
+     *
+     * @param name the name, in any case
+     * @param fallback the level returned if the name is not recognized
+     * @return the level
+     */
+    private static int parseLevel(String name, int fallback){
+        for(int i = 0; i < LEVEL_NAMES.length; i++){
+            if(LEVEL_NAMES[i].equalsIgnoreCase(name.trim())){
+                return i;
+            }
+        }
+        System.err.println("Unknown log level '" + name + "', using " + LEVEL_NAMES[fallback].toLowerCase());
+        return fallback;
+    }
+
+    /**
+     * The writer thread. Formats queued entries and prints them a batch at a time, and sleeps while the queue is empty.
+     */
+    private static void write(){
+        SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        Date date = new Date();
+        StringBuilder batch = new StringBuilder(8192);
+        long reportedDrops = 0;
+
+        while(true){
+            Entry entry;
+            int count = 0;
+            while(count < 256 && (entry = QUEUE.poll()) != null){
+                QUEUED.decrementAndGet();
+                date.setTime(entry.time);
+                batch.append(timeFormat.format(date)).append(' ');
+                batch.append(String.format("%-5s", LEVEL_NAMES[entry.level])).append(" [").append(entry.log.name)
+                        .append("] ");
+                entry.format(batch);
+                batch.append(System.lineSeparator());
+                count++;
+            }
+
+            long drops = DROPPED.sum();
+            if(drops > reportedDrops){
+                date.setTime(System.currentTimeMillis());
+                batch.append(timeFormat.format(date)).append(" WARN  [log] ").append(drops - reportedDrops)
+                        .append(" log lines dropped, the log writer could not keep up").append(System.lineSeparator());
+                reportedDrops = drops;
+            }
+
+            if(batch.length() > 0){
+                System.out.print(batch);
+                System.out.flush();
+                batch.setLength(0);
+            }
+
+            if(count == 0){
+                writerParked = true;
+                if(QUEUE.isEmpty()){
+                    LockSupport.park();
+                }
+                writerParked = false;
+            }
+        }
+    }
+
+    /**
+     * A queued log line, formatted by the writer
+     */
+    static class Entry {
+        long time;
+        int level;
+        Log log;
+        String message;
+        Object a;
+        Object b;
+        Object c;
+
+        /**
+         * Entry constructor
+         *
+         * @param t the time the line was logged, in milliseconds since the epoch
+         * @param lvl the level of the line
+         * @param l the category's log
+         * @param m the line, with '{}' in place of each argument
+         * @param first the first argument, or null
+         * @param second the second argument, or null
+         * @param third the third argument, or null
+         */
+        Entry(long t, int lvl, Log l, String m, Object first, Object second, Object third){
+            time = t;
+            level = lvl;
+            log = l;
+            message = m;
+            a = first;
+            b = second;
+            c = third;
+        }
+
+        /**
+         * Appends the line with its arguments filled in
+         *
+         * @param out where the line is appended
+         */
+        void format(StringBuilder out){
+            Object[] args = {a, b, c};
+            int next = 0;
+            int from = 0;
+            int at;
+            while((at = message.indexOf("{}", from)) >= 0 && next < args.length){
+                out.append(message, from, at).append(args[next++]);
+                from = at + 2;
+            }
+            out.append(message, from, message.length());
+        }
+    }
+}
@@ -1,69 +1,330 @@
 import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 /**
  * Entry point for chat server application.
  *
- * 1.) Reads server port number and maximum allowable connections from ServerParams.xml
- * 2.) Creates a welcome socket
- * 3.) Instantiates the server state object
- * 4.) Begins waiting for connections
- * 5.) Begins a new client thread for every connection received on the welcome socket
+ * 1.) Reads server port number, maximum allowable connections and server engine from ServerParams.xml, or from the
+ *     parameter file named on the command line
+ * 2.) Loads Protocol.xml, watches it for changes, instantiates the server state object and starts collecting metrics
+ * 3.) Opens the history log and joins the cluster, if they are configured
+ * 4.) Hands over to the selector engine, if configured
+ * 5.) Otherwise creates a welcome socket and begins waiting for connections
+ * 6.) Runs a ClientController for every connection received on the welcome socket, on a new platform thread, a new
+ *     virtual thread or a worker pool thread depending on the configured engine
  *
  * @see ClientController
  * @see ServerState
+ * @see ProtocolConfig
+ * @see SelectorServer
+ * @see ClusterNode
+ * @see HistoryLog
+ * @see ServerMetrics
  */
 public class Main {
-    static int PORT_NUM;
-    static int MAX_CONNECTIONS;
+    static int PORT_NUM = 14471;
+    static int MAX_CONNECTIONS = 20;
+    static String SERVER_ENGINE = "thread";
+    static int EVENT_LOOPS = Runtime.getRuntime().availableProcessors();
+    static int WORKER_THREADS = 64;
+    static int CLUSTER_PORT = 14472;
+    static String CLUSTER_PEERS = "";
+    static String CLUSTER_NODE_ID = "";
+    static Log LOG = Log.get("server");
+    static Log CONNECTION_LOG = Log.get("connection");
 
     public static void main(String[] args) throws Exception{
         //(1) Read ServerParams.xml
-        getServerParams();
+        getServerParams(args.length > 0 ? args[0] : "ServerParams.xml");
 
-        //(2) Create welcome socket
-        ServerSocket welcomeSocket = new ServerSocket(PORT_NUM);
-        //(3) Instantiate server state object
+        //(2) Load the shared protocol and instantiate server state object
+        ProtocolConfig.load();
+        ProtocolConfig.watch();
         ServerState state = new ServerState(MAX_CONNECTIONS);
-        System.out.println("Server ready for connection");
+        ServerMetrics.start(state);
+
+        //(3) Open the history log and join the cluster
+        if(!HistoryLog.DIRECTORY.isEmpty()){
+            HistoryLog history = new HistoryLog(new File(HistoryLog.DIRECTORY));
+            state.setHistory(history);
+            history.start();
+        }
+        if(!CLUSTER_PEERS.isEmpty()){
+            String nodeId = CLUSTER_NODE_ID.isEmpty() ? defaultNodeId() : CLUSTER_NODE_ID;
+            ClusterNode node = new ClusterNode(nodeId, CLUSTER_PORT, CLUSTER_PEERS.split(","), state);
+            state.setCluster(node);
+            node.start();
+        }
 
-        //(4) Connection wait loop
+        //(4) Selector engine: a fixed set of event loops instead of a thread per client
+        if(SERVER_ENGINE.equals("selector")){
+            SelectorServer server = new SelectorServer(PORT_NUM, EVENT_LOOPS, state);
+            LOG.info("Server ready for connection (selector engine, {} event loops)", EVENT_LOOPS);
+            server.serve();
+            return;
+        }
+
+        //(5) Create welcome socket
+        Executor clientExecutor = createClientExecutor();
+        Executor writerExecutor = createWriterExecutor();
+        ServerSocket welcomeSocket = new ServerSocket(PORT_NUM);
+        LOG.info("Server ready for connection ({} engine)", SERVER_ENGINE);
+
+        //Connection wait loop
         while(true){
             Socket connectionSocket = welcomeSocket.accept();
-            System.out.println("New client attempting connection...");
+            CONNECTION_LOG.debug("New client attempting connection from {}",
+                    connectionSocket.getRemoteSocketAddress());
+            ServerMetrics.connectionOpened();
+
+            String refusal = AdmissionControl.admit(connectionSocket.getInetAddress());
+            if(refusal != null){
+                AdmissionControl.refuse(connectionSocket, refusal);
+                continue;
+            }
 
-            //(5) Begin client thread
-            Runnable clientThread = new ClientController(connectionSocket, state);
-            new Thread(clientThread).start();
+            //(6) Begin client thread
+            Runnable clientThread = new ClientController(connectionSocket, state, writerExecutor);
+            clientExecutor.execute(clientThread);
 
         }
     }
 
     /**
-     * Opens the file ServerParams.xml and reads data into PORT_NUM and MAX_CONNECTIONS variables.
-     * This allows the server to open a welcome socket on the correct port and instantiate the server
-     * state with the correct value for maximum allowable connections.
+     * Opens the server parameter file and reads the server parameters. This allows the server to open a welcome socket
+     * on the correct port, instantiate the server state with the correct value for maximum allowable connections, and
+     * choose the engine used to serve clients. Any parameter missing from the file keeps its default value.
+     *
+     * Recognized elements:
+     * <portNumber>          port to accept connections on
+     * <maxConnections>      maximum number of connections open at once; further connections are refused (0 for no
+     *                       limit)
+     * <maxConnectionsPerAddress> maximum number of connections open at once from a single IP address (0 for no limit)
+     * <messageRate>         chat messages per second each client may send over time (0 for no limit)
+     * <messageBurst>        chat messages a client may send at once before messageRate applies
+     * <commandRate>         commands per second each client may send over time (0 for no limit)
+     * <commandBurst>        commands a client may send at once before commandRate applies
+     * <overLimitPolicy>     what to do with input over a client's rate limit: 'delay' or 'drop'
+     * <serverEngine>        'thread' (one platform thread per client, the default), 'virtual' (one virtual thread per
+     *                       client, Java 21 or better), 'pool' (a fixed pool of worker threads) or 'selector'
+     *                       (non-blocking event loops)
+     * <eventLoops>          number of event loop threads used by the selector engine
+     * <workerThreads>       number of worker threads used by the pool engine, which is also the most connections the
+     *                       pool engine accepts at once
+     * <outboundQueueSize>   maximum number of messages waiting to be written to a single client
+     * <overflowPolicy>      what to do when a client's outbound queue is full: 'dropOldest' or 'disconnect'
+     * <batchWindowMicros>   how long a busy client's writer waits for more messages to coalesce (0 disables)
+     * <batchMaxBytes>       a batch is written as soon as it holds this many bytes
+     * <batchMaxDelayMicros> hard deadline after which a batch is always written
+     * <clusterPeers>        comma-separated host:port cluster addresses of every other server in the cluster;
+     *                       clustering is disabled if empty
+     * <clusterPort>         port to accept links from the other servers of the cluster on
+     * <clusterNodeId>       name of this server within the cluster, which must be unique (defaults to host:portNumber)
+     * <clusterSecret>       secret every server of the cluster must introduce itself with; links are then only accepted
+     *                       from configured peers that send it (if empty, from configured peers alone)
+     * <historyDir>          directory of the message history log; history is disabled if empty
+     * <historySegmentBytes> size of each history log segment file
+     * <historyFsyncMillis>  longest time a logged message may wait before it is forced to disk
+     * <historyIndexBytes>   amount of history data between two entries of the sparse history index
+     * <resumeBufferSize>    number of recent messages kept per client for replay when it resumes its session
+     * <resumeGraceMillis>   how long a lost client's session is held for it to resume (0 disables resumable sessions)
+     * <deflateLevel>        DEFLATE level (1-9) for clients that ask for compression (0 refuses compression)
+     * <logLevel>            level of every log category not named in logCategories: 'off', 'error', 'warn', 'info'
+     *                       or 'debug'
+     * <logCategories>       comma-separated category=level pairs, such as 'message=off,connection=debug'
+     * <logQueueSize>        number of log lines that may wait for the log writer before further lines are dropped
      *
+     * @param fileName the parameter file, normally ServerParams.xml
      */
-    private static void getServerParams(){
+    private static void getServerParams(String fileName){
         try{
-            File f = new File("ServerParams.xml");
+            File f = new File(fileName);
             DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
             DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
             Document doc = dBuilder.parse(f);
 
             doc.getDocumentElement().normalize();
 
-            PORT_NUM = Integer.parseInt(doc.getElementsByTagName("portNumber").item(0).getTextContent());
-            MAX_CONNECTIONS = Integer.parseInt(doc.getElementsByTagName("maxConnections").item(0).getTextContent());
+            PORT_NUM = Integer.parseInt(getParam(doc, "portNumber", Integer.toString(PORT_NUM)));
+            MAX_CONNECTIONS = Integer.parseInt(getParam(doc, "maxConnections", Integer.toString(MAX_CONNECTIONS)));
+            AdmissionControl.MAX_CONNECTIONS = MAX_CONNECTIONS;
+            AdmissionControl.MAX_PER_ADDRESS = Integer.parseInt(
+                    getParam(doc, "maxConnectionsPerAddress", Integer.toString(AdmissionControl.MAX_PER_ADDRESS))
+            );
+            AdmissionControl.MESSAGE_RATE = Double.parseDouble(
+                    getParam(doc, "messageRate", Double.toString(AdmissionControl.MESSAGE_RATE))
+            );
+            AdmissionControl.MESSAGE_BURST = Integer.parseInt(
+                    getParam(doc, "messageBurst", Integer.toString(AdmissionControl.MESSAGE_BURST))
+            );
+            AdmissionControl.COMMAND_RATE = Double.parseDouble(
+                    getParam(doc, "commandRate", Double.toString(AdmissionControl.COMMAND_RATE))
+            );
+            AdmissionControl.COMMAND_BURST = Integer.parseInt(
+                    getParam(doc, "commandBurst", Integer.toString(AdmissionControl.COMMAND_BURST))
+            );
+            AdmissionControl.OVER_LIMIT_POLICY = getParam(doc, "overLimitPolicy", AdmissionControl.OVER_LIMIT_POLICY);
+            SERVER_ENGINE = getParam(doc, "serverEngine", SERVER_ENGINE);
+            EVENT_LOOPS = Integer.parseInt(getParam(doc, "eventLoops", Integer.toString(EVENT_LOOPS)));
+            WORKER_THREADS = Integer.parseInt(getParam(doc, "workerThreads", Integer.toString(WORKER_THREADS)));
+            OutboundQueue.CAPACITY = Integer.parseInt(
+                    getParam(doc, "outboundQueueSize", Integer.toString(OutboundQueue.CAPACITY))
+            );
+            OutboundQueue.OVERFLOW_POLICY = getParam(doc, "overflowPolicy", OutboundQueue.OVERFLOW_POLICY);
+            OutputBatching.WINDOW_MICROS = Long.parseLong(
+                    getParam(doc, "batchWindowMicros", Long.toString(OutputBatching.WINDOW_MICROS))
+            );
+            OutputBatching.MAX_BYTES = Integer.parseInt(
+                    getParam(doc, "batchMaxBytes", Integer.toString(OutputBatching.MAX_BYTES))
+            );
+            OutputBatching.MAX_DELAY_MICROS = Long.parseLong(
+                    getParam(doc, "batchMaxDelayMicros", Long.toString(OutputBatching.MAX_DELAY_MICROS))
+            );
+            CLUSTER_PEERS = getParam(doc, "clusterPeers", CLUSTER_PEERS);
+            CLUSTER_PORT = Integer.parseInt(getParam(doc, "clusterPort", Integer.toString(CLUSTER_PORT)));
+            CLUSTER_NODE_ID = getParam(doc, "clusterNodeId", CLUSTER_NODE_ID);
+            ClusterNode.SECRET = getParam(doc, "clusterSecret", ClusterNode.SECRET);
+            HistoryLog.DIRECTORY = getParam(doc, "historyDir", HistoryLog.DIRECTORY);
+            HistoryLog.SEGMENT_BYTES = Integer.parseInt(
+                    getParam(doc, "historySegmentBytes", Integer.toString(HistoryLog.SEGMENT_BYTES))
+            );
+            HistoryLog.FSYNC_MILLIS = Long.parseLong(
+                    getParam(doc, "historyFsyncMillis", Long.toString(HistoryLog.FSYNC_MILLIS))
+            );
+            HistoryIndex.INTERVAL_BYTES = Integer.parseInt(
+                    getParam(doc, "historyIndexBytes", Integer.toString(HistoryIndex.INTERVAL_BYTES))
+            );
+            Session.BUFFER_SIZE = Integer.parseInt(
+                    getParam(doc, "resumeBufferSize", Integer.toString(Session.BUFFER_SIZE))
+            );
+            Session.GRACE_MILLIS = Long.parseLong(
+                    getParam(doc, "resumeGraceMillis", Long.toString(Session.GRACE_MILLIS))
+            );
+            FrameDeflater.LEVEL = Integer.parseInt(
+                    getParam(doc, "deflateLevel", Integer.toString(FrameDeflater.LEVEL))
+            );
+            Log.QUEUE_SIZE = Integer.parseInt(getParam(doc, "logQueueSize", Integer.toString(Log.QUEUE_SIZE)));
+            Log.configure(getParam(doc, "logLevel", "info"), getParam(doc, "logCategories", ""));
 
         }catch(Exception e){
-            System.out.println("Warning: ServerParams.xml missing or damaged, using default params");
+            LOG.warn("{} missing or damaged, using default params", fileName);
+        }
+
+        limitPoolConnections();
+    }
+
+    /**
+     * With the pool engine, a client holds its worker for as long as it is connected, so a client accepted while every
+     * worker is busy would wait in the pool's queue without a word from the server. The connection limit is lowered to
+     * WORKER_THREADS instead, so such a client is refused with the 'server full' line like any other over the limit.
+     */
+    private static void limitPoolConnections(){
+        if(!SERVER_ENGINE.equals("pool")){
+            return;
+        }
+        int limit = AdmissionControl.MAX_CONNECTIONS;
+        if(limit <= 0 || limit > WORKER_THREADS){
+            AdmissionControl.MAX_CONNECTIONS = WORKER_THREADS;
+            LOG.info("Pool engine accepts at most {} connections, one per worker thread", WORKER_THREADS);
+        }
+    }
+
+    /**
+     * Creates the executor that runs ClientController threads for the blocking engines. If virtual threads are not
+     * available, the server falls back to one platform thread per client. Note that with the pool engine each client
+     * occupies a worker for as long as it is connected, so at most WORKER_THREADS clients are served at once;
+     * limitPoolConnections refuses any more.
+     *
+     * @return an executor for client threads
+     */
+    private static Executor createClientExecutor(){
+        if(SERVER_ENGINE.equals("virtual")){
+            Executor virtualExecutor = newVirtualThreadExecutor();
+            if(virtualExecutor != null){
+                return virtualExecutor;
+            }
+            LOG.warn("Virtual threads require Java 21 or better, using platform threads");
+        }else if(SERVER_ENGINE.equals("pool")){
+            return Executors.newFixedThreadPool(WORKER_THREADS);
+        }
+
+        return new Executor() {
+            @Override
+            public void execute(Runnable clientThread) {
+                new Thread(clientThread).start();
+            }
+        };
+    }
+
+    /**
+     * Creates the executor that runs the writer tasks of client outputs for the blocking engines. With virtual threads
+     * the writers are virtual as well; otherwise they run on a cached pool, so a writer thread only exists while a
+     * client has data waiting to be written.
+     *
+     * @return an executor for writer tasks
+     */
+    private static Executor createWriterExecutor(){
+        if(SERVER_ENGINE.equals("virtual")){
+            Executor virtualExecutor = newVirtualThreadExecutor();
+            if(virtualExecutor != null){
+                return virtualExecutor;
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Looks up Executors.newVirtualThreadPerTaskExecutor reflectively, so that the server still builds and runs on
+     * Java 8
+     *
+     * @return an executor that starts a virtual thread per task, or null if virtual threads are not available
+     */
+    private static Executor newVirtualThreadExecutor(){
+        try{
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (Executor) factory.invoke(null);
+        }catch(Exception e){
+            return null;
+        }
+    }
+
+    /**
+     * Builds a cluster node id from the host name and the client port, for clusters that do not name their nodes
+     *
+     * @return the node id
+     */
+    private static String defaultNodeId(){
+        try{
+            return InetAddress.getLocalHost().getHostName() + ":" + PORT_NUM;
+        }catch(IOException e){
+            return "localhost:" + PORT_NUM;
+        }
+    }
+
+    /**
+     * Reads the text content of the first element with the given tag name
+     *
+     * @param doc the parsed parameter file
+     * @param tag the element's tag name
+     * @param defaultValue value returned if the element is not present
+     * @return the trimmed text content of the element, or defaultValue
+     */
+    private static String getParam(Document doc, String tag, String defaultValue){
+        NodeList nodes = doc.getElementsByTagName(tag);
+        if(nodes.getLength() == 0){
+            return defaultValue;
         }
+        return nodes.item(0).getTextContent().trim();
     }
 }
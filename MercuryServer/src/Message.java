@@ -0,0 +1,104 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single logical message exchanged between the server and a client, independent of how it is put on the wire. Each
+ * message caches its encoding for each wire protocol the first time it is needed, so a broadcast is encoded at most once
+ * per protocol no matter how many clients receive it.
+ *
+ * Message types, as carried by binary frames:
+ * CHAT      a chat line from a user
+ * COMMAND   a command sent by a client, without the '>>' prefix
+ * NOTICE    a message from the server itself, such as a command reply
+ * PRESENCE  a user connecting or disconnecting
+ *
+ * Every message is numbered when it is created, from a single counter for the whole server, and binary frames carry the
+ * number, so a client can tell a resumed Session which message it received last. Numbers only ever increase, but
+ * concurrent broadcasts can reach a client out of numerical order.
+ *
+ * @see Frame
+ * @see Session
+ */
+public final class Message {
+    public static final byte CHAT = 1;
+    public static final byte COMMAND = 2;
+    public static final byte NOTICE = 3;
+    public static final byte PRESENCE = 4;
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private final byte type;
+    private final String text;
+    private final long sequence;
+    private volatile Frame lineFrame;
+    private volatile Frame binaryFrame;
+
+    /**
+     * Message constructor
+     *
+     * @param t the message type
+     * @param txt the message text
+     */
+    public Message(byte t, String txt){
+        type = t;
+        text = txt;
+        sequence = SEQUENCE.incrementAndGet();
+    }
+
+    /**
+     * @return the message type
+     */
+    public byte getType(){
+        return type;
+    }
+
+    /**
+     * @return the message text
+     */
+    public String getText(){
+        return text;
+    }
+
+    /**
+     * @return the message's sequence number, unique on this server
+     */
+    public long getSequence(){
+        return sequence;
+    }
+
+    /**
+     * Renders the message as a line of the legacy protocol, in which commands are marked by their '>>' prefix
+     *
+     * @return the message as a line
+     */
+    public String toLine(){
+        return type == COMMAND ? ">>" + text : text;
+    }
+
+    /**
+     * Get the message encoded for clients using the legacy line protocol. Encoded on first use, then shared.
+     *
+     * @return the line-encoded frame
+     */
+    public Frame lineFrame(){
+        Frame f = lineFrame;
+        if(f == null){
+            f = Frame.of(toLine());
+            lineFrame = f;
+        }
+        return f;
+    }
+
+    /**
+     * Get the message encoded for clients using the binary frame protocol, including its sequence number. Encoded on
+     * first use, then shared.
+     *
+     * @return the binary frame
+     */
+    public Frame binaryFrame(){
+        Frame f = binaryFrame;
+        if(f == null){
+            f = Frame.binary(type, text, sequence);
+            binaryFrame = f;
+        }
+        return f;
+    }
+}
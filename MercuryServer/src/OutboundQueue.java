@@ -0,0 +1,99 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded queue of data waiting to be written to a single client. Every connection owns one, so a client that reads
+ * slowly only ever fills its own queue and never holds up the sender of a broadcast or the other recipients. What
+ * happens when the queue is full is decided by OVERFLOW_POLICY:
+ *
+ * 'dropOldest'  the oldest queued item is discarded to make room, so a slow client loses messages but stays connected
+ * 'disconnect'  the item is refused, and the owner of the queue is expected to disconnect the slow client
+ *
+ * @param <T> the type of the queued items
+ */
+public class OutboundQueue<T> {
+    static int CAPACITY = 1024;
+    static String OVERFLOW_POLICY = "dropOldest";
+
+    ArrayBlockingQueue<T> queue;
+    AtomicLong dropped;
+
+    /**
+     * OutboundQueue constructor. Uses the configured CAPACITY.
+     */
+    public OutboundQueue(){
+        queue = new ArrayBlockingQueue<T>(Math.max(1, CAPACITY));
+        dropped = new AtomicLong();
+    }
+
+    /**
+     * Adds an item to the queue, applying the overflow policy if the queue is full. Safe to call from any thread.
+     *
+     * @param item the item to be queued
+     * @return true if the item was queued, false if the queue is full and the client should be disconnected
+     */
+    public boolean offer(T item){
+        if(queue.offer(item)){
+            return true;
+        }
+        if(!OVERFLOW_POLICY.equals("dropOldest")){
+            return false;
+        }
+
+        while(!queue.offer(item)){
+            if(queue.poll() != null){
+                dropped.incrementAndGet();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes and returns the oldest queued item
+     *
+     * @return the oldest item, or null if the queue is empty
+     */
+    public T poll(){
+        return queue.poll();
+    }
+
+    /**
+     * Removes and returns the oldest queued item, waiting for one to arrive if the queue is empty
+     *
+     * @param timeoutNanos the longest time to wait, in nanoseconds
+     * @return the oldest item, or null if nothing arrived in time
+     * @throws InterruptedException if the waiting thread is interrupted
+     */
+    public T poll(long timeoutNanos) throws InterruptedException {
+        return queue.poll(timeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return true if nothing is waiting to be written
+     */
+    public boolean isEmpty(){
+        return queue.isEmpty();
+    }
+
+    /**
+     * @return the number of items waiting to be written
+     */
+    public int size(){
+        return queue.size();
+    }
+
+    /**
+     * @return the number of items discarded by the 'dropOldest' policy
+     */
+    public long getDropped(){
+        return dropped.get();
+    }
+
+    /**
+     * Discards everything waiting to be written
+     */
+    public void clear(){
+        queue.clear();
+    }
+}
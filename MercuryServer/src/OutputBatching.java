@@ -0,0 +1,66 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Settings and counters for the coalescing of outbound messages. Under load, messages queued for a client within a short
+ * window are written with a single write call instead of one call (and usually one TCP segment) each.
+ *
+ * Batching is adaptive: a message for a client that has not been written to within the last WINDOW_MICROS is written
+ * straight away, so an idle chat sees no added latency. Only while a client is receiving a steady stream of messages
+ * does its writer wait up to WINDOW_MICROS for more to arrive. A batch is written as soon as it reaches MAX_BYTES, and
+ * never later than MAX_DELAY_MICROS after its first message was queued.
+ *
+ * The counters are shared by all connections and show the achieved batch size.
+ */
+public class OutputBatching {
+    static long WINDOW_MICROS = 1000;
+    static int MAX_BYTES = 16384;
+    static long MAX_DELAY_MICROS = 5000;
+
+    static LongAdder FRAMES_WRITTEN = new LongAdder();
+    static LongAdder WRITE_CALLS = new LongAdder();
+    static LongAdder BYTES_WRITTEN = new LongAdder();
+
+    /**
+     * @return the coalescing window in nanoseconds
+     */
+    public static long windowNanos(){
+        return TimeUnit.MICROSECONDS.toNanos(WINDOW_MICROS);
+    }
+
+    /**
+     * @return the hard flush deadline in nanoseconds
+     */
+    public static long maxDelayNanos(){
+        return TimeUnit.MICROSECONDS.toNanos(Math.max(MAX_DELAY_MICROS, WINDOW_MICROS));
+    }
+
+    /**
+     * Records a single write call
+     *
+     * @param frames the number of frames written by the call
+     * @param bytes the number of bytes written by the call
+     */
+    public static void record(int frames, long bytes){
+        FRAMES_WRITTEN.add(frames);
+        WRITE_CALLS.increment();
+        BYTES_WRITTEN.add(bytes);
+    }
+
+    /**
+     * Describes the batching achieved since the server started
+     *
+     * @return a human readable summary of the counters
+     */
+    public static String describe(){
+        long frames = FRAMES_WRITTEN.sum();
+        long calls = WRITE_CALLS.sum();
+        long bytes = BYTES_WRITTEN.sum();
+
+        return "Frames written: " + frames + '\n'
+                + "Write calls: " + calls + '\n'
+                + "Bytes written: " + bytes + '\n'
+                + "Average frames per write: " + (calls == 0 ? "0" : String.format("%.2f", (double) frames / calls))
+                + '\n';
+    }
+}
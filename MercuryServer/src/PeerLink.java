@@ -0,0 +1,154 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The outgoing half of the link between this server and one peer of the cluster. Events produced on this server are
+ * queued by ClusterNode and written to the peer by the link's own daemon thread, so a slow or unreachable peer never
+ * holds up a client.
+ *
+ * While the peer is unreachable, the link retries the connection every RECONNECT_DELAY_MS and discards events, since the
+ * peer has forgotten this server's users anyway. Each time the connection is established, the link first introduces
+ * this node and re-announces every local username, then forwards events as they are queued. An idle link sends a
+ * heartbeat every HEARTBEAT_MS, so a peer that restarted is noticed (and resynchronized) within a few seconds, and the
+ * peer can tell a quiet link from a dead one.
+ *
+ * @see ClusterNode
+ */
+public class PeerLink implements Runnable {
+    static Log LOG = Log.get("cluster");
+    static long RECONNECT_DELAY_MS = 1000;
+    static int CONNECT_TIMEOUT_MS = 3000;
+    static int QUEUE_CAPACITY = 65536;
+    static long HEARTBEAT_MS = 2000;
+    static String HEARTBEAT = "PING";
+
+    String host;
+    int port;
+    ClusterNode node;
+    LinkedBlockingQueue<String> events;
+    volatile boolean connected;
+
+    /**
+     * PeerLink constructor
+     *
+     * @param address the peer's cluster address, as host:port
+     * @param n the local cluster node
+     */
+    public PeerLink(String address, ClusterNode n){
+        int colon = address.lastIndexOf(':');
+        host = address.substring(0, colon);
+        port = Integer.parseInt(address.substring(colon + 1));
+        node = n;
+        events = new LinkedBlockingQueue<String>(QUEUE_CAPACITY);
+    }
+
+    /**
+     * Queues an event line for the peer. Never blocks; the event is dropped if the peer is not connected or has fallen
+     * too far behind.
+     *
+     * @param line the event, without a line terminator
+     */
+    public void send(String line){
+        if(connected && !events.offer(line)){
+            LOG.warn("Cluster link to {} is backed up, dropping event", getAddress());
+        }
+    }
+
+    /**
+     * Getter method for the peer's host name
+     *
+     * @return the host part of the peer's cluster address
+     */
+    public String getHost(){
+        return host;
+    }
+
+    /**
+     * Getter method for the peer's address
+     *
+     * @return the peer's cluster address, as host:port
+     */
+    public String getAddress(){
+        return host + ":" + port;
+    }
+
+    /**
+     * The thread method of the link. Connects to the peer, and reconnects whenever the connection is lost.
+     */
+    public void run(){
+        boolean reported = false;
+
+        while(true){
+            Socket socket = new Socket();
+            try{
+                socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+                socket.setTcpNoDelay(true);
+                LOG.info("Cluster link to {} established", getAddress());
+                reported = false;
+                forward(socket);
+            }catch(IOException e){
+                if(connected || !reported){
+                    LOG.warn("Cluster link to {} down: {}", getAddress(), e.getMessage());
+                    reported = true;
+                }
+            }catch(InterruptedException e){
+                return;
+            }finally{
+                connected = false;
+                try{
+                    socket.close();
+                }catch(IOException e){
+                    LOG.warn("Error while closing cluster link");
+                }
+            }
+
+            try{
+                Thread.sleep(RECONNECT_DELAY_MS);
+            }catch(InterruptedException e){
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sends the introduction and the current local usernames, then forwards queued events, or a heartbeat when there
+     * are none, until the connection fails. Events are accepted from the moment the link counts as connected, before
+     * the usernames are read, so a username released while they are being sent is always followed by its release event.
+     *
+     * @param socket the connected socket
+     * @throws IOException if the connection fails
+     * @throws InterruptedException if the link thread is interrupted
+     */
+    private void forward(Socket socket) throws IOException, InterruptedException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), Charset.forName("UTF-8")));
+
+        events.clear();
+        connected = true;
+        out.write(node.helloLine());
+        out.write('\n');
+        for(String claim : node.claimLines()){
+            out.write(claim);
+            out.write('\n');
+        }
+        out.flush();
+
+        while(true){
+            String line = events.poll(HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+            if(line == null){
+                line = HEARTBEAT;
+            }
+            do{
+                out.write(line);
+                out.write('\n');
+            }while((line = events.poll()) != null);
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+/**
+ * The protocol specifications from the Protocol.xml file, loaded once and shared by every connection. The Protocol.xml
+ * file used by the server must be identical to protocol files used by the client.
+ *
+ * A ProtocolConfig never changes after it is loaded. When Protocol.xml changes on disk, the watcher thread started by
+ * watch parses the new file into a new ProtocolConfig and swaps it in atomically, so a handshake always sees a complete
+ * and consistent set of messages, either all old or all new. If the new file cannot be parsed, the current
+ * configuration is kept.
+ */
+public final class ProtocolConfig {
+    static Log LOG = Log.get("server");
+    static String PROTOCOL_FILE = "Protocol.xml";
+    static volatile ProtocolConfig CURRENT = new ProtocolConfig(
+            "Connection accepted.",
+            "Error: Duplicate username.",
+            "Error: Long username.",
+            "Error: Illegal chars in username.",
+            "Error: Server full."
+    );
+
+    private final String connectionAccepted;
+    private final String duplicateUName;
+    private final String longUName;
+    private final String illegalUName;
+    private final String serverFull;
+
+    /**
+     * ProtocolConfig constructor
+     *
+     * @param accepted message sent when a connection is accepted
+     * @param duplicate message sent when the username is already taken
+     * @param tooLong message sent when the username is too long
+     * @param illegal message sent when the username contains illegal characters
+     * @param full message sent when the server or the client's address has no room for another connection
+     */
+    private ProtocolConfig(String accepted, String duplicate, String tooLong, String illegal, String full){
+        connectionAccepted = accepted;
+        duplicateUName = duplicate;
+        longUName = tooLong;
+        illegalUName = illegal;
+        serverFull = full;
+    }
+
+    /**
+     * Get the protocol configuration currently in effect. Callers should read it once per handshake and use that
+     * instance throughout.
+     *
+     * @return the current protocol configuration
+     */
+    public static ProtocolConfig current(){
+        return CURRENT;
+    }
+
+    /**
+     * Reads Protocol.xml and makes it the current configuration. Should be called once at startup, before any client
+     * is accepted.
+     */
+    public static void load(){
+        try{
+            CURRENT = parse(new File(PROTOCOL_FILE));
+        }catch(Exception e){
+            LOG.warn("{} missing or damaged, using default protocol", PROTOCOL_FILE);
+        }
+    }
+
+    /**
+     * Starts a daemon thread that reloads Protocol.xml whenever it is created or modified
+     */
+    public static void watch(){
+        Thread watcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watchProtocolFile();
+            }
+        }, "protocol-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Parses a protocol file
+     *
+     * @param f the protocol file
+     * @return the parsed configuration
+     * @throws Exception if the file is missing or any protocol message is absent, apart from serverFull, which
+     * older protocol files lack and which keeps its default
+     */
+    private static ProtocolConfig parse(File f) throws Exception {
+        DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
+        DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
+        Document doc = dBuilder.parse(f);
+
+        doc.getDocumentElement().normalize();
+
+        return new ProtocolConfig(
+                doc.getElementsByTagName("connectionSuccess").item(0).getTextContent(),
+                doc.getElementsByTagName("duplicateUserName").item(0).getTextContent(),
+                doc.getElementsByTagName("longUserName").item(0).getTextContent(),
+                doc.getElementsByTagName("illegalUserName").item(0).getTextContent(),
+                doc.getElementsByTagName("serverFull").getLength() > 0
+                        ? doc.getElementsByTagName("serverFull").item(0).getTextContent() : CURRENT.serverFull
+        );
+    }
+
+    /**
+     * The thread method of the protocol watcher. Watches the directory containing Protocol.xml, since a WatchService
+     * cannot watch a single file, and reloads on every event that names the protocol file.
+     */
+    private static void watchProtocolFile(){
+        Path file = new File(PROTOCOL_FILE).getAbsoluteFile().toPath();
+        Path directory = file.getParent();
+
+        try{
+            WatchService watchService = FileSystems.getDefault().newWatchService();
+            directory.register(
+                    watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY
+            );
+
+            while(true){
+                WatchKey key = watchService.take();
+                boolean changed = false;
+
+                for(WatchEvent<?> event : key.pollEvents()){
+                    if(event.kind() != StandardWatchEventKinds.OVERFLOW
+                            && file.getFileName().equals(event.context())){
+                        changed = true;
+                    }
+                }
+                if(changed){
+                    reload(file.toFile());
+                }
+
+                if(!key.reset()){
+                    LOG.warn("Protocol directory is no longer accessible, hot reload stopped");
+                    return;
+                }
+            }
+        }catch(IOException e){
+            LOG.warn("Could not watch {}, hot reload disabled", PROTOCOL_FILE);
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Parses the protocol file and swaps it in. A file caught half-written fails to parse and is ignored; the write
+     * that completes it raises another event.
+     *
+     * @param f the protocol file
+     */
+    private static void reload(File f){
+        try{
+            CURRENT = parse(f);
+            LOG.info("Reloaded {}", PROTOCOL_FILE);
+        }catch(Exception e){
+            LOG.warn("{} could not be parsed, keeping current protocol", PROTOCOL_FILE);
+        }
+    }
+
+    /**
+     * @return message sent when a connection is accepted
+     */
+    public String getConnectionAccepted(){
+        return connectionAccepted;
+    }
+
+    /**
+     * @return message sent when the username is already taken
+     */
+    public String getDuplicateUName(){
+        return duplicateUName;
+    }
+
+    /**
+     * @return message sent when the username is too long
+     */
+    public String getLongUName(){
+        return longUName;
+    }
+
+    /**
+     * @return message sent when the username contains illegal characters
+     */
+    public String getIllegalUName(){
+        return illegalUName;
+    }
+
+    /**
+     * @return message sent when the server or the client's address has no room for another connection
+     */
+    public String getServerFull(){
+        return serverFull;
+    }
+}
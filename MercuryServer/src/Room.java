@@ -0,0 +1,120 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A named chat room. Every logged in client is a member of exactly one room, and chat and presence messages are only
+ * sent to the members of the sender's room, so the cost of a message depends on the size of its audience rather than on
+ * the number of clients on the server.
+ *
+ * Like the connection snapshot in ServerState, the member list is an immutable array that is replaced whenever a client
+ * joins or leaves the room. Membership changes are made by ServerState while it holds its snapshot lock; broadcasts
+ * read the current array without locking.
+ *
+ * @see ServerState
+ */
+public class Room {
+    static Log LOG = Log.get("connection");
+    static int NAME_MAX_LENGTH = 24;
+
+    String name;
+    volatile ConnectionBundle[] members;
+
+    /**
+     * Room constructor. New rooms are empty.
+     *
+     * @param n the name of the room
+     */
+    public Room(String n){
+        name = n;
+        members = ServerState.EMPTY;
+    }
+
+    /**
+     * Getter method for the name of the room
+     *
+     * @return the name of the room
+     */
+    public String getName(){
+        return name;
+    }
+
+    /**
+     * Get the current snapshot of the room's members. The returned array is shared and must not be modified.
+     *
+     * @return every member of the room at the time of the call
+     */
+    public ConnectionBundle[] getMembers(){
+        return members;
+    }
+
+    /**
+     * Queues a message for every member of the room. Connections that are dead or too slow are evicted by their own
+     * output rather than here.
+     *
+     * @param message the message to be sent
+     */
+    public void broadCast(Message message){
+        for(ConnectionBundle member : members){
+            try{
+                member.getOutput().write(message);
+            }catch(IOException e){
+                LOG.warn("Detected dead connection, this could be indicative of an error in connection tear down ops");
+            }
+        }
+    }
+
+    /**
+     * Adds a member to the room. Only called by ServerState, with its snapshot lock held.
+     *
+     * @param bundle the client joining the room
+     */
+    void add(ConnectionBundle bundle){
+        ConnectionBundle[] current = members;
+        ConnectionBundle[] next = Arrays.copyOf(current, current.length + 1);
+        next[current.length] = bundle;
+        members = next;
+    }
+
+    /**
+     * Removes a member from the room. Only called by ServerState, with its snapshot lock held.
+     *
+     * @param bundle the client leaving the room
+     * @return true if the room is now empty
+     */
+    boolean remove(ConnectionBundle bundle){
+        ConnectionBundle[] current = members;
+
+        for(int i = 0; i < current.length; i++){
+            if(current[i] == bundle){
+                ConnectionBundle[] next = new ConnectionBundle[current.length - 1];
+                System.arraycopy(current, 0, next, 0, i);
+                System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+                members = next;
+                break;
+            }
+        }
+
+        return members.length == 0;
+    }
+
+    /**
+     * Determines whether a string can be used as a room name. Names are limited to letters, digits, '-' and '_', so they
+     * never contain the whitespace that separates a command from its argument.
+     *
+     * @param s the proposed room name
+     * @return true if the string is a valid room name
+     */
+    static boolean isValidName(String s){
+        if(s.isEmpty() || s.length() > NAME_MAX_LENGTH){
+            return false;
+        }
+
+        for(int i = 0; i < s.length(); i++){
+            char c = s.charAt(i);
+            if(!Character.isLetterOrDigit(c) && c != '-' && c != '_'){
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,534 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A single client connection served by a SelectorLoop. Splits the bytes read from the channel into lines, or into
+ * binary frames once the client has negotiated the frame protocol, feeds them to a ClientController, and acts as that
+ * client's ClientOutput.
+ *
+ * Writes may come from any thread (a broadcast runs on the sender's loop), so outgoing frames are placed in a bounded
+ * OutboundQueue and flushed by the owning loop with gathering writes, several frames per system call. While a client is
+ * receiving a steady stream, flushes are delayed by the batching window so that more frames share each system call (see
+ * OutputBatching). A connection found dead while writing, or whose queue overflows under the 'disconnect' policy, is
+ * closed and evicted.
+ *
+ * Once a client has negotiated compression, its input is inflated before it is split, and each gathering write ends
+ * with the frames compressed since the last one as a single sync-flushed block. The connection's Inflater and
+ * FrameDeflater are only used on the loop thread.
+ *
+ * Input over the client's rate limits is delayed by taking the channel out of read interest: the rest of the input
+ * already read is held, in order, and handed to the controller as tokens become available, and reading resumes once
+ * none is left. Meanwhile the client's unread input fills the socket buffers and its own writes stall.
+ *
+ * @see OutboundQueue
+ * @see SelectorLoop
+ * @see FrameDeflater
+ */
+public class SelectorConnection implements ClientOutput {
+    static Log LOG = Log.get("connection");
+    static int MAX_LINE_LENGTH = 65536;
+    static int MAX_INPUT_LENGTH = Math.max(MAX_LINE_LENGTH, Frame.MAX_FRAME_LENGTH + Frame.HEADER_LENGTH + 8);
+    static byte[] EMPTY_LINE = new byte[0];
+    static int MAX_HELD_LINES = 1024;
+
+    SocketChannel channel;
+    SelectionKey key;
+    SelectorLoop loop;
+    InetAddress address;
+    ClientController controller;
+    OutboundQueue<Frame> writeQueue;
+    ByteBuffer[] unwritten;
+    AtomicBoolean flushScheduled;
+    AtomicBoolean urgentFlushScheduled;
+    AtomicInteger pendingBytes;
+    volatile long lastFlushNanos;
+    Runnable flushTask;
+    Runnable evictTask;
+    Runnable releaseTask;
+    ArrayDeque<String> held;
+    volatile boolean binaryFrames;
+    volatile boolean closing;
+    FrameDeflater compressor;
+    Inflater inflater;
+    boolean loggedIn;
+    boolean frameMode;
+    int frameLength;
+    boolean skipLineFeed;
+    byte[] partialLine;
+    int partialLength;
+
+    /**
+     * SelectorConnection constructor. Must be called on the loop thread.
+     *
+     * @param ch the client channel, already in non-blocking mode
+     * @param k the channel's selection key
+     * @param l the loop that owns the channel
+     * @param state a reference to the global ServerState object
+     */
+    public SelectorConnection(SocketChannel ch, SelectionKey k, SelectorLoop l, ServerState state){
+        channel = ch;
+        key = k;
+        loop = l;
+        address = ch.socket().getInetAddress();
+        writeQueue = new OutboundQueue<Frame>();
+        flushScheduled = new AtomicBoolean(false);
+        urgentFlushScheduled = new AtomicBoolean(false);
+        pendingBytes = new AtomicInteger();
+        //A window in the past, so the first frame is written without waiting
+        lastFlushNanos = System.nanoTime() - OutputBatching.windowNanos();
+        flushTask = new Runnable() {
+            @Override
+            public void run() {
+                flushScheduled.set(false);
+                urgentFlushScheduled.set(false);
+                handleWrite();
+            }
+        };
+        evictTask = new Runnable() {
+            @Override
+            public void run() {
+                if(key.isValid()){
+                    LOG.warn("Outbound queue full, disconnecting slow client {}", controller.userName);
+                    closeNow();
+                }
+            }
+        };
+        releaseTask = new Runnable() {
+            @Override
+            public void run() {
+                releaseHeld();
+            }
+        };
+        controller = new ClientController(this, state);
+    }
+
+    /**
+     * Queues a message to be written to the client, encoded for the client's current wire protocol. The encoding is
+     * chosen here rather than by the writer, so a switch to binary frames never re-encodes a message queued before it.
+     *
+     * @param message the message to be sent
+     * @throws IOException if the connection is closed, or is being evicted because its queue is full
+     */
+    public void write(Message message) throws IOException {
+        if(closing){
+            throw new IOException("Connection closed");
+        }
+
+        Frame frame = binaryFrames ? message.binaryFrame() : message.lineFrame();
+        if(!writeQueue.offer(frame)){
+            closing = true;
+            loop.execute(evictTask);
+            throw new IOException("Outbound queue full, slow client disconnected");
+        }
+        scheduleFlush(pendingBytes.addAndGet(frame.length()));
+    }
+
+    /**
+     * Switches the client to the binary frame protocol
+     */
+    public void useBinaryFrames(){
+        binaryFrames = true;
+    }
+
+    /**
+     * @return the number of frames waiting to be written
+     */
+    public int backlog(){
+        return writeQueue.size();
+    }
+
+    /**
+     * Queues the marker after which the loop compresses everything it writes
+     */
+    public void useCompression(){
+        if(writeQueue.offer(Frame.START_COMPRESSION)){
+            scheduleFlush(pendingBytes.get());
+        }
+    }
+
+    /**
+     * Asks the loop to flush the queue. The first frame after a quiet period is flushed immediately; during a burst the
+     * flush is delayed by the batching window, unless enough bytes are already waiting to fill a batch.
+     *
+     * @param queuedBytes the number of bytes waiting since the last flush
+     */
+    private void scheduleFlush(int queuedBytes){
+        if(flushScheduled.compareAndSet(false, true)){
+            long window = OutputBatching.windowNanos();
+
+            if(System.nanoTime() - lastFlushNanos < window){
+                loop.schedule(flushTask, window);
+            }else{
+                loop.execute(flushTask);
+            }
+        }else if(queuedBytes >= OutputBatching.MAX_BYTES && urgentFlushScheduled.compareAndSet(false, true)){
+            loop.execute(flushTask);
+        }
+    }
+
+    /**
+     * Closes the connection once all queued data has been written
+     */
+    public void close(){
+        closing = true;
+        if(loop.inLoop()){
+            handleWrite();
+        }else{
+            loop.execute(flushTask);
+        }
+    }
+
+    /**
+     * Called by the loop when the channel is readable. Reads whatever is available into the loop's shared buffer,
+     * inflating it if the client negotiated compression, and passes every complete line or frame on to the controller.
+     *
+     * @param buffer the loop's shared read buffer
+     */
+    public void handleRead(ByteBuffer buffer){
+        int count;
+        buffer.clear();
+
+        try{
+            count = channel.read(buffer);
+        }catch(IOException e){
+            LOG.info("Closing {}'s connection", controller.userName);
+            closeNow();
+            return;
+        }
+
+        if(count < 0){
+            LOG.info("Closing {}'s connection", controller.userName);
+            closeNow();
+            return;
+        }
+
+        ServerMetrics.bytesReceived(count);
+        buffer.flip();
+        try{
+            if(inflater == null){
+                consume(buffer);
+                //Compression starts right after the handshake line, possibly in the middle of the buffer
+                if(inflater != null && skipLineFeed && buffer.hasRemaining() && buffer.get(buffer.position()) == '\n'){
+                    buffer.get();
+                    skipLineFeed = false;
+                }
+            }
+            if(inflater != null && buffer.hasRemaining() && !closing){
+                inflate(buffer);
+            }
+        }catch(IOException e){
+            LOG.info("Closing {}'s connection after an I/O error: {}", controller.userName, e.getMessage());
+            closeNow();
+        }
+
+        //Release the accumulator once the connection goes idle so idle clients hold no line buffer
+        if(partialLength == 0){
+            partialLine = null;
+        }
+    }
+
+    /**
+     * Splits input into lines or frames. Stops early if the handshake has just switched the input to compression, so
+     * that the caller can inflate the rest.
+     *
+     * @param bytes the input; compressed input must already have been inflated
+     * @throws IOException if the input is too long, or the client can no longer be written to
+     */
+    private void consume(ByteBuffer bytes) throws IOException {
+        boolean inflated = inflater != null;
+
+        while(bytes.hasRemaining() && !closing && (inflated || inflater == null)){
+            byte b = bytes.get();
+
+            if(skipLineFeed && b == '\n'){
+                skipLineFeed = false;
+                continue;
+            }
+            skipLineFeed = false;
+
+            if(frameMode){
+                onFrameByte(b);
+            }else if(b == '\n' || b == '\r'){
+                skipLineFeed = (b == '\r');
+                String line = new String(partialLine == null ? EMPTY_LINE : partialLine, 0, partialLength,
+                        Charset.defaultCharset());
+                partialLength = 0;
+                onLine(line);
+            }else{
+                appendToLine(b);
+            }
+        }
+    }
+
+    /**
+     * Inflates compressed input through the loop's shared arrays and consumes the result. Every byte read is inflated
+     * straight away, so the Inflater never holds on to the shared input array between reads.
+     *
+     * @param buffer the compressed input
+     * @throws IOException if the input is not valid DEFLATE data or is too long, or the client cannot be written to
+     */
+    private void inflate(ByteBuffer buffer) throws IOException {
+        byte[] input = loop.compressedInput;
+        byte[] output = loop.inflatedInput;
+
+        while(buffer.hasRemaining() && !closing){
+            int count = Math.min(buffer.remaining(), input.length);
+            buffer.get(input, 0, count);
+            inflater.setInput(input, 0, count);
+
+            try{
+                while(!closing && !inflater.needsInput() && !inflater.finished()){
+                    int inflated = inflater.inflate(output);
+                    if(inflated == 0 && inflater.needsDictionary()){
+                        throw new IOException("Unexpected preset dictionary");
+                    }
+                    consume(ByteBuffer.wrap(output, 0, inflated));
+                }
+            }catch(DataFormatException e){
+                throw new IOException("Bad compressed input");
+            }
+        }
+    }
+
+    /**
+     * Called by the loop when the channel is writable, and by the flush task. Gathers read-only views of queued frames
+     * into the loop's gather array and writes them with a single system call, repeating until the queue is empty or the
+     * socket is full. Write interest stays registered only while data remains. Views that were only partly written are
+     * kept aside rather than left in the queue, so the 'dropOldest' policy can never discard a partially written frame.
+     * Once the client uses compression, the frames of each round are compressed into a single block instead, bounded by
+     * the batch size.
+     */
+    public void handleWrite(){
+        if(!key.isValid()){
+            return;
+        }
+
+        ByteBuffer[] gather = loop.gatherBuffers;
+        pendingBytes.set(0);
+        try{
+            while(true){
+                int count = 0;
+                if(unwritten != null){
+                    for(ByteBuffer leftover : unwritten){
+                        gather[count++] = leftover;
+                    }
+                    unwritten = null;
+                }
+
+                Frame next;
+                int frames = 0;
+                int compressedInput = 0;
+                //One slot is kept free for the compressed block
+                while(count < gather.length - 1 && compressedInput < OutputBatching.MAX_BYTES
+                        && (next = writeQueue.poll()) != null){
+                    if(next == Frame.START_COMPRESSION){
+                        compressor = new FrameDeflater();
+                    }else if(compressor != null){
+                        compressor.add(next);
+                        compressedInput += next.length();
+                        frames++;
+                    }else{
+                        gather[count++] = next.buffer();
+                        frames++;
+                    }
+                }
+                if(compressedInput > 0){
+                    gather[count++] = compressor.finishBatchCopy();
+                }
+                if(count == 0){
+                    break;
+                }
+
+                long written = channel.write(gather, 0, count);
+                OutputBatching.record(frames, written);
+                lastFlushNanos = System.nanoTime();
+
+                int first = 0;
+                while(first < count && !gather[first].hasRemaining()){
+                    first++;
+                }
+                if(first < count){
+                    unwritten = Arrays.copyOfRange(gather, first, count);
+                }
+                Arrays.fill(gather, 0, count, null);
+
+                if(unwritten != null){
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+
+            if(closing){
+                closeNow();
+            }
+        }catch(IOException e){
+            LOG.info("Detected dead connection while writing to {}", controller.userName);
+            closeNow();
+        }
+    }
+
+    /**
+     * Passes a complete line to the controller. The first line of a connection is the username handshake.
+     *
+     * @param line the line received from the client
+     * @throws IOException if the client can no longer be written to
+     */
+    private void onLine(String line) throws IOException {
+        if(!loggedIn){
+            loggedIn = controller.login(line);
+            frameMode = loggedIn && controller.usesBinaryFrames();
+            if(loggedIn && controller.usesCompression()){
+                inflater = new Inflater(true);
+            }
+        }else{
+            deliver(line);
+        }
+    }
+
+    /**
+     * Passes a line received after login to the controller, once the client's rate limits admit it. A line that must
+     * wait starts holding input: reads stop, and this line and every line after it is held until releaseHeld has
+     * passed them on.
+     *
+     * @param line the line received from the client
+     * @throws IOException if the client can no longer be written to
+     */
+    private void deliver(String line) throws IOException {
+        if(held != null){
+            if(held.size() < MAX_HELD_LINES){
+                held.add(line);
+            }else{
+                ServerMetrics.inputDropped();
+            }
+            return;
+        }
+
+        long wait = controller.admit(line);
+        if(wait == 0){
+            controller.receive(line);
+        }else if(wait > 0){
+            held = new ArrayDeque<String>();
+            held.add(line);
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            loop.schedule(releaseTask, wait);
+        }
+    }
+
+    /**
+     * Timer task that passes held lines to the controller as the client's rate limits admit them, and resumes reading
+     * once all of them have been passed on
+     */
+    private void releaseHeld(){
+        if(!key.isValid() || held == null){
+            return;
+        }
+
+        try{
+            while(!held.isEmpty() && !closing){
+                long wait = controller.admit(held.peek());
+                if(wait > 0){
+                    loop.schedule(releaseTask, wait);
+                    return;
+                }
+                String line = held.poll();
+                if(wait == 0){
+                    controller.receive(line);
+                }
+            }
+        }catch(IOException e){
+            LOG.info("Closing {}'s connection after an I/O error: {}", controller.userName, e.getMessage());
+            closeNow();
+            return;
+        }
+
+        held = null;
+        if(!closing && key.isValid()){
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Adds a byte to the binary frame currently being assembled. Once the header is complete the total frame length is
+     * known, and once that many bytes have arrived the frame is decoded and passed to the controller as a line.
+     *
+     * @param b the byte to be added
+     * @throws IOException if the frame is too long, or the client can no longer be written to
+     */
+    private void onFrameByte(byte b) throws IOException {
+        appendToLine(b);
+
+        if(partialLength == Frame.HEADER_LENGTH){
+            frameLength = Frame.frameLength(partialLine);
+            if(frameLength < Frame.HEADER_LENGTH || frameLength > MAX_INPUT_LENGTH){
+                throw new IOException("Frame too long");
+            }
+        }
+
+        if(partialLength >= Frame.HEADER_LENGTH && partialLength == frameLength){
+            Message message = Frame.decode(partialLine);
+            partialLength = 0;
+            deliver(message.toLine());
+        }
+    }
+
+    /**
+     * Appends a byte to the line or frame currently being assembled, growing the accumulator as needed
+     *
+     * @param b the byte to be appended
+     * @throws IOException if the input exceeds MAX_LINE_LENGTH, or MAX_INPUT_LENGTH for frames
+     */
+    private void appendToLine(byte b) throws IOException {
+        int limit = frameMode ? MAX_INPUT_LENGTH : MAX_LINE_LENGTH;
+
+        if(partialLine == null){
+            partialLine = new byte[128];
+        }else if(partialLength == partialLine.length){
+            if(partialLength >= limit){
+                throw new IOException("Input too long");
+            }
+            partialLine = Arrays.copyOf(partialLine, Math.min(partialLength * 2, limit));
+        }
+        partialLine[partialLength++] = b;
+    }
+
+    /**
+     * Immediately closes the channel, discarding any queued data, and runs the controller's tear-down operations.
+     * Must be called on the loop thread.
+     */
+    private void closeNow(){
+        closing = true;
+        key.cancel();
+        try{
+            channel.close();
+        }catch(IOException e){
+            LOG.warn("Error while closing client channel");
+        }
+        writeQueue.clear();
+        unwritten = null;
+        held = null;
+        if(compressor != null){
+            compressor.end();
+            compressor = null;
+        }
+        if(inflater != null){
+            inflater.end();
+            inflater = null;
+        }
+        controller.disconnect();
+        if(address != null){
+            AdmissionControl.release(address);
+            address = null;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single event loop thread of the selector engine. Owns one Selector and every SelectorConnection registered with it.
+ * All reads, writes and channel state changes for those connections happen on this thread; other threads hand work to
+ * the loop through execute, which queues the task and wakes the selector, or through schedule, which runs the task
+ * after a delay. Delays are honored with the millisecond precision of Selector.select.
+ *
+ * @see SelectorServer
+ */
+public class SelectorLoop implements Runnable {
+    static Log LOG = Log.get("server");
+    static int READ_BUFFER_SIZE = 8192;
+    static int GATHER_LIMIT = 64;
+
+    Selector selector;
+    ServerState state;
+    ConcurrentLinkedQueue<Runnable> tasks;
+    PriorityQueue<TimedTask> timers;
+    ByteBuffer readBuffer;
+    ByteBuffer[] gatherBuffers;
+    byte[] compressedInput;
+    byte[] inflatedInput;
+    Thread loopThread;
+
+    /**
+     * SelectorLoop constructor
+     *
+     * @param s a reference to the global ServerState object
+     * @throws IOException if the selector cannot be opened
+     */
+    public SelectorLoop(ServerState s) throws IOException {
+        state = s;
+        selector = Selector.open();
+        tasks = new ConcurrentLinkedQueue<Runnable>();
+        timers = new PriorityQueue<TimedTask>();
+        //One read buffer shared by every connection on this loop; only partial lines are copied out per connection
+        readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        //Likewise one gather array for the frames of a single gathering write
+        gatherBuffers = new ByteBuffer[GATHER_LIMIT];
+        //And one pair of arrays for inflating the input of clients that negotiated compression
+        compressedInput = new byte[READ_BUFFER_SIZE];
+        inflatedInput = new byte[READ_BUFFER_SIZE];
+    }
+
+    /**
+     * Sets the thread that runs this loop. Must be called before the thread is started.
+     *
+     * @param t the loop thread
+     */
+    public void setThread(Thread t){
+        loopThread = t;
+    }
+
+    /**
+     * Determines whether the calling thread is this loop's thread
+     *
+     * @return true if called from the loop thread, false otherwise
+     */
+    public boolean inLoop(){
+        return Thread.currentThread() == loopThread;
+    }
+
+    /**
+     * Schedules a task to be run on the loop thread
+     *
+     * @param task the task to be run
+     */
+    public void execute(Runnable task){
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Schedules a task to be run on the loop thread after a delay
+     *
+     * @param task the task to be run
+     * @param delayNanos the delay in nanoseconds
+     */
+    public void schedule(Runnable task, long delayNanos){
+        final TimedTask timed = new TimedTask(System.nanoTime() + delayNanos, task);
+
+        if(inLoop()){
+            timers.add(timed);
+        }else{
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    timers.add(timed);
+                }
+            });
+        }
+    }
+
+    /**
+     * Hands a newly accepted, non-blocking channel to this loop. The channel is registered for reads on the loop thread.
+     *
+     * @param channel the accepted client channel
+     */
+    public void register(final SocketChannel channel){
+        final InetAddress address = channel.socket().getInetAddress();
+
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try{
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new SelectorConnection(channel, key, SelectorLoop.this, state));
+                }catch(ClosedChannelException e){
+                    LOG.info("Client disconnected before registration");
+                    AdmissionControl.release(address);
+                }
+            }
+        });
+    }
+
+    /**
+     * The thread method of the event loop. Waits for ready channels or the next timer, runs queued and due tasks, and
+     * dispatches read and write readiness to the owning SelectorConnection.
+     */
+    public void run(){
+        while(true){
+            try{
+                TimedTask next = timers.peek();
+                if(next == null){
+                    selector.select();
+                }else{
+                    long waitNanos = next.deadline - System.nanoTime();
+                    if(waitNanos <= 0){
+                        selector.selectNow();
+                    }else{
+                        selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos)));
+                    }
+                }
+            }catch(IOException e){
+                LOG.error("Selector failed: {}", e.getMessage());
+                return;
+            }
+
+            Runnable task;
+            while((task = tasks.poll()) != null){
+                task.run();
+            }
+
+            long now = System.nanoTime();
+            while(!timers.isEmpty() && timers.peek().deadline - now <= 0){
+                timers.poll().task.run();
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while(keys.hasNext()){
+                SelectionKey key = keys.next();
+                keys.remove();
+                SelectorConnection connection = (SelectorConnection) key.attachment();
+
+                if(key.isValid() && key.isWritable()){
+                    connection.handleWrite();
+                }
+                if(key.isValid() && key.isReadable()){
+                    connection.handleRead(readBuffer);
+                }
+            }
+        }
+    }
+
+    /**
+     * A task waiting in the timer queue, ordered by deadline
+     */
+    private static class TimedTask implements Comparable<TimedTask> {
+        long deadline;
+        Runnable task;
+
+        TimedTask(long d, Runnable t){
+            deadline = d;
+            task = t;
+        }
+
+        @Override
+        public int compareTo(TimedTask other){
+            return Long.compare(deadline - other.deadline, 0);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking server engine. Connections are accepted on the calling thread and then handed out round-robin to a small,
+ * fixed set of SelectorLoop threads, each of which multiplexes its share of the clients over a single Selector. No thread
+ * is created per connection, so an idle client costs only its socket, its selection key and its ClientController.
+ *
+ * @see SelectorLoop
+ * @see SelectorConnection
+ */
+public class SelectorServer {
+    static Log LOG = Log.get("connection");
+    ServerSocketChannel welcomeChannel;
+    SelectorLoop[] loops;
+    ServerState state;
+    int nextLoop;
+
+    /**
+     * SelectorServer constructor. Opens the welcome channel and starts the event loop threads.
+     *
+     * @param port the port to accept connections on
+     * @param loopCount the number of event loop threads to run
+     * @param s a reference to the global ServerState object
+     * @throws IOException if the welcome channel or a selector cannot be opened
+     */
+    public SelectorServer(int port, int loopCount, ServerState s) throws IOException {
+        state = s;
+        welcomeChannel = ServerSocketChannel.open();
+        welcomeChannel.socket().bind(new InetSocketAddress(port));
+
+        loops = new SelectorLoop[Math.max(1, loopCount)];
+        for(int i = 0; i < loops.length; i++){
+            loops[i] = new SelectorLoop(state);
+            Thread loopThread = new Thread(loops[i], "selector-loop-" + i);
+            loops[i].setThread(loopThread);
+            loopThread.start();
+        }
+    }
+
+    /**
+     * Connection wait loop. Blocks on the welcome channel and registers every accepted connection with the next event
+     * loop, unless AdmissionControl refuses it. Never returns under normal operation.
+     *
+     * @throws IOException if the welcome channel fails
+     */
+    public void serve() throws IOException {
+        while(true){
+            SocketChannel channel = welcomeChannel.accept();
+            LOG.debug("New client attempting connection from {}", channel.socket().getRemoteSocketAddress());
+            ServerMetrics.connectionOpened();
+
+            //Refused while the channel is still blocking, so the refusal is written in full
+            String refusal = AdmissionControl.admit(channel.socket().getInetAddress());
+            if(refusal != null){
+                AdmissionControl.refuse(channel.socket(), refusal);
+                continue;
+            }
+
+            channel.configureBlocking(false);
+            //Writes are already coalesced by OutputBatching, so Nagle's algorithm would only add delay
+            channel.socket().setTcpNoDelay(true);
+            loops[nextLoop].register(channel);
+            nextLoop = (nextLoop + 1) % loops.length;
+        }
+    }
+}
@@ -1,5 +1,18 @@
-import java.lang.reflect.InvocationTargetException;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Defines all commands accessible by the client.
@@ -12,27 +25,72 @@ import java.lang.reflect.Method;
  *     return <function output>
  * }
  *
+ * A command that needs an argument declares a third String parameter, which receives everything after the first space
+ * of the command line (or an empty string if there is none):
+ *
+ * public static String <function name>(ServerState currState, String username, String argument)
+ *
  * Refer to existing command functions for examples of how to correctly implement a command function.
+ *
+ * A command whose work could hold up the thread it runs on, which is an event loop shared with many other clients under
+ * the selector engine, hands the work to another thread and returns REPLY_LATER; that thread then writes the reply to
+ * the client's ClientOutput itself.
+ *
+ * Command functions are discovered once, when the class is loaded, and compiled into a hash-indexed dispatch table of
+ * MethodHandles, so handling a command is a single map lookup. Commands can also be added from outside this class by
+ * passing a Command to the register method.
  */
 public class ServerCommands {
-    static String[] NON_COMMAND_METHODS = {
-            "handle",
-            "wait",
-            "equals",
-            "toString",
-            "hashCode",
-            "getClass",
-            "notify",
-            "notifyAll",
-            "isCommand"
-    };
+
+    /**
+     * A command that can be registered from outside ServerCommands
+     */
+    public interface Command {
+
+        /**
+         * Runs the command
+         *
+         * @param currState a reference to the global server state
+         * @param userName the username of the client that sent the command
+         * @param argument the text following the command name, or an empty string if there is none
+         * @return the text sent back to the client, or null if the command does not accept the argument
+         */
+        String execute(ServerState currState, String userName, String argument);
+    }
+
+    static ConcurrentHashMap<String, Command> COMMANDS = new ConcurrentHashMap<String, Command>();
+    static volatile String HELP_TEXT;
+    static int HISTORY_DEFAULT = 20;
+    static int HISTORY_MAX = 500;
+    static int HISTORY_READERS = 2;
+    static final String REPLY_LATER = "";
+    static Log LOG = Log.get("command");
+
+    static{
+        discoverCommandMethods();
+    }
+
+    /**
+     * Threads that read the history log for >>history, so that disk reads never run on an event loop
+     */
+    static class HistoryReaders {
+        static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(HISTORY_READERS, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task){
+                Thread thread = new Thread(task, "history-reader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
 
     /**
      * The main command method. This method is called whenever a command is received from the client, but it is NOT in
-     * and of itself, a command function (i.e., the client cannot call the 'handle' command). This method examines the
-     * ServerCommands class and attempts to find the function specified by the client. If a function exists that matches
-     * the name specified by the client, that function is called with arguments ServerState and userName. If the
-     * function does not exist, this method returns the null string, which is handled by the clientThread
+     * and of itself, a command function (i.e., the client cannot call the 'handle' command). This method looks up the
+     * command specified by the client in the dispatch table. If a command exists that matches the name specified by the
+     * client, it is called with arguments ServerState, userName and the text after the name. If the command does not
+     * exist, or was given an argument it does not take, this method returns the null string, which is handled by the
+     * clientThread
      *
      * @param inCommand the command passed from the client thread
      * @param currState a reference to the global server state
@@ -41,36 +99,37 @@ public class ServerCommands {
      *          null.
      */
     public static String handle(String inCommand, ServerState currState, String userName){
-        Method[] methods = ServerCommands.class.getMethods();
-
-        for(Method m : methods){
-            if(isCommandMethod(m.getName())){
-
-                if(m.getName().equals(inCommand)){
-                    try{
-                        return m.invoke(new Object(), currState, userName).toString();
-                    }catch(IllegalAccessException e){
-                        System.out.println("Illegal Access Exception");
-                        return null;
-                    }catch(InvocationTargetException e){
-                        System.out.println("Invocation Target Exception");
-                        return null;
-                    }catch(IllegalArgumentException e){
-                        System.out.println(
-                                "The requested command method, '" +
-                                m.getName() +
-                                "' was not implemented correctly. " +
-                                "please check that it takes the correct number and type of arguments"
-                        );
-
-                        return "<<Server Error: command is not functioning properly>>";
-                    }
+        int space = inCommand.indexOf(' ');
+        String name = space < 0 ? inCommand : inCommand.substring(0, space);
+        String argument = space < 0 ? "" : inCommand.substring(space + 1).trim();
+        Command command = COMMANDS.get(name);
 
-                }
-            }
+        if(command == null){
+            ServerMetrics.unknownCommand();
+            return null;
+        }
 
+        long start = System.nanoTime();
+        try{
+            return command.execute(currState, userName, argument);
+        }catch(RuntimeException e){
+            LOG.error("The command '{}' failed: {}", inCommand, e);
+            return "<<Server Error: command is not functioning properly>>";
+        }finally{
+            ServerMetrics.commandHandled(name, System.nanoTime() - start);
         }
-        return null;
+    }
+
+    /**
+     * Adds a command to the dispatch table, or replaces the command already registered under the same name. Allows
+     * commands to be added without editing ServerCommands.
+     *
+     * @param name the name the client uses to call the command (without the '>>' prefix)
+     * @param command the command to be run
+     */
+    public static void register(String name, Command command){
+        COMMANDS.put(name, command);
+        rebuildHelpText();
     }
 
     @SuppressWarnings("unused")
@@ -84,59 +143,327 @@ public class ServerCommands {
 
     @SuppressWarnings("unused")
     /**
-     * Lists all commands available to the client
+     * Lists all commands available to the client. The list is built when the commands change, not on every call.
      */
     public static String help(ServerState currState, String userName){
-        String ret = "Server Commands: " + '\n';
-        Method[] methods = ServerCommands.class.getMethods();
+        return HELP_TEXT;
+    }
+
+    @SuppressWarnings("unused")
+    /**
+     * Returns the standard epoch time (this function can be expanded to print formatted dates, as well)
+     */
+    public static String time(ServerState currState, String userName){
+        return ("Server Time: " + System.currentTimeMillis() +'\n');
+    }
+
+    @SuppressWarnings("unused")
+    /**
+     * Shows how well outbound messages are being coalesced into batches, and compressed for clients that asked for it
+     */
+    public static String batching(ServerState currState, String userName){
+        return "Output Batching:" + '\n' + OutputBatching.describe() + "Compression:" + '\n' + FrameDeflater.describe();
+    }
+
+    @SuppressWarnings("unused")
+    /**
+     * Shows the server's live metrics: connections, message and byte counts and rates, broadcast fan-out and command
+     * latencies, and the outbound backlog
+     */
+    public static String stats(ServerState currState, String userName){
+        return "Server Stats:" + '\n' + ServerMetrics.describe(currState);
+    }
+
+    @SuppressWarnings("unused")
+    /**
+     * Moves the client to another room, creating the room if needed. The old and new rooms are notified.
+     */
+    public static String join(ServerState currState, String userName, String roomName){
+        ConnectionBundle bundle = currState.getConnection(userName);
+
+        if(roomName.isEmpty()){
+            return "<<Usage: >>join <room>>>";
+        }
+        if(!Room.isValidName(roomName)){
+            return "<<Illegal room name: use up to " + Room.NAME_MAX_LENGTH + " letters, digits, '-' or '_'>>";
+        }
+        if(bundle == null){
+            return "<<Server Error: not logged in>>";
+        }
+        if(bundle.getRoom().getName().equals(roomName)){
+            return "<<Already in room " + roomName + ">>";
+        }
+
+        Room previous = currState.joinRoom(bundle, roomName);
+        if(previous == null){
+            return "<<Server Error: not logged in>>";
+        }
+
+        String left = "<<" + userName + " left " + previous.getName() + ">>";
+        String joined = "<<" + userName + " joined " + roomName + ">>";
+        currState.broadCast(previous, new Message(Message.PRESENCE, left));
+        currState.broadCast(bundle.getRoom(), new Message(Message.PRESENCE, joined));
+        return "<<Now chatting in room " + roomName + ">>";
+    }
+
+    @SuppressWarnings("unused")
+    /**
+     * Returns the client to the default room
+     */
+    public static String leave(ServerState currState, String userName){
+        ConnectionBundle bundle = currState.getConnection(userName);
+
+        if(bundle != null && bundle.getRoom().getName().equals(ServerState.DEFAULT_ROOM)){
+            return "<<Not in a room, already in " + ServerState.DEFAULT_ROOM + ">>";
+        }
+        return join(currState, userName, ServerState.DEFAULT_ROOM);
+    }
+
+    @SuppressWarnings("unused")
+    /**
+     * Replays messages sent to the client's room: the last 20, the last n ('>>history 50'), or up to HISTORY_MAX
+     * messages since a time today ('>>history since 14:00') or since a sequence number shown in an earlier replay
+     * ('>>history since #1234'). The argument is checked at once; the log is read, and the replay written, by one of
+     * the HistoryReaders.
+     */
+    public static String history(ServerState currState, String userName, String argument){
+        final HistoryLog log = currState.getHistory();
+        ConnectionBundle bundle = currState.getConnection(userName);
+
+        if(log == null){
+            return "<<History is disabled on this server>>";
+        }
+        if(bundle == null){
+            return "<<Server Error: not logged in>>";
+        }
+
+        final String roomName = bundle.getRoom().getName();
+        final ClientOutput out = bundle.getOutput();
+        final boolean since = argument.startsWith("since ");
+        final String from = since ? argument.substring("since ".length()).trim() : null;
+        final boolean byTime;
+        final long start;
+        final int limit;
+        try{
+            if(since){
+                byTime = !from.startsWith("#");
+                start = byTime ? parseTimeToday(from) : Long.parseLong(from.substring(1));
+                limit = HISTORY_MAX;
+            }else{
+                byTime = false;
+                start = 0;
+                int count = argument.isEmpty() ? HISTORY_DEFAULT : Integer.parseInt(argument);
+                if(count < 1){
+                    throw new IllegalArgumentException("History count must be at least 1");
+                }
+                limit = Math.min(HISTORY_MAX, count);
+            }
+        }catch(IllegalArgumentException e){
+            return "<<Usage: >>history [number of messages], or >>history since <HH:mm or #sequence>>>";
+        }
+
+        HistoryReaders.EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run(){
+                try{
+                    replayHistory(log, out, roomName, since, from, byTime, start, limit);
+                }catch(IOException e){
+                    LOG.info("History replay to {} ended early: {}", userName, e.getMessage());
+                }catch(RuntimeException e){
+                    LOG.error("History replay to {} failed: {}", userName, e);
+                }
+            }
+        });
+        return REPLY_LATER;
+    }
 
-        for(Method m : methods){
-            if(isCommandMethod(m.getName())){
-                ret += ">>" + m.getName() + '\n';
+    /**
+     * Reads the history of a room and writes it to a client, followed by '<<End of history>>'. Run by the
+     * HistoryReaders.
+     *
+     * @param log the history log
+     * @param out the client
+     * @param roomName the room
+     * @param since true to replay since a time or sequence number, false to replay the last limit messages
+     * @param from the time or sequence number as the client gave it, for the reply
+     * @param byTime true if start is a time, false if it is a sequence number
+     * @param start the time or sequence number to replay from
+     * @param limit the largest number of messages to replay
+     * @throws IOException if the client can no longer be written to
+     */
+    private static void replayHistory(HistoryLog log, ClientOutput out, String roomName, boolean since, String from,
+                                      boolean byTime, long start, int limit) throws IOException {
+        List<HistoryRecord> records;
+        String description;
+        try{
+            if(since){
+                records = log.since(roomName, byTime, start, limit);
+                description = records.size() + " messages in " + roomName + " since " + from;
+            }else{
+                records = log.recent(roomName, limit);
+                description = "Last " + records.size() + " messages in " + roomName;
             }
+        }catch(IOException e){
+            LOG.error("History replay failed: {}", e.getMessage());
+            out.writeLine("<<Server Error: history is unavailable>>");
+            return;
         }
 
-        return ret;
+        out.writeLine("<<" + description + ">>");
+        for(HistoryRecord record : records){
+            out.write(record.toReplay());
+        }
+        out.writeLine("<<End of history>>");
     }
 
     @SuppressWarnings("unused")
     /**
-     * Returns the standard epoch time (this function can be expanded to print formatted dates, as well)
+     * Lists all rooms in alphabetical order, with the number of members in each
      */
-    public static String time(ServerState currState, String userName){
-        return ("Server Time: " + System.currentTimeMillis() +'\n');
+    public static String rooms(ServerState currState, String userName){
+        StringBuilder ret = new StringBuilder("Rooms:").append('\n');
+        Map<String, Room> sorted = new TreeMap<String, Room>();
+
+        for(Room room : currState.getRooms()){
+            sorted.put(room.getName(), room);
+        }
+        for(Room room : sorted.values()){
+            ret.append(room.getName()).append(" (").append(room.getMembers().length).append(")").append('\n');
+        }
+        return ret.toString();
     }
 
     @SuppressWarnings("unused")
     /**
-     * Lists all members currently registered in the global server state
+     * Lists all members currently registered in the global server state, followed by the members connected to other
+     * servers of the cluster
      */
     public static String viewMembers(ServerState currState, String userName){
-        String ret = "Active Members:" + '\n';
+        StringBuilder ret = new StringBuilder("Active Members:").append('\n');
         String[] activeUsers = currState.getActiveUsers();
 
         for(String user : activeUsers){
-            ret += user + '\n';
+            ret.append(user).append('\n');
         }
-        return ret;
+        for(String user : currState.getRemoteUsers()){
+            ret.append(user).append('\n');
+        }
+        return ret.toString();
     }
 
     /**
-     * Determines if a string maps to a valid command within the ServerCommands class. Some strings match methods within
-     * this class that are not actually valid command methods, such as 'handle', which refers to the handle method,
-     * which is obviously not a valid command. Also, built in Java methods such as 'wait', 'equals', and 'toString' are
-     * obviously not valid commands.
+     * Converts a time of day to the most recent moment it was that time on the server's clock
      *
-     * @param method the command
-     * @return true if the command maps to a command method, false otherwise
+     * @param hoursMinutes the time of day, as HH:mm
+     * @return today at that time, or yesterday if that is still in the future, in milliseconds since the epoch
+     * @throws IllegalArgumentException if the time is not of the form HH:mm
      */
-    private static boolean isCommandMethod(String method){
-        for(String nonCmd : NON_COMMAND_METHODS){
-            if(method.equals(nonCmd)){
-                return false;
+    private static long parseTimeToday(String hoursMinutes){
+        SimpleDateFormat format = new SimpleDateFormat("HH:mm");
+        format.setLenient(false);
+        Calendar parsed = Calendar.getInstance();
+        Calendar ret = Calendar.getInstance();
+
+        try{
+            parsed.setTime(format.parse(hoursMinutes));
+        }catch(ParseException e){
+            throw new IllegalArgumentException(e);
+        }
+
+        ret.set(Calendar.HOUR_OF_DAY, parsed.get(Calendar.HOUR_OF_DAY));
+        ret.set(Calendar.MINUTE, parsed.get(Calendar.MINUTE));
+        ret.set(Calendar.SECOND, 0);
+        ret.set(Calendar.MILLISECOND, 0);
+        if(ret.getTimeInMillis() > System.currentTimeMillis()){
+            ret.add(Calendar.DAY_OF_MONTH, -1);
+        }
+        return ret.getTimeInMillis();
+    }
+
+    /**
+     * Finds every command function declared in this class and adds it to the dispatch table. A method is a command
+     * function if it is public and static, returns a String, and takes a ServerState and a String, optionally followed
+     * by a String argument. Each one is compiled to a MethodHandle here so that no reflection happens when a command is
+     * handled.
+     */
+    private static void discoverCommandMethods(){
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+
+        for(Method m : ServerCommands.class.getDeclaredMethods()){
+            if(!isCommandMethod(m)){
+                continue;
+            }
+
+            try{
+                boolean takesArgument = m.getParameterTypes().length == 3;
+                COMMANDS.put(m.getName(), new MethodHandleCommand(lookup.unreflect(m), takesArgument));
+            }catch(IllegalAccessException e){
+                LOG.error("Cannot register command {}: {}", m.getName(), e.getMessage());
+            }
+        }
+
+        rebuildHelpText();
+    }
+
+    /**
+     * Determines if a method of this class is a valid command function. Helper methods such as 'handle' and 'register'
+     * do not have the command signature, so they are never exposed to the client.
+     *
+     * @param m the method
+     * @return true if the method is a command function, false otherwise
+     */
+    private static boolean isCommandMethod(Method m){
+        Class<?>[] params = m.getParameterTypes();
+
+        return Modifier.isPublic(m.getModifiers())
+                && Modifier.isStatic(m.getModifiers())
+                && m.getReturnType() == String.class
+                && (params.length == 2 || (params.length == 3 && params[2] == String.class))
+                && params[0] == ServerState.class
+                && params[1] == String.class;
+    }
+
+    /**
+     * Rebuilds the cached output of the help command from the dispatch table, in alphabetical order
+     */
+    private static synchronized void rebuildHelpText(){
+        StringBuilder ret = new StringBuilder("Server Commands: ").append('\n');
+        Map<String, Command> sorted = new TreeMap<String, Command>(COMMANDS);
+
+        for(String name : sorted.keySet()){
+            ret.append(">>").append(name).append('\n');
+        }
+
+        HELP_TEXT = ret.toString();
+    }
+
+    /**
+     * Adapts a command function found by discoverCommandMethods to the Command interface. Functions without an argument
+     * parameter have one added that is ignored, and refuse to run when the client passes an argument anyway.
+     */
+    private static class MethodHandleCommand implements Command {
+        MethodHandle handle;
+        boolean takesArgument;
+
+        MethodHandleCommand(MethodHandle h, boolean arg){
+            handle = arg ? h : MethodHandles.dropArguments(h, 2, String.class);
+            takesArgument = arg;
+        }
+
+        @Override
+        public String execute(ServerState currState, String userName, String argument){
+            if(!takesArgument && !argument.isEmpty()){
+                return null;
+            }
+
+            try{
+                return (String) handle.invokeExact(currState, userName, argument);
+            }catch(RuntimeException e){
+                throw e;
+            }catch(Throwable e){
+                throw new RuntimeException(e);
             }
         }
-        return true;
     }
 
 }
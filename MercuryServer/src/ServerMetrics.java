@@ -0,0 +1,452 @@
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+
+/**
+ * Live counters and histograms describing what the server is doing, shown by the >>stats command and exposed over JMX
+ * as a ServerMetricsMXBean. Together with the counters kept by OutputBatching and FrameDeflater, they cover:
+ *
+ * - connections opened, logins accepted, sessions resumed and handshakes refused, by reason
+ * - messages and bytes received and sent, with per-second rates
+ * - how long a broadcast takes to fan out to the outbound queues of every member of its room
+ * - how often each command is run and how long commands take
+ * - how often client input is delayed or dropped by the rate limits of AdmissionControl
+ * - the outbound backlog of every connection, read from the connections when asked for
+ *
+ * Recording takes no lock and allocates nothing on the message path: every counter is a LongAdder, which stripes
+ * concurrent increments over separate cells, and histograms are arrays of LongAdders. The per-second rates are
+ * computed by a sampler thread that reads the totals once a second, so nothing on the message path keeps time.
+ *
+ * @see Histogram
+ * @see OutputBatching
+ * @see FrameDeflater
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+    static Log LOG = Log.get("server");
+    static int RATE_WINDOW_SECONDS = 10;
+    static int BACKLOG_TOP = 5;
+
+    static LongAdder CONNECTIONS_OPENED = new LongAdder();
+    static LongAdder LOGINS_ACCEPTED = new LongAdder();
+    static LongAdder SESSIONS_RESUMED = new LongAdder();
+    static ConcurrentHashMap<String, LongAdder> REJECTED = new ConcurrentHashMap<String, LongAdder>();
+    static LongAdder MESSAGES_IN = new LongAdder();
+    static LongAdder BYTES_IN = new LongAdder();
+    static LongAdder UNKNOWN_COMMANDS = new LongAdder();
+    static LongAdder INPUT_DELAYED = new LongAdder();
+    static LongAdder INPUT_DROPPED = new LongAdder();
+    static Histogram FAN_OUT = new Histogram();
+    static Histogram COMMAND_LATENCY = new Histogram();
+    static ConcurrentHashMap<String, CommandStats> COMMANDS = new ConcurrentHashMap<String, CommandStats>();
+
+    //Written only by the sampler thread
+    static long[] sampleTimes = new long[RATE_WINDOW_SECONDS + 1];
+    static long[] inSamples = new long[RATE_WINDOW_SECONDS + 1];
+    static long[] outSamples = new long[RATE_WINDOW_SECONDS + 1];
+    static int sampleCount;
+    static volatile double inRate;
+    static volatile double outRate;
+
+    ServerState state;
+
+    /**
+     * ServerMetrics constructor. The instance only serves JMX; the metrics themselves are shared by the whole server.
+     *
+     * @param s the global server state, whose connections are asked for their backlog
+     */
+    public ServerMetrics(ServerState s){
+        state = s;
+    }
+
+    /**
+     * Starts the rate sampler and registers the metrics with the platform MBean server
+     *
+     * @param state the global server state
+     */
+    public static void start(ServerState state){
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "metrics-sampler");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        sampler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                sample();
+            }
+        }, 0, 1, TimeUnit.SECONDS);
+
+        try{
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new ServerMetrics(state),
+                    new ObjectName("MercuryServer:type=ServerMetrics"));
+        }catch(Exception e){
+            LOG.warn("Could not register metrics with JMX: {}", e);
+        }
+    }
+
+    /**
+     * Records a connection accepted on the welcome socket, before its handshake
+     */
+    public static void connectionOpened(){
+        CONNECTIONS_OPENED.increment();
+    }
+
+    /**
+     * Records a successful login
+     */
+    public static void loginAccepted(){
+        LOGINS_ACCEPTED.increment();
+    }
+
+    /**
+     * Records a resumed session
+     */
+    public static void sessionResumed(){
+        SESSIONS_RESUMED.increment();
+    }
+
+    /**
+     * Records a refused handshake
+     *
+     * @param reason a short name for the reason, such as 'duplicateUsername'
+     */
+    public static void connectionRejected(String reason){
+        LongAdder count = REJECTED.get(reason);
+        if(count == null){
+            REJECTED.putIfAbsent(reason, new LongAdder());
+            count = REJECTED.get(reason);
+        }
+        count.increment();
+    }
+
+    /**
+     * Records a message received from a client
+     */
+    public static void messageReceived(){
+        MESSAGES_IN.increment();
+    }
+
+    /**
+     * Records bytes read from a client's socket
+     *
+     * @param bytes the number of bytes read
+     */
+    public static void bytesReceived(long bytes){
+        BYTES_IN.add(bytes);
+    }
+
+    /**
+     * Records how long a broadcast took to reach the outbound queue of every member of its room
+     *
+     * @param nanos the duration in nanoseconds
+     */
+    public static void fanOut(long nanos){
+        FAN_OUT.record(nanos);
+    }
+
+    /**
+     * Records a command run by ServerCommands
+     *
+     * @param name the name of the command, which must be a registered command so the table stays bounded
+     * @param nanos how long the command took, in nanoseconds
+     */
+    public static void commandHandled(String name, long nanos){
+        CommandStats stats = COMMANDS.get(name);
+        if(stats == null){
+            COMMANDS.putIfAbsent(name, new CommandStats());
+            stats = COMMANDS.get(name);
+        }
+        stats.count.increment();
+        stats.nanos.add(nanos);
+        COMMAND_LATENCY.record(nanos);
+    }
+
+    /**
+     * Records a command that does not exist
+     */
+    public static void unknownCommand(){
+        UNKNOWN_COMMANDS.increment();
+    }
+
+    /**
+     * Records a line of client input held back because the client's rate limit was exceeded
+     */
+    public static void inputDelayed(){
+        INPUT_DELAYED.increment();
+    }
+
+    /**
+     * Records a line of client input dropped because the client's rate limit was exceeded
+     */
+    public static void inputDropped(){
+        INPUT_DROPPED.increment();
+    }
+
+    /**
+     * Describes every metric, for the >>stats command
+     *
+     * @param state the global server state
+     * @return a human readable summary of the metrics
+     */
+    public static String describe(ServerState state){
+        ServerMetrics metrics = new ServerMetrics(state);
+        StringBuilder ret = new StringBuilder();
+
+        ret.append("Connections opened: ").append(CONNECTIONS_OPENED.sum()).append('\n');
+        ret.append("Logins accepted: ").append(LOGINS_ACCEPTED.sum()).append('\n');
+        ret.append("Sessions resumed: ").append(SESSIONS_RESUMED.sum()).append('\n');
+        ret.append("Connections rejected: ").append(join(metrics.getConnectionsRejected())).append('\n');
+        ret.append("Active connections: ").append(metrics.getActiveConnections()).append('\n');
+        ret.append("Open connections: ").append(AdmissionControl.openConnections()).append('\n');
+        ret.append(String.format("Messages in: %d (%.1f/s)", MESSAGES_IN.sum(), inRate)).append('\n');
+        ret.append(String.format("Messages out: %d (%.1f/s)", OutputBatching.FRAMES_WRITTEN.sum(), outRate))
+                .append('\n');
+        ret.append("Bytes in: ").append(BYTES_IN.sum()).append('\n');
+        ret.append("Bytes out: ").append(OutputBatching.BYTES_WRITTEN.sum()).append('\n');
+        ret.append("Broadcast fan-out: ").append(FAN_OUT.describe()).append('\n');
+        ret.append("Commands: ").append(COMMAND_LATENCY.describe()).append('\n');
+        for(Map.Entry<String, CommandStats> entry : new TreeMap<String, CommandStats>(COMMANDS).entrySet()){
+            CommandStats stats = entry.getValue();
+            long count = stats.count.sum();
+            ret.append(String.format("  %s: %d (mean %.1f us)", entry.getKey(), count,
+                    count == 0 ? 0 : stats.nanos.sum() / 1000.0 / count)).append('\n');
+        }
+        ret.append("Unknown commands: ").append(UNKNOWN_COMMANDS.sum()).append('\n');
+        ret.append("Rate limited input: ").append(INPUT_DELAYED.sum()).append(" delayed, ").append(INPUT_DROPPED.sum())
+                .append(" dropped").append('\n');
+        ret.append(describeBacklog(state)).append('\n');
+        return ret.toString();
+    }
+
+    /**
+     * Sums the outbound backlog of every connection and finds the largest ones
+     *
+     * @param state the global server state
+     * @return a single line naming the total and the largest backlogs
+     */
+    private static String describeBacklog(ServerState state){
+        ConnectionBundle[] connections = state.getActiveConnections();
+        int[] backlogs = new int[connections.length];
+        long total = 0;
+        for(int i = 0; i < connections.length; i++){
+            backlogs[i] = connections[i].getOutput().backlog();
+            total += backlogs[i];
+        }
+
+        StringBuilder ret = new StringBuilder("Outbound backlog: ").append(total);
+        for(int top = 0; top < BACKLOG_TOP; top++){
+            int largest = -1;
+            for(int i = 0; i < backlogs.length; i++){
+                if(backlogs[i] > 0 && (largest < 0 || backlogs[i] > backlogs[largest])){
+                    largest = i;
+                }
+            }
+            if(largest < 0){
+                break;
+            }
+            ret.append(top == 0 ? ", largest " : ", ").append(connections[largest].getUserName()).append('=')
+                    .append(backlogs[largest]);
+            backlogs[largest] = 0;
+        }
+        return ret.toString();
+    }
+
+    /**
+     * Joins a map as name=value pairs
+     *
+     * @param map the map
+     * @return the pairs, separated by commas, or 'none' if the map is empty
+     */
+    private static String join(Map<String, Long> map){
+        if(map.isEmpty()){
+            return "none";
+        }
+        StringBuilder ret = new StringBuilder();
+        for(Map.Entry<String, Long> entry : map.entrySet()){
+            ret.append(ret.length() == 0 ? "" : ", ").append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        return ret.toString();
+    }
+
+    /**
+     * Takes a sample of the message totals and updates the rates over the last RATE_WINDOW_SECONDS. Only called by the
+     * sampler thread.
+     */
+    private static void sample(){
+        int slot = sampleCount % sampleTimes.length;
+        sampleTimes[slot] = System.nanoTime();
+        inSamples[slot] = MESSAGES_IN.sum();
+        outSamples[slot] = OutputBatching.FRAMES_WRITTEN.sum();
+        sampleCount++;
+
+        int oldest = sampleCount <= sampleTimes.length ? 0 : sampleCount % sampleTimes.length;
+        double seconds = (sampleTimes[slot] - sampleTimes[oldest]) / 1e9;
+        if(seconds > 0){
+            inRate = (inSamples[slot] - inSamples[oldest]) / seconds;
+            outRate = (outSamples[slot] - outSamples[oldest]) / seconds;
+        }
+    }
+
+    @Override
+    public long getConnectionsOpened(){
+        return CONNECTIONS_OPENED.sum();
+    }
+
+    @Override
+    public long getLoginsAccepted(){
+        return LOGINS_ACCEPTED.sum();
+    }
+
+    @Override
+    public long getSessionsResumed(){
+        return SESSIONS_RESUMED.sum();
+    }
+
+    @Override
+    public Map<String, Long> getConnectionsRejected(){
+        Map<String, Long> ret = new TreeMap<String, Long>();
+        for(Map.Entry<String, LongAdder> entry : REJECTED.entrySet()){
+            ret.put(entry.getKey(), entry.getValue().sum());
+        }
+        return ret;
+    }
+
+    @Override
+    public int getActiveConnections(){
+        return state.getActiveConnections().length;
+    }
+
+    @Override
+    public long getMessagesIn(){
+        return MESSAGES_IN.sum();
+    }
+
+    @Override
+    public long getMessagesOut(){
+        return OutputBatching.FRAMES_WRITTEN.sum();
+    }
+
+    @Override
+    public double getMessagesInPerSecond(){
+        return inRate;
+    }
+
+    @Override
+    public double getMessagesOutPerSecond(){
+        return outRate;
+    }
+
+    @Override
+    public long getBytesIn(){
+        return BYTES_IN.sum();
+    }
+
+    @Override
+    public long getBytesOut(){
+        return OutputBatching.BYTES_WRITTEN.sum();
+    }
+
+    @Override
+    public long getFanOutCount(){
+        return FAN_OUT.count();
+    }
+
+    @Override
+    public double getFanOutMeanMicros(){
+        return FAN_OUT.mean() / 1000;
+    }
+
+    @Override
+    public double getFanOutP50Micros(){
+        return FAN_OUT.percentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getFanOutP99Micros(){
+        return FAN_OUT.percentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getFanOutP999Micros(){
+        return FAN_OUT.percentile(99.9) / 1000.0;
+    }
+
+    @Override
+    public double getFanOutMaxMicros(){
+        return FAN_OUT.max() / 1000.0;
+    }
+
+    @Override
+    public Map<String, Long> getCommandInvocations(){
+        Map<String, Long> ret = new TreeMap<String, Long>();
+        for(Map.Entry<String, CommandStats> entry : COMMANDS.entrySet()){
+            ret.put(entry.getKey(), entry.getValue().count.sum());
+        }
+        return ret;
+    }
+
+    @Override
+    public Map<String, Double> getCommandMeanMicros(){
+        Map<String, Double> ret = new TreeMap<String, Double>();
+        for(Map.Entry<String, CommandStats> entry : COMMANDS.entrySet()){
+            long count = entry.getValue().count.sum();
+            ret.put(entry.getKey(), count == 0 ? 0 : entry.getValue().nanos.sum() / 1000.0 / count);
+        }
+        return ret;
+    }
+
+    @Override
+    public double getCommandP99Micros(){
+        return COMMAND_LATENCY.percentile(99) / 1000.0;
+    }
+
+    @Override
+    public long getUnknownCommands(){
+        return UNKNOWN_COMMANDS.sum();
+    }
+
+    @Override
+    public int getOpenConnections(){
+        return AdmissionControl.openConnections();
+    }
+
+    @Override
+    public long getInputDelayed(){
+        return INPUT_DELAYED.sum();
+    }
+
+    @Override
+    public long getInputDropped(){
+        return INPUT_DROPPED.sum();
+    }
+
+    @Override
+    public Map<String, Integer> getOutboundBacklog(){
+        Map<String, Integer> ret = new TreeMap<String, Integer>();
+        for(ConnectionBundle connection : state.getActiveConnections()){
+            int backlog = connection.getOutput().backlog();
+            if(backlog > 0){
+                ret.put(connection.getUserName(), backlog);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Invocation count and total running time of a single command
+     */
+    static class CommandStats {
+        LongAdder count = new LongAdder();
+        LongAdder nanos = new LongAdder();
+    }
+}
@@ -0,0 +1,82 @@
+import java.util.Map;
+
+/**
+ * The server metrics as exposed over JMX, under the name MercuryServer:type=ServerMetrics. Durations are in
+ * microseconds and rates are per second, averaged over the last few seconds.
+ *
+ * @see ServerMetrics
+ */
+public interface ServerMetricsMXBean {
+
+    long getConnectionsOpened();
+
+    long getLoginsAccepted();
+
+    long getSessionsResumed();
+
+    /**
+     * @return the number of refused handshakes, by reason
+     */
+    Map<String, Long> getConnectionsRejected();
+
+    int getActiveConnections();
+
+    /**
+     * @return the number of open connections counted against the connection limit, including those still in their
+     * handshake
+     */
+    int getOpenConnections();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    double getMessagesInPerSecond();
+
+    double getMessagesOutPerSecond();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getFanOutCount();
+
+    double getFanOutMeanMicros();
+
+    double getFanOutP50Micros();
+
+    double getFanOutP99Micros();
+
+    double getFanOutP999Micros();
+
+    double getFanOutMaxMicros();
+
+    /**
+     * @return the number of times each command has been run
+     */
+    Map<String, Long> getCommandInvocations();
+
+    /**
+     * @return the mean running time of each command
+     */
+    Map<String, Double> getCommandMeanMicros();
+
+    double getCommandP99Micros();
+
+    long getUnknownCommands();
+
+    /**
+     * @return the number of times client input was held back by a rate limit
+     */
+    long getInputDelayed();
+
+    /**
+     * @return the number of lines of client input dropped by a rate limit
+     */
+    long getInputDropped();
+
+    /**
+     * @return the number of messages waiting to be written, for every client that has any waiting
+     */
+    Map<String, Integer> getOutboundBacklog();
+}
@@ -1,13 +1,55 @@
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.net.Socket;
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * The global server state object
+ * The global server state object. Clients are indexed by username in a ConcurrentHashMap, which gives O(1) lookup and
+ * removal and an atomic check-and-register for new usernames. Alongside the index, the server state keeps an immutable
+ * snapshot array of all connections, rebuilt whenever a client joins or leaves. Broadcasts iterate the current snapshot
+ * directly, so sending a message takes no lock and allocates nothing, at the cost of an O(n) copy on every join and
+ * leave, which are far rarer than messages.
+ *
+ * Clients are also grouped into rooms. A second index maps room names to Room objects, each with its own member
+ * snapshot, so a chat message only fans out to the members of the sender's room. Every client starts in DEFAULT_ROOM,
+ * and rooms other than the default are created on first join and removed when their last member leaves.
+ *
+ * When the server is part of a cluster, the server state also tracks the usernames held by users on the other nodes,
+ * so that usernames stay unique across the cluster, and broadcasts to a room are relayed to the same room on every
+ * peer. Username claims, local and remote, are decided under a single lock, so a local login and a remote claim for the
+ * same name are always settled one after the other.
+ *
+ * Every broadcast, local or relayed from a peer, is also appended to the history log, if one is configured.
+ *
+ * Clients with a resumable Session are indexed by session token as well. When such a client's connection is lost, it
+ * keeps its username and its room for the grace window, and is only removed if it has not resumed by then.
+ *
+ * No object monitors are used, so client threads running on virtual threads are never pinned here.
+ *
+ * @see ClusterNode
+ * @see HistoryLog
+ * @see Session
  */
 public class ServerState {
-    Vector<ConnectionBundle> connectionList;
+    static ConnectionBundle[] EMPTY = new ConnectionBundle[0];
+    static String DEFAULT_ROOM = "lobby";
+
+    ConcurrentHashMap<String, ConnectionBundle> connectionsByName;
+    ConcurrentHashMap<String, Room> rooms;
+    ConcurrentHashMap<String, RemoteClaim> remoteUsers;
+    ReentrantLock claimLock;
+    ConcurrentHashMap<String, ConnectionBundle> sessions;
+    ScheduledExecutorService sessionExpiry;
+    volatile ClusterNode cluster;
+    volatile HistoryLog history;
+    volatile ConnectionBundle[] connectionSnapshot;
+    ReentrantLock snapshotLock;
     int clientCount;
 
     /**
@@ -16,38 +58,273 @@ public class ServerState {
      * @param maxConnections the maximum number of allowable connections on the server
      */
     public ServerState(int maxConnections){
-        connectionList = new Vector<ConnectionBundle>(maxConnections);
+        connectionsByName = new ConcurrentHashMap<String, ConnectionBundle>(Math.max(16, maxConnections));
+        connectionSnapshot = EMPTY;
+        snapshotLock = new ReentrantLock();
         clientCount = 0;
+        rooms = new ConcurrentHashMap<String, Room>();
+        rooms.put(DEFAULT_ROOM, new Room(DEFAULT_ROOM));
+        remoteUsers = new ConcurrentHashMap<String, RemoteClaim>();
+        claimLock = new ReentrantLock();
+        sessions = new ConcurrentHashMap<String, ConnectionBundle>();
+        sessionExpiry = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "session-expiry");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Connects the server state to a cluster. Should be called once at startup, before any client is accepted.
+     *
+     * @param node the local cluster node
+     */
+    public void setCluster(ClusterNode node){
+        cluster = node;
+    }
+
+    /**
+     * Connects the server state to a history log. Should be called once at startup, before any client is accepted.
+     *
+     * @param log the history log
+     */
+    public void setHistory(HistoryLog log){
+        history = log;
+    }
+
+    /**
+     * Getter method for the history log
+     *
+     * @return the history log, or null if history is disabled
+     */
+    public HistoryLog getHistory(){
+        return history;
     }
 
     /**
-     * Add a client to the server state object's internal list of clients
+     * Atomically registers a client under a username. If another client already holds the username, on this server or
+     * on a known peer, nothing is registered, so two clients racing for the same name can never both succeed. The new
+     * client does not receive broadcasts until it is passed to activateClient.
      *
-     * @param conn client connection socket
+     * @param out output to the client
      * @param uName client's username
-     * @throws IOException
+     * @return the new client's ConnectionBundle, or null if the username is already taken
+     */
+    public ConnectionBundle registerClient(ClientOutput out, String uName){
+        ConnectionBundle bundle = new ConnectionBundle(uName, out);
+
+        claimLock.lock();
+        try{
+            if(remoteUsers.containsKey(uName) || connectionsByName.putIfAbsent(uName, bundle) != null){
+                return null;
+            }
+
+            ClusterNode node = cluster;
+            if(node != null){
+                node.claimed(bundle);
+            }
+        }finally{
+            claimLock.unlock();
+        }
+
+        return bundle;
+    }
+
+    /**
+     * Adds a registered client to the connection snapshot and to the default room, so that it starts receiving
+     * broadcasts
+     *
+     * @param bundle the ConnectionBundle returned when the client was registered
+     */
+    public void activateClient(ConnectionBundle bundle){
+        snapshotLock.lock();
+        try{
+            bundle.active = true;
+            bundle.room = rooms.get(DEFAULT_ROOM);
+            bundle.room.add(bundle);
+            rebuildSnapshot();
+        }finally{
+            snapshotLock.unlock();
+        }
+    }
+
+    /**
+     * Makes a registered client's session resumable under its token
+     *
+     * @param bundle the ConnectionBundle returned when the client was registered with the session as its output
+     * @param session the client's session
      */
-    public void appendClient(Socket conn, String uName) throws IOException {
-        connectionList.add(
-                new ConnectionBundle(conn, uName, new DataOutputStream(conn.getOutputStream()))
-        );
+    public void openSession(ConnectionBundle bundle, Session session){
+        bundle.session = session;
+        sessions.put(session.getToken(), bundle);
+    }
 
-        clientCount++;
+    /**
+     * Look up the client holding a session, for a client that wants to resume it
+     *
+     * @param token the session token presented by the client
+     * @param userName the username presented by the client, which must match the session's
+     * @return the client holding the session, or null if the token is unknown, has expired or belongs to another user
+     */
+    public ConnectionBundle findSession(String token, String userName){
+        ConnectionBundle bundle = sessions.get(token);
+        if(bundle == null || !bundle.getUserName().equals(userName) || connectionsByName.get(userName) != bundle){
+            return null;
+        }
+        return bundle;
     }
 
     /**
-     * Get all output streams to all clients
+     * Holds a client's place after its connection was lost, if the client has a resumable session. The session is
+     * detached from the lost connection, and if it is still detached when the grace window has passed, it expires and
+     * the expiry handler is run to remove the client.
      *
-     * @return a list of output streams to clients
+     * @param bundle the client whose connection was lost
+     * @param out the output to the lost connection
+     * @param onExpiry run once if the session expires
+     * @return true if the client's removal is deferred, or was made unnecessary by a resume on a newer connection;
+     *          false if the client has no session to hold and should be removed now
      */
-    public DataOutputStream[] getActiveOutputStreams(){
-        DataOutputStream[] ret = new DataOutputStream[connectionList.size()];
+    public boolean suspendSession(ConnectionBundle bundle, ClientOutput out, final Runnable onExpiry){
+        final Session session = bundle.getSession();
+        if(session == null || session.isEnded()){
+            return false;
+        }
 
-        for(int i = 0; i < connectionList.size(); i++){
-            ret[i] = connectionList.elementAt(i).getOutputStream();
+        final int detach = session.detach(out);
+        if(detach > 0){
+            sessionExpiry.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if(session.expire(detach)){
+                        onExpiry.run();
+                    }
+                }
+            }, Session.GRACE_MILLIS, TimeUnit.MILLISECONDS);
         }
+        return true;
+    }
 
-        return ret;
+    /**
+     * Moves an active client from its current room to another, creating the room if it does not exist yet. The room
+     * the client leaves is removed if it is now empty, unless it is the default room.
+     *
+     * @param bundle the client changing rooms
+     * @param roomName the name of the room to be joined
+     * @return the room the client left, or null if the client is no longer connected
+     */
+    public Room joinRoom(ConnectionBundle bundle, String roomName){
+        snapshotLock.lock();
+        try{
+            if(!bundle.isActive()){
+                return null;
+            }
+
+            Room previous = bundle.room;
+            Room next = rooms.get(roomName);
+            if(next == null){
+                next = new Room(roomName);
+                rooms.put(roomName, next);
+            }
+
+            leaveRoom(bundle);
+            next.add(bundle);
+            bundle.room = next;
+            return previous;
+        }finally{
+            snapshotLock.unlock();
+        }
+    }
+
+    /**
+     * Look up a room by name
+     *
+     * @param roomName the name of the room
+     * @return the room, or null if no room has that name
+     */
+    public Room getRoom(String roomName){
+        return rooms.get(roomName);
+    }
+
+    /**
+     * Get all rooms that currently exist, in no particular order
+     *
+     * @return the rooms
+     */
+    public Room[] getRooms(){
+        return rooms.values().toArray(new Room[0]);
+    }
+
+    /**
+     * Get the current snapshot of all client connections. The returned array is shared and must not be modified; it is
+     * replaced, never changed, when clients join or leave.
+     *
+     * @return every registered connection at the time of the call
+     */
+    public ConnectionBundle[] getActiveConnections(){
+        return connectionSnapshot;
+    }
+
+    /**
+     * Look up a client by username
+     *
+     * @param userName the username to be looked up
+     * @return the client's ConnectionBundle, or null if no client has that username
+     */
+    public ConnectionBundle getConnection(String userName){
+        return connectionsByName.get(userName);
+    }
+
+    /**
+     * Queues a message for every member of a room, on this server and, in a cluster, on every peer, and records it in
+     * the history log
+     *
+     * @param room the room
+     * @param message the message to be sent
+     */
+    public void broadCast(Room room, Message message){
+        long start = System.nanoTime();
+        room.broadCast(message);
+        ServerMetrics.fanOut(System.nanoTime() - start);
+        record(room.getName(), message);
+
+        ClusterNode node = cluster;
+        if(node != null){
+            node.relay(room.getName(), message);
+        }
+    }
+
+    /**
+     * Queues a message relayed by a peer for the local members of a room, and records it in the history log. The
+     * message is recorded even if nobody on this server is in the room, so it can be replayed to later arrivals.
+     *
+     * @param roomName the name of the room
+     * @param message the message to be sent
+     */
+    public void deliverRelayed(String roomName, Message message){
+        Room room = rooms.get(roomName);
+        if(room != null){
+            long start = System.nanoTime();
+            room.broadCast(message);
+            ServerMetrics.fanOut(System.nanoTime() - start);
+        }
+        record(roomName, message);
+    }
+
+    /**
+     * Appends a broadcast to the history log, if there is one
+     *
+     * @param roomName the name of the room the message was sent to
+     * @param message the message
+     */
+    private void record(String roomName, Message message){
+        HistoryLog log = history;
+        if(log != null){
+            log.append(roomName, message);
+        }
     }
 
     /**
@@ -56,25 +333,258 @@ public class ServerState {
      * @return a list of user names
      */
     public String[] getActiveUsers(){
-        String[] ret = new String[connectionList.size()];
+        ConnectionBundle[] snapshot = connectionSnapshot;
+        String[] ret = new String[snapshot.length];
 
-        for(int i = 0; i < connectionList.size(); i++){
-            ret[i] = connectionList.elementAt(i).getUserName();
+        for(int i = 0; i < snapshot.length; i++){
+            ret[i] = snapshot[i].getUserName();
         }
 
         return ret;
     }
 
     /**
-     * Remove a client from the server state object's internal list of clients
+     * Remove a specific connection from the server state. Unlike removeUser, this cannot remove a newer client that
+     * has since logged in with the same username.
+     *
+     * @param bundle the ConnectionBundle returned when the client was registered
+     */
+    public void removeClient(ConnectionBundle bundle){
+        boolean removed;
+
+        claimLock.lock();
+        try{
+            removed = connectionsByName.remove(bundle.getUserName(), bundle);
+            if(removed){
+                released(bundle.getUserName());
+            }
+        }finally{
+            claimLock.unlock();
+        }
+
+        if(removed){
+            deactivate(bundle);
+        }
+    }
+
+    /**
+     * Remove whichever client currently holds a username
      *
      * @param userName the username of the client to be removed
      */
     public void removeUser(String userName){
-        for(int i = 0; i< connectionList.size(); i++){
-            if(connectionList.elementAt(i).getUserName().equals(userName)){
-                connectionList.remove(i);
+        ConnectionBundle bundle;
+
+        claimLock.lock();
+        try{
+            bundle = connectionsByName.remove(userName);
+            if(bundle != null){
+                released(userName);
+            }
+        }finally{
+            claimLock.unlock();
+        }
+
+        if(bundle != null){
+            deactivate(bundle);
+        }
+    }
+
+    /**
+     * Get every client registered on this server, active or not, so their usernames can be announced to a peer
+     *
+     * @return the registered clients
+     */
+    public Collection<ConnectionBundle> getLocalClaims(){
+        return connectionsByName.values();
+    }
+
+    /**
+     * Get the usernames held by users on other nodes of the cluster
+     *
+     * @return the remote usernames, in no particular order
+     */
+    public String[] getRemoteUsers(){
+        return remoteUsers.keySet().toArray(new String[0]);
+    }
+
+    /**
+     * Records a username claimed on a peer. If a local client holds the same name, the earlier of the two claims wins
+     * (see ClusterNode); a local client that loses is removed from the server state and returned, so that the caller can
+     * disconnect it.
+     *
+     * @param nodeId the id of the peer
+     * @param userName the claimed username
+     * @param claimTime the time of the claim on the peer
+     * @return the local client that lost the username, or null
+     */
+    public ConnectionBundle remoteClaim(String nodeId, String userName, long claimTime){
+        RemoteClaim claim = new RemoteClaim(nodeId, claimTime);
+        ConnectionBundle loser = null;
+
+        claimLock.lock();
+        try{
+            ConnectionBundle local = connectionsByName.get(userName);
+            if(local != null){
+                if(!claim.precedes(local.getClaimTime(), cluster.getNodeId())){
+                    return null;
+                }
+                connectionsByName.remove(userName, local);
+                released(userName);
+                loser = local;
+            }
+
+            RemoteClaim existing = remoteUsers.get(userName);
+            if(existing == null || claim.precedes(existing.claimTime, existing.nodeId)){
+                remoteUsers.put(userName, claim);
+            }
+        }finally{
+            claimLock.unlock();
+        }
+
+        if(loser != null){
+            deactivate(loser);
+        }
+        return loser;
+    }
+
+    /**
+     * Forgets a username released on a peer. A release from a peer that does not hold the name, such as one that lost
+     * a conflicting claim, has no effect.
+     *
+     * @param nodeId the id of the peer
+     * @param userName the released username
+     */
+    public void remoteRelease(String nodeId, String userName){
+        claimLock.lock();
+        try{
+            RemoteClaim existing = remoteUsers.get(userName);
+            if(existing != null && existing.nodeId.equals(nodeId)){
+                remoteUsers.remove(userName);
+            }
+        }finally{
+            claimLock.unlock();
+        }
+    }
+
+    /**
+     * Forgets every username held on a peer, after the link from the peer is lost
+     *
+     * @param nodeId the id of the peer
+     */
+    public void removeNode(String nodeId){
+        claimLock.lock();
+        try{
+            Iterator<Map.Entry<String, RemoteClaim>> it = remoteUsers.entrySet().iterator();
+            while(it.hasNext()){
+                if(it.next().getValue().nodeId.equals(nodeId)){
+                    it.remove();
+                }
+            }
+        }finally{
+            claimLock.unlock();
+        }
+    }
+
+    /**
+     * Announces a released local username to the cluster, if there is one. Called with the claim lock held, so peers
+     * see claims and releases in the order they happened.
+     *
+     * @param userName the released username
+     */
+    private void released(String userName){
+        ClusterNode node = cluster;
+        if(node != null){
+            node.released(userName);
+        }
+    }
+
+    /**
+     * Takes a client that has been removed from the index out of its room and out of the connection snapshot, and ends
+     * its session. The client keeps a reference to the room it was last in, so its departure can still be announced
+     * there.
+     *
+     * @param bundle the removed client
+     */
+    private void deactivate(ConnectionBundle bundle){
+        Session session = bundle.getSession();
+        if(session != null){
+            sessions.remove(session.getToken(), bundle);
+            session.end();
+        }
+
+        snapshotLock.lock();
+        try{
+            if(bundle.isActive()){
+                bundle.active = false;
+                leaveRoom(bundle);
+            }
+            rebuildSnapshot();
+        }finally{
+            snapshotLock.unlock();
+        }
+    }
+
+    /**
+     * Removes a client from its current room, and removes the room if it is now empty and not the default room. Must
+     * be called with the snapshot lock held.
+     *
+     * @param bundle the client leaving its room
+     */
+    private void leaveRoom(ConnectionBundle bundle){
+        Room room = bundle.room;
+        if(room != null && room.remove(bundle) && !room.getName().equals(DEFAULT_ROOM)){
+            rooms.remove(room.getName(), room);
+        }
+    }
+
+    /**
+     * Replaces the connection snapshot with a fresh copy of the active connections in the index. Serialized so that a
+     * slower rebuild can never overwrite the result of a later one; the lock is reentrant, so callers that already hold
+     * it may rebuild as part of a larger change.
+     */
+    private void rebuildSnapshot(){
+        snapshotLock.lock();
+        try{
+            ArrayList<ConnectionBundle> active = new ArrayList<ConnectionBundle>(connectionsByName.size());
+            for(ConnectionBundle bundle : connectionsByName.values()){
+                if(bundle.isActive()){
+                    active.add(bundle);
+                }
+            }
+
+            connectionSnapshot = active.toArray(EMPTY);
+            clientCount = connectionSnapshot.length;
+        }finally{
+            snapshotLock.unlock();
+        }
+    }
+
+    /**
+     * A username held by a user on another node of the cluster
+     */
+    private static class RemoteClaim {
+        String nodeId;
+        long claimTime;
+
+        RemoteClaim(String n, long t){
+            nodeId = n;
+            claimTime = t;
+        }
+
+        /**
+         * Determines whether this claim wins over another claim for the same username: the earlier claim wins, and
+         * claims made in the same millisecond are ordered by node id
+         *
+         * @param otherTime the time of the other claim
+         * @param otherNode the node id of the other claim
+         * @return true if this claim wins
+         */
+        boolean precedes(long otherTime, String otherNode){
+            if(claimTime != otherTime){
+                return claimTime < otherTime;
             }
+            return nodeId.compareTo(otherNode) < 0;
         }
     }
 }
@@ -0,0 +1,262 @@
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A resumable client session. A session stands in for the client's output in its ConnectionBundle: every message
+ * written to the client passes through the session, which keeps the most recent ones in a ring buffer before passing
+ * them on to the connection the session is currently attached to.
+ *
+ * When the connection is lost, the session is detached instead of the client being removed, so the client stays in its
+ * room and messages keep collecting in the ring buffer. A client that reconnects within the grace window presents the
+ * session's token and the sequence number of the last message it received, and the session replays every buffered
+ * message after that one on the new connection before attaching to it. The other users see neither the disconnect nor
+ * the reconnect. If the client does not return in time, the session expires and the client is removed as usual.
+ *
+ * Messages are found in the ring buffer by their sequence number rather than compared by it, since the order of
+ * sequence numbers across concurrent broadcasts is not the order in which they reach a given client. Sequence numbers
+ * only travel in binary frames, so sessions are only offered to clients that negotiated the frame protocol.
+ *
+ * @see ServerState
+ * @see Message
+ */
+public class Session implements ClientOutput {
+    static int BUFFER_SIZE = 256;
+    static long GRACE_MILLIS = 30000;
+    static SecureRandom RANDOM = new SecureRandom();
+
+    String token;
+    Message[] ring;
+    long written;
+    ClientOutput attached;
+    int detachCount;
+    boolean ended;
+    ReentrantLock lock;
+
+    /**
+     * Session constructor. The session starts attached to the connection that opened it.
+     *
+     * @param out the output to the client's connection
+     */
+    public Session(ClientOutput out){
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        token = String.format("%032x", new BigInteger(1, bytes));
+        ring = new Message[Math.max(1, BUFFER_SIZE)];
+        attached = out;
+        lock = new ReentrantLock();
+    }
+
+    /**
+     * Getter method for the session token, which a reconnecting client presents to resume the session
+     *
+     * @return the session token
+     */
+    public String getToken(){
+        return token;
+    }
+
+    /**
+     * Records a message in the ring buffer and passes it on to the attached connection, if there is one. A connection
+     * that fails here is evicted by its own output, which detaches it from the session, so the failure is not passed
+     * on: the message is safe in the ring buffer either way.
+     *
+     * @param message the message to be sent
+     */
+    public void write(Message message){
+        lock.lock();
+        try{
+            ring[(int) (written++ % ring.length)] = message;
+
+            if(attached != null){
+                try{
+                    attached.write(message);
+                }catch(IOException e){
+                    //Replayed from the ring buffer if the client resumes
+                }
+            }
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Switches the attached connection to the binary frame protocol
+     */
+    public void useBinaryFrames(){
+        lock.lock();
+        try{
+            if(attached != null){
+                attached.useBinaryFrames();
+            }
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Switches the attached connection to compression
+     */
+    public void useCompression(){
+        lock.lock();
+        try{
+            if(attached != null){
+                attached.useCompression();
+            }
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the backlog of the attached connection, or 0 while the session is detached
+     */
+    public int backlog(){
+        lock.lock();
+        try{
+            return attached != null ? attached.backlog() : 0;
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ends the session and closes the attached connection
+     */
+    public void close(){
+        lock.lock();
+        try{
+            ended = true;
+            if(attached != null){
+                attached.close();
+                attached = null;
+            }
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ends the session, so that it can no longer be resumed. The attached connection is left open, so that a final
+     * message can still be written to it before it is closed.
+     */
+    void end(){
+        lock.lock();
+        try{
+            ended = true;
+            ring = new Message[1];
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Detaches the session from a connection that was lost. Nothing happens if the session has since been attached to
+     * a newer connection.
+     *
+     * @param out the output to the lost connection
+     * @return the number of detaches so far, which identifies this one, or -1 if the session has ended or has moved
+     *          on to a newer connection
+     */
+    int detach(ClientOutput out){
+        lock.lock();
+        try{
+            if(ended || attached != out){
+                return -1;
+            }
+            attached = null;
+            return ++detachCount;
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Determines whether the session has ended
+     *
+     * @return true if the session can no longer be resumed
+     */
+    boolean isEnded(){
+        lock.lock();
+        try{
+            return ended;
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ends the session if it is still detached since the given detach, that is, if the client has not resumed it since
+     *
+     * @param detach the number returned by detach
+     * @return true if the session expired
+     */
+    boolean expire(int detach){
+        lock.lock();
+        try{
+            if(ended || attached != null || detachCount != detach){
+                return false;
+            }
+            end();
+            return true;
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Attaches the session to a new connection. First the acceptance line is written and the connection switched to
+     * binary frames, and to compression if it was negotiated. Then every buffered message after the last one the client
+     * received is replayed, and only then is the connection attached, so no broadcast can overtake the replay. If the
+     * session was still attached to an older connection, which happens when the client notices a dead connection
+     * before the server does, the older connection is closed.
+     *
+     * @param out the output to the new connection
+     * @param acceptedLine the handshake reply
+     * @param compress whether the new connection negotiated compression
+     * @param lastSequence the sequence number of the last message the client received, or 0 if it received none
+     * @return the number of messages replayed, or -1 if the session has ended and cannot be resumed
+     * @throws IOException if the new connection can no longer be written to
+     */
+    int resume(ClientOutput out, String acceptedLine, boolean compress, long lastSequence) throws IOException {
+        lock.lock();
+        try{
+            if(ended){
+                return -1;
+            }
+
+            out.writeLine(acceptedLine);
+            out.useBinaryFrames();
+            if(compress){
+                out.useCompression();
+            }
+
+            long buffered = Math.min(written, ring.length);
+            long from = written - buffered;
+            boolean found = lastSequence == 0 && written <= ring.length;
+            for(long i = written - 1; i >= from && !found; i--){
+                if(ring[(int) (i % ring.length)].getSequence() == lastSequence){
+                    from = i + 1;
+                    found = true;
+                }
+            }
+
+            if(!found){
+                out.writeLine("<<Some messages could not be replayed, the oldest ones were missed>>");
+            }
+            for(long i = from; i < written; i++){
+                out.write(ring[(int) (i % ring.length)]);
+            }
+
+            ClientOutput previous = attached;
+            attached = out;
+            if(previous != null){
+                previous.close();
+            }
+            return (int) (written - from);
+        }finally{
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,295 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * ClientOutput implementation used by the thread-per-connection engines. Frames are placed in a bounded OutboundQueue
+ * and written to the client's socket by a writer task, so a broadcast never blocks on a client with a full TCP window.
+ * At most one writer task runs per connection at a time, which keeps frames in order; it is only submitted to the
+ * writer executor while there is something to write, so idle clients do not hold a writer thread. Frames that arrive
+ * close together are coalesced into a single write, as described in OutputBatching. Once the client has negotiated
+ * compression, each batch is compressed and sync-flushed by the writer task, which owns the connection's FrameDeflater.
+ *
+ * A connection found dead while writing, or whose queue overflows under the 'disconnect' policy, is closed and the
+ * eviction handler is run to remove it from the server state.
+ *
+ * @see OutboundQueue
+ * @see OutputBatching
+ * @see FrameDeflater
+ */
+public class SocketOutput implements ClientOutput {
+    static Log LOG = Log.get("connection");
+    Socket connection;
+    OutputStream outputStream;
+    OutboundQueue<Frame> queue;
+    Executor writerExecutor;
+    Runnable evictionHandler;
+    AtomicBoolean draining;
+    Runnable drainTask;
+    volatile boolean binaryFrames;
+    volatile boolean closing;
+    volatile boolean closed;
+    long lastFlushNanos;
+    FrameDeflater compressor;
+
+    /**
+     * SocketOutput constructor
+     *
+     * @param conn the client's connection socket
+     * @param writers the executor that runs writer tasks
+     * @param onEvict run once when the connection is evicted because it is dead or too slow
+     * @throws IOException if the socket's output stream cannot be opened
+     */
+    public SocketOutput(Socket conn, Executor writers, Runnable onEvict) throws IOException {
+        connection = conn;
+        //Writes are already coalesced by OutputBatching, so Nagle's algorithm would only add delay
+        connection.setTcpNoDelay(true);
+        outputStream = conn.getOutputStream();
+        queue = new OutboundQueue<Frame>();
+        writerExecutor = writers;
+        evictionHandler = onEvict;
+        draining = new AtomicBoolean(false);
+        //A window in the past, so the first frame is written without waiting
+        lastFlushNanos = System.nanoTime() - OutputBatching.windowNanos();
+        drainTask = new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+    }
+
+    /**
+     * Queues a message to be written to the client, encoded for the client's current wire protocol. The encoding is
+     * chosen here rather than by the writer, so a switch to binary frames never re-encodes a message queued before it.
+     * Never blocks.
+     *
+     * @param message the message to be sent
+     * @throws IOException if the connection is closed, or was just evicted because its queue is full
+     */
+    public void write(Message message) throws IOException {
+        if(closing){
+            throw new IOException("Connection closed");
+        }
+
+        Frame frame = binaryFrames ? message.binaryFrame() : message.lineFrame();
+        if(!queue.offer(frame)){
+            evict();
+            throw new IOException("Outbound queue full, slow client disconnected");
+        }
+        scheduleDrain();
+    }
+
+    /**
+     * @return the number of frames waiting to be written
+     */
+    public int backlog(){
+        return queue.size();
+    }
+
+    /**
+     * Switches the client to the binary frame protocol
+     */
+    public void useBinaryFrames(){
+        binaryFrames = true;
+    }
+
+    /**
+     * Queues the marker after which the writer compresses everything it writes
+     */
+    public void useCompression(){
+        if(queue.offer(Frame.START_COMPRESSION)){
+            scheduleDrain();
+        }
+    }
+
+    /**
+     * Closes the client's socket once every queued frame has been written
+     */
+    public void close(){
+        closing = true;
+        scheduleDrain();
+    }
+
+    /**
+     * Submits the writer task unless one is already running for this connection
+     */
+    private void scheduleDrain(){
+        if(draining.compareAndSet(false, true)){
+            writerExecutor.execute(drainTask);
+        }
+    }
+
+    /**
+     * The writer task. Writes queued frames until the queue is empty, then closes the socket if a close was requested.
+     * Rechecks the queue after giving up the draining flag, so a frame queued in between is never left behind.
+     */
+    private void drain(){
+        while(true){
+            try{
+                writeBatches();
+            }catch(IOException e){
+                LOG.info("Detected dead connection, evicting client");
+                endCompression();
+                draining.set(false);
+                evict();
+                return;
+            }
+
+            if(closing){
+                closeSocket();
+                endCompression();
+            }
+
+            draining.set(false);
+            boolean moreWork = !queue.isEmpty() || (closing && !closed);
+            if(!moreWork || !draining.compareAndSet(false, true)){
+                return;
+            }
+        }
+    }
+
+    /**
+     * Takes frames off the queue and writes them in batches until the queue is empty. While the client is receiving a
+     * steady stream (its last write was less than a window ago), an empty queue is waited on for up to a window after
+     * the latest frame, bounded by the hard deadline of the batch; otherwise the batch is written immediately.
+     *
+     * @throws IOException if the socket fails
+     */
+    private void writeBatches() throws IOException {
+        long window = OutputBatching.windowNanos();
+        long maxDelay = OutputBatching.maxDelayNanos();
+        ArrayList<Frame> batch = null;
+        int batchBytes = 0;
+        long batchStart = 0;
+        long lastArrival = 0;
+
+        while(true){
+            Frame frame = queue.poll();
+
+            if(frame == null && batch != null){
+                long now = System.nanoTime();
+                boolean burst = now - lastFlushNanos < window;
+                long waitNanos = Math.min(lastArrival + window, batchStart + maxDelay) - now;
+
+                if(burst && waitNanos > 0){
+                    frame = pollWithin(waitNanos);
+                }
+                if(frame == null){
+                    flush(batch, batchBytes);
+                    batch = null;
+                    continue;
+                }
+            }
+            if(frame == null){
+                return;
+            }
+            if(frame == Frame.START_COMPRESSION){
+                //Everything queued before the marker goes out uncompressed
+                if(batch != null){
+                    flush(batch, batchBytes);
+                    batch = null;
+                }
+                compressor = new FrameDeflater();
+                continue;
+            }
+
+            lastArrival = System.nanoTime();
+            if(batch == null){
+                batch = new ArrayList<Frame>();
+                batchBytes = 0;
+                batchStart = lastArrival;
+            }
+            batch.add(frame);
+            batchBytes += frame.length();
+
+            if(batchBytes >= OutputBatching.MAX_BYTES || lastArrival - batchStart >= maxDelay){
+                flush(batch, batchBytes);
+                batch = null;
+            }
+        }
+    }
+
+    /**
+     * Waits for the next frame
+     *
+     * @param timeoutNanos the longest time to wait
+     * @return the next frame, or null if none arrived in time or the writer was interrupted
+     */
+    private Frame pollWithin(long timeoutNanos){
+        try{
+            return queue.poll(timeoutNanos);
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Writes a batch of frames with a single write call, compressed if the client negotiated compression
+     *
+     * @param batch the frames to be written, in order
+     * @param batchBytes the total length of the frames
+     * @throws IOException if the socket fails
+     */
+    private void flush(ArrayList<Frame> batch, int batchBytes) throws IOException {
+        int written = batchBytes;
+
+        if(compressor != null){
+            for(Frame frame : batch){
+                compressor.add(frame);
+            }
+            written = compressor.finishBatch();
+            outputStream.write(compressor.buffer(), 0, written);
+            compressor.shrink();
+        }else if(batch.size() == 1){
+            batch.get(0).writeTo(outputStream);
+        }else{
+            byte[] combined = new byte[batchBytes];
+            int offset = 0;
+            for(Frame frame : batch){
+                frame.copyTo(combined, offset);
+                offset += frame.length();
+            }
+            outputStream.write(combined, 0, batchBytes);
+        }
+
+        lastFlushNanos = System.nanoTime();
+        OutputBatching.record(batch.size(), written);
+    }
+
+    /**
+     * Releases the compressor's native state. Only called by the writer task.
+     */
+    private void endCompression(){
+        if(compressor != null){
+            compressor.end();
+            compressor = null;
+        }
+    }
+
+    /**
+     * Drops everything still queued, closes the socket and runs the eviction handler
+     */
+    private void evict(){
+        closing = true;
+        queue.clear();
+        closeSocket();
+        evictionHandler.run();
+    }
+
+    /**
+     * Closes the client's socket
+     */
+    private void closeSocket(){
+        closed = true;
+        try{
+            connection.close();
+        }catch(IOException e){
+            LOG.warn("Error while closing client socket");
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/**
+ * A token bucket rate limiter. The bucket holds up to 'burst' tokens and refills continuously at 'rate' tokens per
+ * second; every admitted event takes one token. A client can therefore send a short burst at full speed, but over any
+ * longer stretch no faster than the rate.
+ *
+ * The bucket keeps no timer: it is refilled lazily, from the time elapsed since it was last used, whenever a token is
+ * taken. It is not thread safe; each bucket belongs to a single client, whose input is read by one thread at a time.
+ *
+ * @see AdmissionControl
+ */
+public class TokenBucket {
+    double tokensPerNano;
+    double capacity;
+    double tokens;
+    long lastRefill;
+
+    /**
+     * TokenBucket constructor. The bucket starts full.
+     *
+     * @param rate the number of tokens added per second
+     * @param burst the largest number of tokens the bucket holds
+     */
+    public TokenBucket(double rate, int burst){
+        tokensPerNano = rate / 1000000000.0;
+        capacity = Math.max(1, burst);
+        tokens = capacity;
+        lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Takes a token if one is available
+     *
+     * @param now the current System.nanoTime
+     * @return 0 if a token was taken, otherwise the number of nanoseconds until the next token is available
+     */
+    public long take(long now){
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+
+        if(tokens >= 1){
+            tokens -= 1;
+            return 0;
+        }
+        return Math.max(1, (long) Math.ceil((1 - tokens) / tokensPerNano));
+    }
+}